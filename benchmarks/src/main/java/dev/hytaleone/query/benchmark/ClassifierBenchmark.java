@@ -0,0 +1,135 @@
+package dev.hytaleone.query.benchmark;
+
+import com.hypixel.hytale.logger.HytaleLogger;
+import dev.hytaleone.query.HytaleOnePlayerRoster;
+import dev.hytaleone.query.HytaleOneQueryCache;
+import dev.hytaleone.query.HytaleOneQueryHandler;
+import dev.hytaleone.query.HytaleOneQueryMetrics;
+import dev.hytaleone.query.HytaleOneQueryProtocol;
+import dev.hytaleone.query.HytaleOneRosterJournal;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.socket.DatagramPacket;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.annotation.Nonnull;
+import java.net.InetSocketAddress;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of a game packet passing the query classifier. The classify benchmarks run the
+ * prefilter and magic compare alone, the pipeline benchmarks fire one reused datagram
+ * through a pipeline that ends in a counting sink: without the query handler as the
+ * baseline and behind it. The difference to the baseline is the per-packet overhead.
+ * The sink never releases, so nothing allocates.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClassifierBenchmark {
+
+    private final InetSocketAddress sender = new InetSocketAddress("127.0.0.1", 40000);
+    private final InetSocketAddress recipient = new InetSocketAddress("127.0.0.1", 5520);
+
+    private HytaleOneQueryCache cache;
+    private ByteBuf longHeader;
+    private ByteBuf shortHeader;
+    private ByteBuf queryPacket;
+    private DatagramPacket gamePacket;
+    private EmbeddedChannel baseline;
+    private EmbeddedChannel handler;
+
+    @Setup
+    public void setup() {
+        SplittableRandom random = new SplittableRandom(42);
+        byte[] payload = new byte[1200];
+        random.nextBytes(payload);
+
+        // QUIC initial packet: long header form bit set, version 1
+        payload[0] = (byte) 0xC3;
+        longHeader = PooledByteBufAllocator.DEFAULT.directBuffer(payload.length).writeBytes(payload)
+                .setInt(1, 1);
+        // 1-RTT packet: fixed bit set, masked low bits
+        payload[0] = (byte) 0x5A;
+        shortHeader = PooledByteBufAllocator.DEFAULT.directBuffer(payload.length).writeBytes(payload);
+        queryPacket = PooledByteBufAllocator.DEFAULT.directBuffer(HytaleOneQueryProtocol.MIN_REQUEST_SIZE)
+                .writeBytes(HytaleOneQueryProtocol.REQUEST_MAGIC).writeByte(HytaleOneQueryProtocol.TYPE_BASIC);
+        gamePacket = new DatagramPacket(shortHeader, recipient, sender);
+
+        HytaleOneRosterJournal journal = new HytaleOneRosterJournal(256);
+        HytaleOnePlayerRoster roster = new HytaleOnePlayerRoster(journal);
+        cache = new HytaleOneQueryCache(new HytaleLogger(), TimeUnit.HOURS.toMillis(1), 1200,
+                new StandInQuerySource(100), roster, journal);
+        cache.start();
+        HytaleOneQueryMetrics metrics = new HytaleOneQueryMetrics();
+        HytaleOneQueryHandler queryHandler = StandInHandler.builder(cache, metrics).build();
+
+        baseline = new EmbeddedChannel(new Sink());
+        handler = new EmbeddedChannel(queryHandler, new Sink());
+    }
+
+    @TearDown
+    public void tearDown() {
+        baseline.finishAndReleaseAll();
+        handler.finishAndReleaseAll();
+        longHeader.release();
+        shortHeader.release();
+        queryPacket.release();
+        cache.stop();
+    }
+
+    @Benchmark
+    public boolean classifyLongHeader() {
+        return HytaleOneQueryProtocol.isQueryRequest(longHeader);
+    }
+
+    @Benchmark
+    public boolean classifyShortHeader() {
+        return HytaleOneQueryProtocol.isQueryRequest(shortHeader);
+    }
+
+    @Benchmark
+    public boolean classifyQuery() {
+        return HytaleOneQueryProtocol.isQueryRequest(queryPacket);
+    }
+
+    @Benchmark
+    public Object pipelineBaseline() {
+        return baseline.pipeline().fireChannelRead(gamePacket);
+    }
+
+    @Benchmark
+    public Object pipelineHandler() {
+        return handler.pipeline().fireChannelRead(gamePacket);
+    }
+
+    /**
+     * Stand-in for the QUIC codec, counts and keeps the packet.
+     */
+    private static final class Sink extends ChannelInboundHandlerAdapter {
+
+        private long packets;
+
+        @Override
+        public void channelRead(@Nonnull ChannelHandlerContext ctx, @Nonnull Object msg) {
+            packets++;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package dev.hytaleone.query.benchmark;
+
+import dev.hytaleone.query.HytaleOnePlayerRoster;
+import dev.hytaleone.query.HytaleOneQueryProtocol;
+import dev.hytaleone.query.HytaleOneRosterJournal;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+/**
+ * Cost of compressing the full response once per state change, by deflate level.
+ * The compressed size is printed at setup, next to the uncompressed size.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompressionBenchmark {
+
+    @Param({"100", "1000", "10000"})
+    public int players;
+
+    @Param({"1", "6", "9"})
+    public int level;
+
+    private final ByteBufAllocator alloc = PooledByteBufAllocator.DEFAULT;
+
+    private ByteBuf full;
+    private Deflater deflater;
+
+    @Setup
+    public void setup() {
+        StandInQuerySource source = new StandInQuerySource(players);
+        HytaleOnePlayerRoster roster = new HytaleOnePlayerRoster(new HytaleOneRosterJournal(256));
+        StandInPlayers.populate(roster, players);
+
+        HytaleOnePlayerRoster.Encoded encoded = roster.encode(alloc);
+        ByteBuf identity = HytaleOneQueryProtocol.encodeIdentity(alloc, source.getServerName(), source.getMotd());
+        ByteBuf version = HytaleOneQueryProtocol.encodeVersion(alloc, source.getVersion(),
+                source.getProtocolVersion(), source.getProtocolHash());
+        ByteBuf plugins = HytaleOneQueryProtocol.encodePlugins(alloc, source.getPlugins());
+        full = HytaleOneQueryProtocol.buildFullResponse(alloc, identity, encoded.count(), source.getMaxPlayers(),
+                source.getHostPort(), version, encoded.section(), plugins, encoded.generation());
+        encoded.section().release();
+        identity.release();
+        version.release();
+        plugins.release();
+
+        deflater = new Deflater(level);
+        ByteBuf compressed = HytaleOneQueryProtocol.compressFullResponse(alloc, full, deflater);
+        System.out.printf("%n%d players, level %d: %d bytes -> %s%n", players, level, full.readableBytes(),
+                compressed != null ? compressed.readableBytes() + " bytes" : "not smaller");
+        if (compressed != null) {
+            compressed.release();
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        full.release();
+        deflater.end();
+    }
+
+    @Benchmark
+    public int compressFullResponse() {
+        ByteBuf compressed = HytaleOneQueryProtocol.compressFullResponse(alloc, full, deflater);
+        if (compressed == null) {
+            return 0;
+        }
+        int size = compressed.readableBytes();
+        compressed.release();
+        return size;
+    }
+}
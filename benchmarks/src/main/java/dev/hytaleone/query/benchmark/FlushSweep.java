@@ -0,0 +1,171 @@
+package dev.hytaleone.query.benchmark;
+
+import com.hypixel.hytale.logger.HytaleLogger;
+import dev.hytaleone.query.HytaleOnePlayerRoster;
+import dev.hytaleone.query.HytaleOneQueryCache;
+import dev.hytaleone.query.HytaleOneQueryHandler;
+import dev.hytaleone.query.HytaleOneQueryMetrics;
+import dev.hytaleone.query.HytaleOneQueryProtocol;
+import dev.hytaleone.query.HytaleOneRosterJournal;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollDatagramChannel;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.DatagramChannel;
+import io.netty.channel.socket.nio.NioDatagramChannel;
+import io.netty.util.ReferenceCountUtil;
+
+import javax.annotation.Nonnull;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Compares flushing every reply with coalescing replies per read cycle. Blocking sender
+ * threads each send a burst of basic queries and wait for the replies, so the server's
+ * socket always holds a backlog. For each pending bound it prints replies per second,
+ * flushes per reply and event-loop CPU time per reply. On epoll a flush of several replies
+ * is a single sendmmsg call, so flushes are the send syscalls; NIO sends one datagram per call.
+ *
+ * <pre>
+ * java -cp benchmarks.jar dev.hytaleone.query.benchmark.FlushSweep \
+ *     --senders 8 --burst 32 --duration 5 --pending 1,8,64 --transport auto
+ * </pre>
+ */
+public final class FlushSweep {
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            options.put(args[i].replaceFirst("^--", ""), args[i + 1]);
+        }
+        int senders = Integer.parseInt(options.getOrDefault("senders", "8"));
+        int burst = Integer.parseInt(options.getOrDefault("burst", "32"));
+        int durationSeconds = Integer.parseInt(options.getOrDefault("duration", "5"));
+        String transport = options.getOrDefault("transport", "auto");
+        boolean epoll = transport.equals("epoll") || (transport.equals("auto") && Epoll.isAvailable());
+        List<Integer> bounds = new ArrayList<>();
+        for (String bound : options.getOrDefault("pending", "1,"
+                + HytaleOneQueryHandler.DEFAULT_MAX_PENDING_REPLIES).split(",")) {
+            bounds.add(Integer.parseInt(bound.trim()));
+        }
+
+        HytaleOneRosterJournal journal = new HytaleOneRosterJournal(256);
+        HytaleOnePlayerRoster roster = new HytaleOnePlayerRoster(journal);
+        StandInPlayers.populate(roster, 20);
+        HytaleOneQueryCache cache = new HytaleOneQueryCache(new HytaleLogger(), 1000, 1200,
+                new StandInQuerySource(100), roster, journal);
+        cache.start();
+        try {
+            System.out.printf("%s transport, %d senders with bursts of %d%n", epoll ? "epoll" : "nio", senders,
+                    burst);
+            System.out.printf("%-8s %14s %14s %14s %16s%n", "pending", "replies/s", "flushes/reply",
+                    "sends/reply", "loop CPU us/reply");
+            for (int bound : bounds) {
+                run(epoll, cache, bound, senders, burst, durationSeconds);
+            }
+        } finally {
+            cache.stop();
+        }
+    }
+
+    private static void run(boolean epoll, @Nonnull HytaleOneQueryCache cache, int maxPendingReplies, int senders,
+                            int burst, int durationSeconds) throws Exception {
+        EventLoopGroup group = epoll ? new EpollEventLoopGroup(1) : new NioEventLoopGroup(1);
+        try {
+            HytaleOneQueryMetrics metrics = new HytaleOneQueryMetrics();
+            HytaleOneQueryHandler handler = StandInHandler.builder(cache, metrics)
+                    .maxPendingReplies(maxPendingReplies)
+                    .build();
+            Channel channel = new Bootstrap()
+                    .group(group)
+                    .channel(epoll ? EpollDatagramChannel.class : NioDatagramChannel.class)
+                    .handler(new ChannelInitializer<DatagramChannel>() {
+                        @Override
+                        protected void initChannel(@Nonnull DatagramChannel ch) {
+                            ch.pipeline().addLast(handler, new ChannelInboundHandlerAdapter() {
+                                @Override
+                                public void channelRead(@Nonnull ChannelHandlerContext ctx, @Nonnull Object msg) {
+                                    ReferenceCountUtil.release(msg);
+                                }
+                            });
+                        }
+                    })
+                    .bind(new InetSocketAddress("127.0.0.1", 0)).sync().channel();
+            InetSocketAddress target = (InetSocketAddress) channel.localAddress();
+
+            ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+            long loopThread = channel.eventLoop().submit(() -> Thread.currentThread().threadId()).get();
+
+            LongAdder replies = new LongAdder();
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(durationSeconds);
+            List<Thread> workers = new ArrayList<>();
+            for (int i = 0; i < senders; i++) {
+                workers.add(Thread.ofPlatform().name("FlushSweep-" + i).start(
+                        () -> send(target, burst, deadline, replies)));
+            }
+
+            // Skip the warm-up second before measuring
+            Thread.sleep(1000);
+            long startReplies = replies.sum();
+            long startFlushes = metrics.getFlushes();
+            long startCpu = threads.getThreadCpuTime(loopThread);
+            long start = System.nanoTime();
+            for (Thread worker : workers) {
+                worker.join();
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            long answered = Math.max(replies.sum() - startReplies, 1);
+            long flushes = metrics.getFlushes() - startFlushes;
+            long cpu = threads.getThreadCpuTime(loopThread) - startCpu;
+            double sends = epoll ? flushes : answered;
+
+            System.out.printf("%-8d %,14.0f %14.3f %14.3f %16.2f%n", maxPendingReplies, answered / seconds,
+                    (double) flushes / answered, sends / answered, cpu / 1e3 / answered);
+            channel.close().sync();
+        } finally {
+            group.shutdownGracefully(0, 1, TimeUnit.SECONDS).sync();
+        }
+    }
+
+    private static void send(@Nonnull InetSocketAddress target, int burst, long deadline, @Nonnull LongAdder replies) {
+        byte[] request = new byte[HytaleOneQueryProtocol.MIN_REQUEST_SIZE];
+        System.arraycopy(HytaleOneQueryProtocol.REQUEST_MAGIC, 0, request, 0,
+                HytaleOneQueryProtocol.REQUEST_MAGIC.length);
+        request[request.length - 1] = HytaleOneQueryProtocol.TYPE_BASIC;
+        DatagramPacket out = new DatagramPacket(request, request.length, target);
+        DatagramPacket in = new DatagramPacket(new byte[2048], 2048);
+
+        try (DatagramSocket socket = new DatagramSocket(new InetSocketAddress("127.0.0.1", 0))) {
+            socket.setSoTimeout(100);
+            while (System.nanoTime() < deadline) {
+                for (int i = 0; i < burst; i++) {
+                    socket.send(out);
+                }
+                for (int i = 0; i < burst; i++) {
+                    socket.receive(in);
+                    replies.increment();
+                }
+            }
+        } catch (SocketTimeoutException e) {
+            // A lost reply ends this sender's run, the rest keep going
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
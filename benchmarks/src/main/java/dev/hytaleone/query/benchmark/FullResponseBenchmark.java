@@ -0,0 +1,74 @@
+package dev.hytaleone.query.benchmark;
+
+import dev.hytaleone.query.HytaleOnePlayerRoster;
+import dev.hytaleone.query.HytaleOneQueryProtocol;
+import dev.hytaleone.query.HytaleOneRosterJournal;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Snapshot rebuild cost of the full response: encoding the roster and assembling the reply.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FullResponseBenchmark {
+
+    @Param({"0", "100", "1000", "10000"})
+    public int players;
+
+    private final ByteBufAllocator alloc = PooledByteBufAllocator.DEFAULT;
+    private final StandInQuerySource source = new StandInQuerySource(10_000);
+
+    private HytaleOnePlayerRoster roster;
+    private ByteBuf identity;
+    private ByteBuf version;
+    private ByteBuf plugins;
+
+    @Setup
+    public void setup() {
+        roster = new HytaleOnePlayerRoster(new HytaleOneRosterJournal(256));
+        StandInPlayers.populate(roster, players);
+        identity = HytaleOneQueryProtocol.encodeIdentity(alloc, source.getServerName(), source.getMotd());
+        version = HytaleOneQueryProtocol.encodeVersion(alloc, source.getVersion(),
+                source.getProtocolVersion(), source.getProtocolHash());
+        plugins = HytaleOneQueryProtocol.encodePlugins(alloc, source.getPlugins());
+    }
+
+    @TearDown
+    public void tearDown() {
+        identity.release();
+        version.release();
+        plugins.release();
+    }
+
+    @Benchmark
+    public int buildFullResponse() {
+        HytaleOnePlayerRoster.Encoded encoded = roster.encode(alloc);
+        ByteBuf response = HytaleOneQueryProtocol.buildFullResponse(alloc, identity, encoded.count(),
+                source.getMaxPlayers(), source.getHostPort(), version, encoded.section(), plugins,
+                encoded.generation());
+        int size = response.readableBytes();
+        response.release();
+        encoded.section().release();
+        return size;
+    }
+}
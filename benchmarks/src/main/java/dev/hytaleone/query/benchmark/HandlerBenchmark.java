@@ -0,0 +1,124 @@
+package dev.hytaleone.query.benchmark;
+
+import com.hypixel.hytale.logger.HytaleLogger;
+import dev.hytaleone.query.HytaleOnePlayerRoster;
+import dev.hytaleone.query.HytaleOneQueryCache;
+import dev.hytaleone.query.HytaleOneQueryHandler;
+import dev.hytaleone.query.HytaleOneQueryMetrics;
+import dev.hytaleone.query.HytaleOneQueryProtocol;
+import dev.hytaleone.query.HytaleOneRosterJournal;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.socket.DatagramPacket;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end channelRead throughput of the query handler on an embedded channel,
+ * serving replies from a warm cache with rate limiting off.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HandlerBenchmark {
+
+    @Param({"0", "100", "1000"})
+    public int players;
+
+    private final InetSocketAddress sender = new InetSocketAddress("127.0.0.1", 40000);
+    private final InetSocketAddress recipient = new InetSocketAddress("127.0.0.1", 5520);
+
+    private HytaleOneQueryCache cache;
+    private EmbeddedChannel channel;
+    private ByteBuf basicRequest;
+    private ByteBuf fullRequest;
+    private ByteBuf countsRequest;
+    private ByteBuf gamePacket;
+
+    @Setup
+    public void setup() {
+        HytaleOneRosterJournal journal = new HytaleOneRosterJournal(256);
+        HytaleOnePlayerRoster roster = new HytaleOnePlayerRoster(journal);
+        StandInPlayers.populate(roster, players);
+
+        // Long TTL so no background rebuild runs during the measurement
+        cache = new HytaleOneQueryCache(new HytaleLogger(), TimeUnit.HOURS.toMillis(1), 1200,
+                new StandInQuerySource(players + 100), roster, journal);
+        cache.start();
+
+        HytaleOneQueryHandler handler = StandInHandler.builder(cache, new HytaleOneQueryMetrics()).build();
+        channel = new EmbeddedChannel(handler);
+
+        basicRequest = request(HytaleOneQueryProtocol.TYPE_BASIC);
+        fullRequest = request(HytaleOneQueryProtocol.TYPE_FULL);
+        countsRequest = request(HytaleOneQueryProtocol.TYPE_PROJECTION)
+                .writeLongLE(0L).writeShortLE(HytaleOneQueryProtocol.FIELD_COUNTS);
+        gamePacket = PooledByteBufAllocator.DEFAULT.directBuffer(1200).writeByte(0xC3).writeZero(1199);
+    }
+
+    @TearDown
+    public void tearDown() {
+        channel.finishAndReleaseAll();
+        basicRequest.release();
+        fullRequest.release();
+        countsRequest.release();
+        gamePacket.release();
+        cache.stop();
+    }
+
+    @Benchmark
+    public int basicQuery() {
+        return roundTrip(basicRequest);
+    }
+
+    @Benchmark
+    public int fullQuery() {
+        return roundTrip(fullRequest);
+    }
+
+    @Benchmark
+    public int countsQuery() {
+        return roundTrip(countsRequest);
+    }
+
+    @Benchmark
+    public int passThrough() {
+        channel.writeInbound(new DatagramPacket(gamePacket.retainedDuplicate(), recipient, sender));
+        DatagramPacket forwarded = channel.readInbound();
+        int size = forwarded.content().readableBytes();
+        forwarded.release();
+        return size;
+    }
+
+    private int roundTrip(ByteBuf request) {
+        channel.writeInbound(new DatagramPacket(request.retainedDuplicate(), recipient, sender));
+        DatagramPacket response = channel.readOutbound();
+        int size = response.content().readableBytes();
+        response.release();
+        return size;
+    }
+
+    private static ByteBuf request(byte type) {
+        ByteBuf buf = PooledByteBufAllocator.DEFAULT.directBuffer(HytaleOneQueryProtocol.MIN_REQUEST_SIZE);
+        buf.writeBytes(HytaleOneQueryProtocol.REQUEST_MAGIC);
+        buf.writeByte(type);
+        return buf;
+    }
+}
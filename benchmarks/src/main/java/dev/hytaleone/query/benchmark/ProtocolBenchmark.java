@@ -0,0 +1,98 @@
+package dev.hytaleone.query.benchmark;
+
+import dev.hytaleone.query.HytaleOneQueryProtocol;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Request classification and the small encoders on the basic query path.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProtocolBenchmark {
+
+    private final ByteBufAllocator alloc = PooledByteBufAllocator.DEFAULT;
+    private final StandInQuerySource source = new StandInQuerySource(100);
+
+    private ByteBuf queryPacket;
+    private ByteBuf quicPacket;
+    private ByteBuf stringTarget;
+    private ByteBuf identity;
+    private ByteBuf version;
+
+    @Setup
+    public void setup() {
+        queryPacket = alloc.directBuffer(HytaleOneQueryProtocol.MIN_REQUEST_SIZE);
+        queryPacket.writeBytes(HytaleOneQueryProtocol.REQUEST_MAGIC);
+        queryPacket.writeByte(HytaleOneQueryProtocol.TYPE_BASIC);
+
+        // QUIC initial packet: long header form bit set, version 1, random payload
+        byte[] payload = new byte[1200];
+        new SplittableRandom(42).nextBytes(payload);
+        payload[0] = (byte) 0xC3;
+        payload[1] = 0;
+        payload[2] = 0;
+        payload[3] = 0;
+        payload[4] = 1;
+        quicPacket = alloc.directBuffer(payload.length).writeBytes(payload);
+
+        stringTarget = alloc.directBuffer(256);
+        identity = HytaleOneQueryProtocol.encodeIdentity(alloc, source.getServerName(), source.getMotd());
+        version = HytaleOneQueryProtocol.encodeVersion(alloc, source.getVersion(),
+                source.getProtocolVersion(), source.getProtocolHash());
+    }
+
+    @TearDown
+    public void tearDown() {
+        queryPacket.release();
+        quicPacket.release();
+        stringTarget.release();
+        identity.release();
+        version.release();
+    }
+
+    @Benchmark
+    public boolean isQueryRequestMatch() {
+        return HytaleOneQueryProtocol.isQueryRequest(queryPacket);
+    }
+
+    @Benchmark
+    public boolean isQueryRequestQuic() {
+        return HytaleOneQueryProtocol.isQueryRequest(quicPacket);
+    }
+
+    @Benchmark
+    public int writeString() {
+        stringTarget.clear();
+        HytaleOneQueryProtocol.writeString(stringTarget, source.getMotd());
+        return stringTarget.writerIndex();
+    }
+
+    @Benchmark
+    public int buildBasicResponse() {
+        ByteBuf response = HytaleOneQueryProtocol.buildBasicResponse(alloc, identity, 42,
+                source.getMaxPlayers(), source.getHostPort(), version);
+        int size = response.readableBytes();
+        response.release();
+        return size;
+    }
+}
@@ -0,0 +1,399 @@
+package dev.hytaleone.query.benchmark;
+
+import com.hypixel.hytale.logger.HytaleLogger;
+import dev.hytaleone.query.HytaleOnePlayerRoster;
+import dev.hytaleone.query.HytaleOneQueryCache;
+import dev.hytaleone.query.HytaleOneQueryHandler;
+import dev.hytaleone.query.HytaleOneQueryHistogram;
+import dev.hytaleone.query.HytaleOneQueryMetrics;
+import dev.hytaleone.query.HytaleOneQueryProtocol;
+import dev.hytaleone.query.HytaleOneRosterJournal;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollDatagramChannel;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.DatagramChannel;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.channel.socket.nio.NioDatagramChannel;
+import io.netty.util.ReferenceCountUtil;
+
+import javax.annotation.Nonnull;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Open-loop UDP load test for the query protocol.
+ * Many sender sockets emit basic and full queries mixed with QUIC-like game
+ * datagrams at a fixed total rate, and reply latency is measured per query.
+ * Without a target address the real query handler is hosted on localhost in
+ * a bare Netty bootstrap, with game datagrams counted by a stand-in QUIC codec.
+ *
+ * <pre>
+ * java -cp benchmarks.jar dev.hytaleone.query.benchmark.QueryLoadTest \
+ *     --rate 50000 --senders 512 --duration 30 --full-ratio 0.1 --game-ratio 0.5
+ * </pre>
+ *
+ * Every query carries a nonce, replies are matched to their request through
+ * a ring of send times indexed by nonce.
+ */
+public final class QueryLoadTest {
+
+    private static final int GAME_PACKET_SIZE = 1200;
+
+    private final Settings settings;
+    private final HytaleOneQueryHistogram intervalLatency = new HytaleOneQueryHistogram();
+    private final HytaleOneQueryHistogram totalLatency = new HytaleOneQueryHistogram();
+    private final LongAdder queriesSent = new LongAdder();
+    private final LongAdder gameSent = new LongAdder();
+    private final LongAdder replies = new LongAdder();
+    private final LongAdder lost = new LongAdder();
+    private final LongAdder gameForwarded = new LongAdder();
+
+    private final ByteBuf basicRequest;
+    private final ByteBuf fullRequest;
+    private final ByteBuf gamePacket;
+
+    private QueryLoadTest(@Nonnull Settings settings) {
+        this.settings = settings;
+        this.basicRequest = request(HytaleOneQueryProtocol.TYPE_BASIC);
+        this.fullRequest = request(HytaleOneQueryProtocol.TYPE_FULL);
+
+        // QUIC short header packet with random payload
+        byte[] payload = new byte[GAME_PACKET_SIZE];
+        ThreadLocalRandom.current().nextBytes(payload);
+        payload[0] = (byte) (0x40 | (payload[0] & 0x3F));
+        this.gamePacket = PooledByteBufAllocator.DEFAULT.directBuffer(GAME_PACKET_SIZE).writeBytes(payload);
+    }
+
+    public static void main(String[] args) throws Exception {
+        new QueryLoadTest(Settings.parse(args)).run();
+    }
+
+    private void run() throws Exception {
+        boolean epoll = settings.transport.equals("epoll")
+                || (settings.transport.equals("auto") && Epoll.isAvailable());
+        EventLoopGroup serverGroup = null;
+        EventLoopGroup clientGroup = group(epoll, settings.clientThreads);
+        HytaleOneQueryCache cache = null;
+
+        try {
+            InetSocketAddress target = settings.target;
+            if (target == null) {
+                serverGroup = group(epoll, 1);
+                cache = startCache();
+                target = startServer(serverGroup, epoll, cache);
+            }
+            System.out.printf("Target %s via %s, %d senders at %d packets/s for %ds (full %.0f%%, game %.0f%%)%n",
+                    target, epoll ? "epoll" : "nio", settings.senders, settings.rate, settings.durationSeconds,
+                    settings.fullRatio * 100, settings.gameRatio * 100);
+
+            List<Sender> senders = startSenders(clientGroup, epoll, target);
+            long startNanos = System.nanoTime();
+            long lastReplies = 0;
+            for (int second = 1; second <= settings.durationSeconds; second++) {
+                Thread.sleep(Math.max(0, TimeUnit.SECONDS.toMillis(second)
+                        - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos)));
+                long total = replies.sum();
+                report("t=" + second + "s", total - lastReplies, 1.0, intervalLatency);
+                intervalLatency.reset();
+                lastReplies = total;
+            }
+            long elapsedNanos = System.nanoTime() - startNanos;
+
+            // Stop sending, then give outstanding replies one timeout to arrive
+            for (Sender sender : senders) {
+                sender.channel.eventLoop().submit(sender::stop).sync();
+            }
+            Thread.sleep(settings.timeoutMillis);
+            for (Sender sender : senders) {
+                sender.channel.eventLoop().submit(sender::expireAll).sync();
+                sender.channel.close().sync();
+            }
+
+            System.out.println();
+            report("total", replies.sum(), elapsedNanos / 1e9, totalLatency);
+            long sent = queriesSent.sum();
+            System.out.printf("queries sent %d, replies %d, lost %d (%.3f%%), game packets sent %d%s%n",
+                    sent, replies.sum(), lost.sum(), sent == 0 ? 0.0 : lost.sum() * 100.0 / sent, gameSent.sum(),
+                    settings.target == null ? ", forwarded " + gameForwarded.sum() : "");
+        } finally {
+            clientGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS).sync();
+            if (serverGroup != null) {
+                serverGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS).sync();
+            }
+            if (cache != null) {
+                cache.stop();
+            }
+            basicRequest.release();
+            fullRequest.release();
+            gamePacket.release();
+        }
+    }
+
+    private void report(@Nonnull String label, long replyCount, double seconds,
+                        @Nonnull HytaleOneQueryHistogram latency) {
+        System.out.printf("%-7s %,10.0f replies/s  p50 %,8dus  p99 %,8dus  p999 %,8dus  max %,8dus  lost %,d%n",
+                label, replyCount / seconds, micros(latency.percentile(50)), micros(latency.percentile(99)),
+                micros(latency.percentile(99.9)), micros(latency.max()), lost.sum());
+    }
+
+    @Nonnull
+    private HytaleOneQueryCache startCache() {
+        HytaleOneRosterJournal journal = new HytaleOneRosterJournal(256);
+        HytaleOnePlayerRoster roster = new HytaleOnePlayerRoster(journal);
+        StandInPlayers.populate(roster, settings.players);
+        HytaleOneQueryCache cache = new HytaleOneQueryCache(new HytaleLogger(), 1000, 1200,
+                new StandInQuerySource(settings.players + 100), roster, journal);
+        cache.start();
+        return cache;
+    }
+
+    /**
+     * Host the real query handler the way the plugin injects it, in front of a game packet sink.
+     */
+    @Nonnull
+    private InetSocketAddress startServer(@Nonnull EventLoopGroup group, boolean epoll,
+                                          @Nonnull HytaleOneQueryCache cache) throws InterruptedException {
+        // Rate limiting is off, the load test measures the reply path
+        HytaleOneQueryHandler handler = StandInHandler.builder(cache, new HytaleOneQueryMetrics()).build();
+
+        Channel channel = new Bootstrap()
+                .group(group)
+                .channel(epoll ? EpollDatagramChannel.class : NioDatagramChannel.class)
+                .handler(new ChannelInitializer<DatagramChannel>() {
+                    @Override
+                    protected void initChannel(@Nonnull DatagramChannel ch) {
+                        ch.pipeline().addLast(handler, new ChannelInboundHandlerAdapter() {
+                            @Override
+                            public void channelRead(@Nonnull ChannelHandlerContext ctx, @Nonnull Object msg) {
+                                gameForwarded.increment();
+                                ReferenceCountUtil.release(msg);
+                            }
+                        });
+                    }
+                })
+                .bind(new InetSocketAddress("127.0.0.1", 0)).sync().channel();
+        return (InetSocketAddress) channel.localAddress();
+    }
+
+    @Nonnull
+    private List<Sender> startSenders(@Nonnull EventLoopGroup group, boolean epoll,
+                                      @Nonnull InetSocketAddress target) throws InterruptedException {
+        // Each sender emits its share of the rate in ticks of at least one millisecond
+        double perSender = (double) settings.rate / settings.senders;
+        long tickMicros = Math.max(1000, Math.min(100_000, (long) (1_000_000 / Math.max(perSender, 1e-3))));
+        double packetsPerTick = perSender * tickMicros / 1_000_000.0;
+
+        List<Sender> senders = new ArrayList<>(settings.senders);
+        for (int i = 0; i < settings.senders; i++) {
+            Sender sender = new Sender(target, packetsPerTick);
+            sender.channel = new Bootstrap()
+                    .group(group)
+                    .channel(epoll ? EpollDatagramChannel.class : NioDatagramChannel.class)
+                    .handler(sender)
+                    .bind(new InetSocketAddress(target.getAddress(), 0)).sync().channel();
+            senders.add(sender);
+        }
+        for (Sender sender : senders) {
+            // Spread the first ticks so senders do not fire in lockstep
+            long delay = ThreadLocalRandom.current().nextLong(tickMicros);
+            sender.channel.eventLoop().scheduleAtFixedRate(sender::tick, delay, tickMicros, TimeUnit.MICROSECONDS);
+        }
+        return senders;
+    }
+
+    /**
+     * One sender socket. All state is confined to the socket's event loop.
+     */
+    private final class Sender extends SimpleChannelInboundHandler<DatagramPacket> {
+
+        private final InetSocketAddress target;
+        private final double packetsPerTick;
+        // Send time by nonce, 0 when answered or expired. Nonces in [oldest, next) may be pending.
+        private final long[] sentAt;
+        private final int mask;
+        private int nextNonce = ThreadLocalRandom.current().nextInt();
+        private int oldestNonce = nextNonce;
+        private Channel channel;
+        private double credit;
+        private boolean stopped;
+
+        private Sender(@Nonnull InetSocketAddress target, double packetsPerTick) {
+            this.target = target;
+            this.packetsPerTick = packetsPerTick;
+
+            // Room for two timeouts worth of queries in flight
+            long inFlight = (long) (packetsPerTick * 2 * settings.timeoutMillis) + 1024;
+            int capacity = Integer.highestOneBit((int) Math.min(inFlight, 1 << 24) - 1) << 1;
+            this.sentAt = new long[capacity];
+            this.mask = capacity - 1;
+        }
+
+        private void tick() {
+            if (stopped) {
+                return;
+            }
+            expire(System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(settings.timeoutMillis));
+
+            credit += packetsPerTick;
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            boolean wrote = false;
+            while (credit >= 1) {
+                credit--;
+                wrote = true;
+                if (random.nextDouble() < settings.gameRatio) {
+                    channel.write(new DatagramPacket(gamePacket.retainedDuplicate(), target));
+                    gameSent.increment();
+                } else {
+                    sendQuery(random.nextDouble() < settings.fullRatio ? fullRequest : basicRequest);
+                }
+            }
+            if (wrote) {
+                channel.flush();
+            }
+        }
+
+        private void sendQuery(@Nonnull ByteBuf template) {
+            // Ring full, the oldest query is given up
+            if (nextNonce - oldestNonce > mask) {
+                retireOldest();
+            }
+            int nonce = nextNonce++;
+            sentAt[nonce & mask] = System.nanoTime();
+
+            ByteBuf request = channel.alloc().directBuffer(HytaleOneQueryProtocol.NONCE_REQUEST_SIZE)
+                    .writeBytes(template, 0, HytaleOneQueryProtocol.NONCE_REQUEST_SIZE);
+            request.setIntLE(HytaleOneQueryProtocol.MIN_REQUEST_SIZE, nonce);
+            channel.write(new DatagramPacket(request, target));
+            queriesSent.increment();
+        }
+
+        @Override
+        protected void channelRead0(@Nonnull ChannelHandlerContext ctx, @Nonnull DatagramPacket reply) {
+            ByteBuf content = reply.content();
+            if (content.readableBytes() < HytaleOneQueryProtocol.NONCE_RESPONSE_HEADER_SIZE
+                    || (content.getByte(content.readerIndex() + HytaleOneQueryProtocol.RESPONSE_MAGIC.length)
+                    & HytaleOneQueryProtocol.FLAG_NONCE) == 0) {
+                return;
+            }
+            int nonce = content.getIntLE(content.readerIndex() + HytaleOneQueryProtocol.MIN_REQUEST_SIZE);
+            int age = nextNonce - nonce;
+            if (age <= 0 || age > nextNonce - oldestNonce || sentAt[nonce & mask] == 0) {
+                // Arrived after its timeout, already counted as lost
+                return;
+            }
+
+            long latency = System.nanoTime() - sentAt[nonce & mask];
+            sentAt[nonce & mask] = 0;
+            intervalLatency.record(latency);
+            totalLatency.record(latency);
+            replies.increment();
+        }
+
+        private void stop() {
+            stopped = true;
+        }
+
+        private void expireAll() {
+            while (oldestNonce != nextNonce) {
+                retireOldest();
+            }
+        }
+
+        private void expire(long sentBefore) {
+            while (oldestNonce != nextNonce) {
+                long sent = sentAt[oldestNonce & mask];
+                if (sent != 0 && sent - sentBefore >= 0) {
+                    return;
+                }
+                retireOldest();
+            }
+        }
+
+        private void retireOldest() {
+            int slot = oldestNonce++ & mask;
+            if (sentAt[slot] != 0) {
+                sentAt[slot] = 0;
+                lost.increment();
+            }
+        }
+    }
+
+    @Nonnull
+    private static EventLoopGroup group(boolean epoll, int threads) {
+        return epoll ? new EpollEventLoopGroup(threads) : new NioEventLoopGroup(threads);
+    }
+
+    @Nonnull
+    private static ByteBuf request(byte type) {
+        ByteBuf buf = PooledByteBufAllocator.DEFAULT.directBuffer(HytaleOneQueryProtocol.NONCE_REQUEST_SIZE);
+        buf.writeBytes(HytaleOneQueryProtocol.REQUEST_MAGIC);
+        buf.writeByte(type | HytaleOneQueryProtocol.FLAG_NONCE);
+        buf.writeIntLE(0);
+        return buf;
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    /**
+     * Command line options, all given as --name value.
+     */
+    private record Settings(InetSocketAddress target, String transport, int rate, int senders, int durationSeconds,
+                            double fullRatio, double gameRatio, int players, int clientThreads, long timeoutMillis) {
+
+        @Nonnull
+        static Settings parse(@Nonnull String[] args) {
+            Map<String, String> options = new HashMap<>();
+            for (int i = 0; i + 1 < args.length; i += 2) {
+                if (!args[i].startsWith("--")) {
+                    throw new IllegalArgumentException("Expected --option value, got " + args[i]);
+                }
+                options.put(args[i].substring(2), args[i + 1]);
+            }
+            if (args.length % 2 != 0) {
+                throw new IllegalArgumentException("Missing value for " + args[args.length - 1]);
+            }
+
+            InetSocketAddress target = null;
+            String address = options.remove("target");
+            if (address != null) {
+                int colon = address.lastIndexOf(':');
+                target = new InetSocketAddress(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+            }
+            Settings settings = new Settings(target,
+                    options.getOrDefault("transport", "auto"),
+                    Integer.parseInt(options.getOrDefault("rate", "20000")),
+                    Integer.parseInt(options.getOrDefault("senders", "256")),
+                    Integer.parseInt(options.getOrDefault("duration", "10")),
+                    Double.parseDouble(options.getOrDefault("full-ratio", "0.1")),
+                    Double.parseDouble(options.getOrDefault("game-ratio", "0.5")),
+                    Integer.parseInt(options.getOrDefault("players", "100")),
+                    Integer.parseInt(options.getOrDefault("client-threads",
+                            String.valueOf(Math.max(1, Runtime.getRuntime().availableProcessors() / 2)))),
+                    Long.parseLong(options.getOrDefault("timeout", "1000")));
+            options.keySet().removeAll(List.of("transport", "rate", "senders", "duration", "full-ratio",
+                    "game-ratio", "players", "client-threads", "timeout"));
+            if (!options.isEmpty()) {
+                throw new IllegalArgumentException("Unknown options " + options.keySet());
+            }
+            return settings;
+        }
+    }
+}
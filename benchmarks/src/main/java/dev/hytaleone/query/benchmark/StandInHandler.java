@@ -0,0 +1,27 @@
+package dev.hytaleone.query.benchmark;
+
+import com.hypixel.hytale.logger.HytaleLogger;
+import dev.hytaleone.query.HytaleOneQueryCache;
+import dev.hytaleone.query.HytaleOneQueryHandler;
+import dev.hytaleone.query.HytaleOneQueryMetrics;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Query handlers for the harnesses, built the way the plugin builds them.
+ */
+public final class StandInHandler {
+
+    private StandInHandler() {
+    }
+
+    /**
+     * Handler without rate limits or challenge, everything optional is disabled.
+     * Harnesses that need more configure the returned builder.
+     */
+    @Nonnull
+    public static HytaleOneQueryHandler.Builder builder(@Nonnull HytaleOneQueryCache cache,
+                                                        @Nonnull HytaleOneQueryMetrics metrics) {
+        return HytaleOneQueryHandler.builder(new HytaleLogger(), cache, metrics);
+    }
+}
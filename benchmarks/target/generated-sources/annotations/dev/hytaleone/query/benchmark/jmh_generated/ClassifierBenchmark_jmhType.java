@@ -0,0 +1,4 @@
+package dev.hytaleone.query.benchmark.jmh_generated;
+public class ClassifierBenchmark_jmhType extends ClassifierBenchmark_jmhType_B3 {
+}
+
@@ -0,0 +1,4 @@
+package dev.hytaleone.query.benchmark.jmh_generated;
+public class FullResponseBenchmark_jmhType extends FullResponseBenchmark_jmhType_B3 {
+}
+
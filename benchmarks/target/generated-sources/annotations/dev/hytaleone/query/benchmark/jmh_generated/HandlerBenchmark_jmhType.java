@@ -0,0 +1,4 @@
+package dev.hytaleone.query.benchmark.jmh_generated;
+public class HandlerBenchmark_jmhType extends HandlerBenchmark_jmhType_B3 {
+}
+
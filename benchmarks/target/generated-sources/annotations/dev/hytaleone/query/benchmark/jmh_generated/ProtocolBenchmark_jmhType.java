@@ -0,0 +1,4 @@
+package dev.hytaleone.query.benchmark.jmh_generated;
+public class ProtocolBenchmark_jmhType extends ProtocolBenchmark_jmhType_B3 {
+}
+
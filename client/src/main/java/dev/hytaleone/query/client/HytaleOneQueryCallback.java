@@ -0,0 +1,22 @@
+package dev.hytaleone.query.client;
+
+import javax.annotation.Nonnull;
+import java.net.InetSocketAddress;
+
+/**
+ * Receives the outcome of a query. Called on the client I/O thread, so
+ * implementations must not block.
+ */
+public interface HytaleOneQueryCallback {
+
+    /**
+     * Called with the decoded reply. The result is only valid during the call,
+     * use {@link HytaleOneQueryResult#toServerInfo()} to keep it.
+     */
+    void onReply(@Nonnull HytaleOneQueryResult result);
+
+    /**
+     * Called when the query timed out after all retries, or could not be sent or decoded.
+     */
+    void onFailure(@Nonnull InetSocketAddress address, @Nonnull Throwable cause);
+}
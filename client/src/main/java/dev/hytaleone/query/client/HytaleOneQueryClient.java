@@ -0,0 +1,474 @@
+package dev.hytaleone.query.client;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Asynchronous client for the HytaleOne query protocol.
+ * All queries share one non-blocking datagram socket served by a single I/O thread.
+ * Every request carries a nonce that indexes its in-flight slot, so replies from
+ * any number of servers are matched in O(1). Timeouts and retries run on a timer
+ * wheel, and at most {@code maxInFlight} queries are on the wire at once; further
+ * queries wait in submission order. Full queries ask for compressed replies.
+ */
+public final class HytaleOneQueryClient implements AutoCloseable {
+
+    public static final int DEFAULT_PORT = 5520;
+
+    private static final byte[] REQUEST_MAGIC = "HYQUERY\0".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] RESPONSE_MAGIC = "HYREPLY\0".getBytes(StandardCharsets.US_ASCII);
+
+    private static final byte TYPE_BASIC = 0x00;
+    private static final byte TYPE_FULL = 0x01;
+    private static final byte TYPE_CHALLENGE = 0x02;
+    private static final byte FLAG_COMPRESSED = 0x40;
+    private static final byte FLAG_NONCE = (byte) 0x80;
+    private static final byte TYPE_MASK = 0x3F;
+    private static final byte COMPRESSION_DEFLATE = 0x01;
+
+    // Reply header with nonce: magic + type + nonce
+    private static final int HEADER_SIZE = RESPONSE_MAGIC.length + 1 + 4;
+    private static final int CHALLENGE_REPLY_SIZE = HEADER_SIZE + 8;
+    private static final int COMPRESSED_HEADER_SIZE = HEADER_SIZE + 5;
+
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final int WHEEL_SIZE = 512;
+    private static final int MAX_DATAGRAM = 65536;
+    private static final int MAX_READS_PER_LOOP = 4096;
+
+    private final DatagramChannel channel;
+    private final Selector selector;
+    private final Thread ioThread;
+    private final long timeoutNanos;
+    private final int retries;
+    private final boolean useChallenge;
+
+    private final ConcurrentLinkedQueue<Submission> submissions = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+    private volatile boolean running = true;
+
+    // Owned by the I/O thread
+    private final Query[] slots;
+    private final int slotBits;
+    private final ArrayDeque<Query> freeSlots = new ArrayDeque<>();
+    private final ArrayDeque<Submission> waiting = new ArrayDeque<>();
+    private final HytaleOneTimerWheel wheel;
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(MAX_DATAGRAM);
+    private final ByteBuffer sendBuffer = ByteBuffer.allocateDirect(64);
+    private ByteBuffer inflated = ByteBuffer.allocate(MAX_DATAGRAM);
+    private final Inflater inflater = new Inflater();
+    private final HytaleOneQueryResult result = new HytaleOneQueryResult();
+
+    /**
+     * Create a client with 1024 queries in flight, a 1 second timeout and one retry.
+     */
+    public HytaleOneQueryClient() throws IOException {
+        this(1024, 1000, 1, false);
+    }
+
+    /**
+     * @param maxInFlight   queries on the wire at once
+     * @param timeoutMillis time to wait for each datagram before retrying
+     * @param retries       resends after the first timeout
+     * @param useChallenge  run the challenge handshake before full queries, needed for
+     *                      servers with RequireChallenge enabled
+     */
+    public HytaleOneQueryClient(int maxInFlight, long timeoutMillis, int retries, boolean useChallenge)
+            throws IOException {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("maxInFlight must be positive");
+        }
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(timeoutMillis, 1));
+        this.retries = Math.max(retries, 0);
+        this.useChallenge = useChallenge;
+
+        int capacity = Integer.highestOneBit(Math.max(maxInFlight, 2) - 1) << 1;
+        this.slotBits = Integer.numberOfTrailingZeros(capacity);
+        this.slots = new Query[capacity];
+        for (int i = 0; i < capacity; i++) {
+            slots[i] = new Query(i);
+            if (i < maxInFlight) {
+                freeSlots.add(slots[i]);
+            }
+        }
+        this.wheel = new HytaleOneTimerWheel(TICK_NANOS, WHEEL_SIZE, System.nanoTime());
+
+        this.channel = DatagramChannel.open();
+        this.selector = Selector.open();
+        try {
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, 4 << 20);
+            channel.bind(null);
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ);
+        } catch (IOException e) {
+            channel.close();
+            selector.close();
+            throw e;
+        }
+
+        this.ioThread = new Thread(this::run, "HytaleOne-QueryClient");
+        ioThread.setDaemon(true);
+        ioThread.start();
+    }
+
+    /**
+     * Query the server counts, name, MOTD and version.
+     * The future completes on the I/O thread, use async stages for heavy work.
+     */
+    @Nonnull
+    public CompletableFuture<HytaleOneServerInfo> queryBasic(@Nonnull InetSocketAddress address) {
+        return queryAsync(address, false);
+    }
+
+    /**
+     * Query everything in the basic reply plus the player and plugin lists.
+     * The future completes on the I/O thread, use async stages for heavy work.
+     */
+    @Nonnull
+    public CompletableFuture<HytaleOneServerInfo> queryFull(@Nonnull InetSocketAddress address) {
+        return queryAsync(address, true);
+    }
+
+    /**
+     * Query a server and hand the reply to a callback without copying it.
+     */
+    public void query(@Nonnull InetSocketAddress address, boolean full, @Nonnull HytaleOneQueryCallback callback) {
+        if (address.isUnresolved()) {
+            callback.onFailure(address, new IOException("Unresolved address " + address));
+            return;
+        }
+        if (!running) {
+            callback.onFailure(address, new ClosedChannelException());
+            return;
+        }
+        submissions.add(new Submission(address, full, callback));
+        if (wakeupPending.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Stop the I/O thread and fail all queries that are still pending.
+     */
+    @Override
+    public void close() throws IOException {
+        running = false;
+        selector.wakeup();
+        try {
+            ioThread.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+        selector.close();
+    }
+
+    @Nonnull
+    private CompletableFuture<HytaleOneServerInfo> queryAsync(@Nonnull InetSocketAddress address, boolean full) {
+        CompletableFuture<HytaleOneServerInfo> future = new CompletableFuture<>();
+        query(address, full, new HytaleOneQueryCallback() {
+            @Override
+            public void onReply(@Nonnull HytaleOneQueryResult result) {
+                future.complete(result.toServerInfo());
+            }
+
+            @Override
+            public void onFailure(@Nonnull InetSocketAddress address, @Nonnull Throwable cause) {
+                future.completeExceptionally(cause);
+            }
+        });
+        return future;
+    }
+
+    private void run() {
+        try {
+            while (running) {
+                long waitNanos = wheel.nanosUntilNextTick(System.nanoTime());
+                selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(waitNanos)));
+                selector.selectedKeys().clear();
+                wakeupPending.set(false);
+
+                receiveAll();
+                startWaiting();
+                wheel.advance(System.nanoTime(), entry -> onTimeout((Query) entry));
+            }
+        } catch (IOException e) {
+            failAll(e);
+            return;
+        } finally {
+            running = false;
+            inflater.end();
+        }
+        failAll(new ClosedChannelException());
+    }
+
+    private void receiveAll() throws IOException {
+        for (int i = 0; i < MAX_READS_PER_LOOP; i++) {
+            receiveBuffer.clear();
+            SocketAddress sender = channel.receive(receiveBuffer);
+            if (sender == null) {
+                return;
+            }
+            receiveBuffer.flip();
+            onDatagram((InetSocketAddress) sender, receiveBuffer);
+        }
+    }
+
+    private void startWaiting() {
+        Submission submission;
+        while ((submission = submissions.poll()) != null) {
+            waiting.add(submission);
+        }
+        while (!waiting.isEmpty() && !freeSlots.isEmpty()) {
+            Query query = freeSlots.poll();
+            query.start(waiting.poll());
+            send(query);
+        }
+    }
+
+    private void onDatagram(@Nonnull InetSocketAddress sender, @Nonnull ByteBuffer buf) {
+        int length = buf.limit();
+        if (length < HEADER_SIZE) {
+            return;
+        }
+        for (int i = 0; i < RESPONSE_MAGIC.length; i++) {
+            if (buf.get(i) != RESPONSE_MAGIC[i]) {
+                return;
+            }
+        }
+        byte type = buf.get(RESPONSE_MAGIC.length);
+        if ((type & FLAG_NONCE) == 0) {
+            return;
+        }
+
+        // Stale, duplicate or spoofed replies fail one of these checks
+        int nonce = Integer.reverseBytes(buf.getInt(RESPONSE_MAGIC.length + 1));
+        Query query = slots[nonce & (slots.length - 1)];
+        if (!query.busy || query.nonce != nonce || !sender.equals(query.address)) {
+            return;
+        }
+
+        int baseType = type & TYPE_MASK;
+        if (baseType == TYPE_CHALLENGE) {
+            if (!query.challenging || length < CHALLENGE_REPLY_SIZE) {
+                return;
+            }
+            query.token = Long.reverseBytes(buf.getLong(HEADER_SIZE));
+            query.challenging = false;
+            send(query);
+            return;
+        }
+        if (query.challenging || baseType != (query.full ? TYPE_FULL : TYPE_BASIC)) {
+            return;
+        }
+
+        long latency = System.nanoTime() - query.sentAt;
+        boolean decoded;
+        try {
+            if ((type & FLAG_COMPRESSED) != 0) {
+                int size = inflate(buf, length);
+                decoded = size >= 0 && result.decode(inflated, 0, size, query.full, query.address, latency);
+            } else {
+                decoded = result.decode(buf, HEADER_SIZE, length, query.full, query.address, latency);
+            }
+        } catch (RuntimeException e) {
+            decoded = false;
+        }
+
+        HytaleOneQueryCallback callback = query.callback;
+        InetSocketAddress address = query.address;
+        finish(query);
+        if (decoded) {
+            notifyReply(callback);
+        } else {
+            notifyFailure(callback, address, new ProtocolException("Malformed reply from " + address));
+        }
+    }
+
+    /**
+     * Inflate a compressed reply body into the reusable buffer.
+     *
+     * @return the body length, or -1 if it cannot be inflated
+     */
+    private int inflate(@Nonnull ByteBuffer buf, int length) {
+        if (length < COMPRESSED_HEADER_SIZE || buf.get(HEADER_SIZE) != COMPRESSION_DEFLATE) {
+            return -1;
+        }
+        int size = Integer.reverseBytes(buf.getInt(HEADER_SIZE + 1));
+        if (size < 0 || size > 16 * MAX_DATAGRAM) {
+            return -1;
+        }
+        if (inflated.capacity() < size) {
+            inflated = ByteBuffer.allocate(Integer.highestOneBit(size) << 1);
+        }
+
+        inflater.reset();
+        inflater.setInput(buf.slice(COMPRESSED_HEADER_SIZE, length - COMPRESSED_HEADER_SIZE));
+        inflated.clear().limit(size);
+        try {
+            while (!inflater.finished() && inflated.hasRemaining()) {
+                if (inflater.inflate(inflated) == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    return -1;
+                }
+            }
+        } catch (DataFormatException e) {
+            return -1;
+        }
+        return inflater.finished() && inflated.position() == size ? size : -1;
+    }
+
+    private void onTimeout(@Nonnull Query query) {
+        if (!query.busy) {
+            return;
+        }
+        if (query.attempts <= retries) {
+            // Start over, a challenge token may have expired meanwhile
+            query.attempts++;
+            query.challenging = query.full && useChallenge;
+            send(query);
+            return;
+        }
+
+        HytaleOneQueryCallback callback = query.callback;
+        InetSocketAddress address = query.address;
+        finish(query);
+        notifyFailure(callback, address, new TimeoutException("No reply from " + address));
+    }
+
+    private void send(@Nonnull Query query) {
+        ByteBuffer buf = sendBuffer.clear();
+        buf.put(REQUEST_MAGIC);
+        if (query.challenging) {
+            // Padded to the reply size, servers ignore shorter challenge requests
+            buf.put((byte) (TYPE_CHALLENGE | FLAG_NONCE));
+            buf.putInt(Integer.reverseBytes(query.nonce));
+            buf.putLong(0L);
+        } else if (query.full) {
+            buf.put((byte) (TYPE_FULL | FLAG_COMPRESSED | FLAG_NONCE));
+            buf.putInt(Integer.reverseBytes(query.nonce));
+            if (useChallenge) {
+                buf.putLong(Long.reverseBytes(query.token));
+            }
+        } else {
+            buf.put((byte) (TYPE_BASIC | FLAG_NONCE));
+            buf.putInt(Integer.reverseBytes(query.nonce));
+        }
+        buf.flip();
+
+        query.sentAt = System.nanoTime();
+        wheel.schedule(query, timeoutNanos, query.sentAt);
+        try {
+            // A full socket buffer drops the datagram, the timeout retries it
+            channel.send(buf, query.address);
+        } catch (IOException e) {
+            HytaleOneQueryCallback callback = query.callback;
+            InetSocketAddress address = query.address;
+            finish(query);
+            notifyFailure(callback, address, e);
+        }
+    }
+
+    private void finish(@Nonnull Query query) {
+        wheel.cancel(query);
+        query.reset();
+        freeSlots.add(query);
+    }
+
+    private void failAll(@Nonnull Throwable cause) {
+        for (Query query : slots) {
+            if (query.busy) {
+                HytaleOneQueryCallback callback = query.callback;
+                InetSocketAddress address = query.address;
+                finish(query);
+                notifyFailure(callback, address, cause);
+            }
+        }
+        Submission submission;
+        while ((submission = submissions.poll()) != null) {
+            waiting.add(submission);
+        }
+        while ((submission = waiting.poll()) != null) {
+            notifyFailure(submission.callback, submission.address, cause);
+        }
+    }
+
+    private void notifyReply(@Nonnull HytaleOneQueryCallback callback) {
+        try {
+            callback.onReply(result);
+        } catch (RuntimeException ignored) {
+            // A failing callback must not stop the I/O thread
+        }
+    }
+
+    private static void notifyFailure(@Nonnull HytaleOneQueryCallback callback, @Nonnull InetSocketAddress address,
+                                      @Nonnull Throwable cause) {
+        try {
+            callback.onFailure(address, cause);
+        } catch (RuntimeException ignored) {
+            // A failing callback must not stop the I/O thread
+        }
+    }
+
+    private record Submission(@Nonnull InetSocketAddress address, boolean full,
+                              @Nonnull HytaleOneQueryCallback callback) {
+    }
+
+    /**
+     * In-flight slot. The nonce holds the slot index in its low bits and a
+     * use counter above, so replies to an earlier use of the slot are ignored.
+     */
+    private final class Query extends HytaleOneTimerWheel.Entry {
+
+        private final int index;
+        private int uses;
+        private int nonce;
+        private boolean busy;
+        private InetSocketAddress address;
+        private boolean full;
+        private HytaleOneQueryCallback callback;
+        private boolean challenging;
+        private long token;
+        private int attempts;
+        private long sentAt;
+
+        private Query(int index) {
+            this.index = index;
+        }
+
+        private void start(@Nonnull Submission submission) {
+            this.uses++;
+            this.nonce = (uses << slotBits) | index;
+            this.busy = true;
+            this.address = submission.address;
+            this.full = submission.full;
+            this.callback = submission.callback;
+            this.challenging = full && useChallenge;
+            this.token = 0;
+            this.attempts = 1;
+        }
+
+        private void reset() {
+            this.busy = false;
+            this.address = null;
+            this.callback = null;
+        }
+    }
+}
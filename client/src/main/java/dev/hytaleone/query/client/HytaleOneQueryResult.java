@@ -0,0 +1,314 @@
+package dev.hytaleone.query.client;
+
+import javax.annotation.Nonnull;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Reusable view over a basic or full reply. Decoding only validates the layout and
+ * records field offsets, strings are read from the receive buffer when asked for.
+ * One instance is reused for every reply, it is only valid inside
+ * {@link HytaleOneQueryCallback#onReply(HytaleOneQueryResult)}.
+ */
+public final class HytaleOneQueryResult {
+
+    private static final int UUID_SIZE = 16;
+
+    private ByteBuffer buf;
+    private int limit;
+    private int position;
+
+    private InetSocketAddress address;
+    private boolean full;
+    private long latencyNanos;
+
+    private int serverNameOffset;
+    private int motdOffset;
+    private int currentPlayers;
+    private int maxPlayers;
+    private int hostPort;
+    private int versionOffset;
+    private int protocolVersion;
+    private int protocolHashOffset;
+
+    private int playerCount;
+    private int[] playerOffsets = new int[64];
+    private int pluginCount;
+    private int[] pluginOffsets = new int[16];
+    private long generation;
+
+    private byte[] scratch = new byte[256];
+
+    HytaleOneQueryResult() {
+    }
+
+    /**
+     * Decode the reply fields starting at the server name.
+     *
+     * @return false if the reply is truncated or malformed
+     */
+    boolean decode(@Nonnull ByteBuffer buf, int offset, int limit, boolean full,
+                   @Nonnull InetSocketAddress address, long latencyNanos) {
+        this.buf = buf;
+        this.limit = limit;
+        this.position = offset;
+        this.address = address;
+        this.full = full;
+        this.latencyNanos = latencyNanos;
+        this.playerCount = 0;
+        this.pluginCount = 0;
+        this.generation = 0;
+
+        serverNameOffset = skipString();
+        motdOffset = skipString();
+        if (motdOffset < 0 || !has(10)) {
+            return false;
+        }
+        currentPlayers = readIntLE();
+        maxPlayers = readIntLE();
+        hostPort = readShortLE();
+        versionOffset = skipString();
+        if (versionOffset < 0 || !has(4)) {
+            return false;
+        }
+        protocolVersion = readIntLE();
+        protocolHashOffset = skipString();
+        if (protocolHashOffset < 0) {
+            return false;
+        }
+        return !full || decodeLists();
+    }
+
+    private boolean decodeLists() {
+        // Every player entry takes at least a length prefix and a UUID
+        if (!has(4)) {
+            return false;
+        }
+        int players = readIntLE();
+        if (players < 0 || players > (limit - position) / (2 + UUID_SIZE)) {
+            return false;
+        }
+        if (playerOffsets.length < players) {
+            playerOffsets = new int[Integer.highestOneBit(players) << 1];
+        }
+        for (int i = 0; i < players; i++) {
+            playerOffsets[i] = skipString();
+            if (playerOffsets[i] < 0 || !has(UUID_SIZE)) {
+                return false;
+            }
+            position += UUID_SIZE;
+        }
+        playerCount = players;
+
+        if (!has(4)) {
+            return false;
+        }
+        int plugins = readIntLE();
+        if (plugins < 0 || plugins > (limit - position) / 5) {
+            return false;
+        }
+        if (pluginOffsets.length < plugins) {
+            pluginOffsets = new int[Integer.highestOneBit(plugins) << 1];
+        }
+        for (int i = 0; i < plugins; i++) {
+            pluginOffsets[i] = skipString();
+            if (pluginOffsets[i] < 0 || skipString() < 0 || !has(1)) {
+                return false;
+            }
+            position++;
+        }
+        pluginCount = plugins;
+
+        // Older servers end without a roster generation
+        if (has(8)) {
+            generation = Long.reverseBytes(buf.getLong(position));
+            position += 8;
+        }
+        return true;
+    }
+
+    @Nonnull
+    public InetSocketAddress getAddress() {
+        return address;
+    }
+
+    public boolean isFull() {
+        return full;
+    }
+
+    /**
+     * Round trip time of the datagram that was answered.
+     */
+    public long getLatencyNanos() {
+        return latencyNanos;
+    }
+
+    @Nonnull
+    public String getServerName() {
+        return readString(serverNameOffset);
+    }
+
+    @Nonnull
+    public String getMotd() {
+        return readString(motdOffset);
+    }
+
+    public int getCurrentPlayers() {
+        return currentPlayers;
+    }
+
+    public int getMaxPlayers() {
+        return maxPlayers;
+    }
+
+    public int getHostPort() {
+        return hostPort;
+    }
+
+    @Nonnull
+    public String getVersion() {
+        return readString(versionOffset);
+    }
+
+    public int getProtocolVersion() {
+        return protocolVersion;
+    }
+
+    @Nonnull
+    public String getProtocolHash() {
+        return readString(protocolHashOffset);
+    }
+
+    /**
+     * Number of players in a full reply, 0 for basic replies.
+     */
+    public int getPlayerCount() {
+        return playerCount;
+    }
+
+    @Nonnull
+    public String getPlayerName(int index) {
+        return readString(playerOffsets[checkIndex(index, playerCount)]);
+    }
+
+    @Nonnull
+    public UUID getPlayerUuid(int index) {
+        int offset = playerOffsets[checkIndex(index, playerCount)];
+        int uuidOffset = offset + 2 + stringLength(offset);
+        return new UUID(buf.getLong(uuidOffset), buf.getLong(uuidOffset + 8));
+    }
+
+    /**
+     * Number of plugins in a full reply, 0 for basic replies.
+     */
+    public int getPluginCount() {
+        return pluginCount;
+    }
+
+    @Nonnull
+    public String getPluginIdentifier(int index) {
+        return readString(pluginOffsets[checkIndex(index, pluginCount)]);
+    }
+
+    @Nonnull
+    public String getPluginVersion(int index) {
+        int offset = pluginOffsets[checkIndex(index, pluginCount)];
+        return readString(offset + 2 + stringLength(offset));
+    }
+
+    public boolean isPluginEnabled(int index) {
+        int offset = pluginOffsets[checkIndex(index, pluginCount)];
+        int versionOffset = offset + 2 + stringLength(offset);
+        return buf.get(versionOffset + 2 + stringLength(versionOffset)) != 0;
+    }
+
+    /**
+     * Roster generation of a full reply, 0 if the server does not send one.
+     */
+    public long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Copy the reply into an immutable object that outlives the callback.
+     */
+    @Nonnull
+    public HytaleOneServerInfo toServerInfo() {
+        List<HytaleOneServerInfo.Player> players = new ArrayList<>(playerCount);
+        for (int i = 0; i < playerCount; i++) {
+            players.add(new HytaleOneServerInfo.Player(getPlayerName(i), getPlayerUuid(i)));
+        }
+        List<HytaleOneServerInfo.Plugin> plugins = new ArrayList<>(pluginCount);
+        for (int i = 0; i < pluginCount; i++) {
+            plugins.add(new HytaleOneServerInfo.Plugin(getPluginIdentifier(i), getPluginVersion(i),
+                    isPluginEnabled(i)));
+        }
+        return new HytaleOneServerInfo(address, full, getServerName(), getMotd(), currentPlayers, maxPlayers,
+                hostPort, getVersion(), protocolVersion, getProtocolHash(), List.copyOf(players),
+                List.copyOf(plugins), generation, latencyNanos);
+    }
+
+    @Override
+    public String toString() {
+        return "HytaleOneQueryResult{" + address + ", " + getServerName() + ", " + currentPlayers + "/"
+                + maxPlayers + (full ? ", " + playerCount + " players listed" : "") + "}";
+    }
+
+    private boolean has(int bytes) {
+        return limit - position >= bytes;
+    }
+
+    private int readIntLE() {
+        int value = Integer.reverseBytes(buf.getInt(position));
+        position += 4;
+        return value;
+    }
+
+    private int readShortLE() {
+        int value = Short.reverseBytes(buf.getShort(position)) & 0xFFFF;
+        position += 2;
+        return value;
+    }
+
+    /**
+     * Skip a length-prefixed string and return its offset, or -1 if it does not fit.
+     */
+    private int skipString() {
+        if (!has(2)) {
+            return -1;
+        }
+        int offset = position;
+        int length = stringLength(offset);
+        if (limit - position - 2 < length) {
+            return -1;
+        }
+        position += 2 + length;
+        return offset;
+    }
+
+    private int stringLength(int offset) {
+        return Short.reverseBytes(buf.getShort(offset)) & 0xFFFF;
+    }
+
+    @Nonnull
+    private String readString(int offset) {
+        int length = stringLength(offset);
+        if (scratch.length < length) {
+            scratch = Arrays.copyOf(scratch, Integer.highestOneBit(length) << 1);
+        }
+        buf.get(offset + 2, scratch, 0, length);
+        return new String(scratch, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private static int checkIndex(int index, int count) {
+        if (index < 0 || index >= count) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for length " + count);
+        }
+        return index;
+    }
+}
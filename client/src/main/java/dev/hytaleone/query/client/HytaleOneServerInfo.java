@@ -0,0 +1,22 @@
+package dev.hytaleone.query.client;
+
+import javax.annotation.Nonnull;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Immutable copy of a query reply. Player and plugin lists are empty for basic queries.
+ */
+public record HytaleOneServerInfo(@Nonnull InetSocketAddress address, boolean full, @Nonnull String serverName,
+                                  @Nonnull String motd, int currentPlayers, int maxPlayers, int hostPort,
+                                  @Nonnull String version, int protocolVersion, @Nonnull String protocolHash,
+                                  @Nonnull List<Player> players, @Nonnull List<Plugin> plugins,
+                                  long generation, long latencyNanos) {
+
+    public record Player(@Nonnull String name, @Nonnull UUID uuid) {
+    }
+
+    public record Plugin(@Nonnull String identifier, @Nonnull String version, boolean enabled) {
+    }
+}
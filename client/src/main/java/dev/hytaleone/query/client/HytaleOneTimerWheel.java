@@ -0,0 +1,112 @@
+package dev.hytaleone.query.client;
+
+import javax.annotation.Nonnull;
+import java.util.function.Consumer;
+
+/**
+ * Hashed timer wheel for request timeouts. Scheduling and cancelling are O(1),
+ * deadlines are rounded up to whole ticks. Not thread-safe, owned by the I/O thread.
+ */
+final class HytaleOneTimerWheel {
+
+    private final Entry[] buckets;
+    private final int mask;
+    private final long tickNanos;
+    private final long startNanos;
+    private long currentTick;
+
+    HytaleOneTimerWheel(long tickNanos, int size, long nowNanos) {
+        int buckets = Integer.highestOneBit(Math.max(size, 2) - 1) << 1;
+        this.buckets = new Entry[buckets];
+        this.mask = buckets - 1;
+        this.tickNanos = tickNanos;
+        this.startNanos = nowNanos;
+    }
+
+    /**
+     * Schedule an entry, replacing its previous deadline.
+     */
+    void schedule(@Nonnull Entry entry, long delayNanos, long nowNanos) {
+        cancel(entry);
+        long ticks = Math.max(1, (delayNanos + tickNanos - 1) / tickNanos);
+        entry.deadlineTick = Math.max(tickOf(nowNanos), currentTick) + ticks;
+
+        int bucket = (int) (entry.deadlineTick & mask);
+        entry.next = buckets[bucket];
+        if (entry.next != null) {
+            entry.next.prev = entry;
+        }
+        buckets[bucket] = entry;
+        entry.scheduled = true;
+    }
+
+    void cancel(@Nonnull Entry entry) {
+        if (!entry.scheduled) {
+            return;
+        }
+        if (entry.prev != null) {
+            entry.prev.next = entry.next;
+        } else {
+            buckets[(int) (entry.deadlineTick & mask)] = entry.next;
+        }
+        if (entry.next != null) {
+            entry.next.prev = entry.prev;
+        }
+        entry.prev = null;
+        entry.next = null;
+        entry.scheduled = false;
+    }
+
+    /**
+     * Fire all entries whose deadline passed. Expired entries are unlinked before
+     * the handler runs, so the handler may schedule them again.
+     */
+    void advance(long nowNanos, @Nonnull Consumer<Entry> expired) {
+        long target = tickOf(nowNanos);
+        while (currentTick < target) {
+            currentTick++;
+            int bucket = (int) (currentTick & mask);
+
+            Entry due = null;
+            Entry entry = buckets[bucket];
+            while (entry != null) {
+                Entry next = entry.next;
+                // Entries more than one revolution ahead stay in the bucket
+                if (entry.deadlineTick <= currentTick) {
+                    cancel(entry);
+                    entry.next = due;
+                    due = entry;
+                }
+                entry = next;
+            }
+            while (due != null) {
+                Entry next = due.next;
+                due.next = null;
+                expired.accept(due);
+                due = next;
+            }
+        }
+    }
+
+    /**
+     * Time until the next tick is due.
+     */
+    long nanosUntilNextTick(long nowNanos) {
+        return Math.max(0, startNanos + (currentTick + 1) * tickNanos - nowNanos);
+    }
+
+    private long tickOf(long nowNanos) {
+        return (nowNanos - startNanos) / tickNanos;
+    }
+
+    /**
+     * Intrusive list node, extended by anything that needs a timeout.
+     */
+    static class Entry {
+
+        private Entry prev;
+        private Entry next;
+        private long deadlineTick;
+        private boolean scheduled;
+    }
+}
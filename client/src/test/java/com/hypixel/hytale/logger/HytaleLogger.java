@@ -0,0 +1,56 @@
+package com.hypixel.hytale.logger;
+
+import javax.annotation.Nonnull;
+import java.util.logging.Level;
+
+/**
+ * Stand-in for the server logger so the plugin classes run in the tests without the server jar.
+ * Only warnings and errors are printed.
+ */
+public class HytaleLogger {
+
+    private static final Api DISCARD = new Api(null, null);
+
+    @Nonnull
+    public Api at(@Nonnull Level level) {
+        return level.intValue() >= Level.WARNING.intValue() ? new Api(level, null) : DISCARD;
+    }
+
+    public static final class Api {
+
+        private final Level level;
+        private final Throwable cause;
+
+        private Api(Level level, Throwable cause) {
+            this.level = level;
+            this.cause = cause;
+        }
+
+        @Nonnull
+        public Api withCause(Throwable cause) {
+            return level != null ? new Api(level, cause) : this;
+        }
+
+        public void log(@Nonnull String message) {
+            log(message, new Object[0]);
+        }
+
+        public void log(@Nonnull String message, Object arg) {
+            log(message, new Object[]{arg});
+        }
+
+        public void log(@Nonnull String message, Object arg1, Object arg2) {
+            log(message, new Object[]{arg1, arg2});
+        }
+
+        public void log(@Nonnull String message, Object... args) {
+            if (level == null) {
+                return;
+            }
+            System.err.println("[" + level + "] " + String.format(message, args));
+            if (cause != null) {
+                cause.printStackTrace();
+            }
+        }
+    }
+}
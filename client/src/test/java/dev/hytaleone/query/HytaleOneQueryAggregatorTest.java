@@ -0,0 +1,210 @@
+package dev.hytaleone.query;
+
+import com.hypixel.hytale.logger.HytaleLogger;
+import dev.hytaleone.query.client.HytaleOneQueryClient;
+import dev.hytaleone.query.client.HytaleOneServerInfo;
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.annotation.Nonnull;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs aggregator mode against backend servers on localhost and checks the merged cluster
+ * view through the aggregator's own query port. The backends require a challenge token, the
+ * first one has a roster that takes several poll rounds of player pages to sync, and one
+ * extra backend address has no server behind it.
+ */
+class HytaleOneQueryAggregatorTest {
+
+    private static final int BACKENDS = 4;
+    private static final int BACKEND_MAX_PLAYERS = 100;
+    private static final int LARGE_ROSTER = 1000;
+    private static final int POLL_MILLIS = 100;
+
+    // Requests each backend gets per poll once synced: a basic query and a roster delta,
+    // plus a challenge when a token is refreshed
+    private static final int REQUESTS_PER_POLL = 3;
+
+    private final List<HytaleOneQueryCache> caches = new ArrayList<>();
+    private final List<Channel> channels = new ArrayList<>();
+    private final List<HytaleOneQueryMetrics> backendMetrics = new ArrayList<>();
+    private final List<HytaleOnePlayerRoster> backendRosters = new ArrayList<>();
+    private final int[] players = new int[BACKENDS];
+    private EventLoopGroup group;
+    private HytaleOneQueryAggregator aggregator;
+    private HytaleOneQueryClient client;
+    private InetSocketAddress entry;
+    private int totalPlayers;
+
+    @BeforeEach
+    void startCluster() throws Exception {
+        group = new NioEventLoopGroup(1);
+        List<InetSocketAddress> backends = new ArrayList<>();
+        for (int i = 0; i < BACKENDS; i++) {
+            // Distinct counts seed distinct players
+            players[i] = i == 0 ? LARGE_ROSTER : 10 * (i + 1);
+            totalPlayers += players[i];
+            HytaleOneRosterJournal journal = new HytaleOneRosterJournal(256);
+            HytaleOnePlayerRoster roster = new HytaleOnePlayerRoster(journal);
+            StandInPlayers.populate(roster, players[i]);
+            backendRosters.add(roster);
+            HytaleOneQueryCache cache = start(new HytaleOneQueryCache(new HytaleLogger(), 1000, 1200,
+                    new StandInQuerySource(BACKEND_MAX_PLAYERS), roster, journal));
+            HytaleOneQueryMetrics metrics = new HytaleOneQueryMetrics();
+            backendMetrics.add(metrics);
+            HytaleOneQueryHandler handler = StandInServer.handler(cache, metrics)
+                    .challenge(new HytaleOneQueryChallenge(HytaleOneQueryChallenge.DEFAULT_WINDOW_SECONDS), true)
+                    .build();
+            Channel channel = StandInServer.bind(group, handler);
+            channels.add(channel);
+            backends.add((InetSocketAddress) channel.localAddress());
+        }
+        backends.add(StandInServer.unreachable(group));
+
+        HytaleOneRosterJournal journal = new HytaleOneRosterJournal(256);
+        HytaleOnePlayerRoster roster = new HytaleOnePlayerRoster(journal);
+        HytaleOneClusterQuerySource source = new HytaleOneClusterQuerySource(new StandInQuerySource(0));
+        HytaleOneQueryCache clusterCache = start(new HytaleOneQueryCache(new HytaleLogger(), 1000, 1200, source,
+                roster, journal));
+        entry = (InetSocketAddress) StandInServer.bind(group,
+                StandInServer.handler(clusterCache, new HytaleOneQueryMetrics()).build()).localAddress();
+
+        aggregator = new HytaleOneQueryAggregator(new HytaleLogger(), backends, roster, source, clusterCache,
+                POLL_MILLIS, POLL_MILLIS / 2);
+        aggregator.start();
+        client = new HytaleOneQueryClient(64, 500, 1, false);
+    }
+
+    @AfterEach
+    void stopCluster() throws Exception {
+        if (client != null) {
+            client.close();
+        }
+        if (aggregator != null) {
+            aggregator.stop();
+        }
+        group.shutdownGracefully(0, 1, TimeUnit.SECONDS).sync();
+        for (HytaleOneQueryCache cache : caches) {
+            cache.stop();
+        }
+    }
+
+    @Test
+    void mergesEveryBackendIncludingPagedRoster() throws Exception {
+        awaitCluster(totalPlayers, BACKENDS * BACKEND_MAX_PLAYERS);
+    }
+
+    @Test
+    void crawlerStormDoesNotReachBackends() throws Exception {
+        awaitCluster(totalPlayers, BACKENDS * BACKEND_MAX_PLAYERS);
+
+        long before = backendRequests();
+        long start = System.nanoTime();
+        List<CompletableFuture<HytaleOneServerInfo>> replies = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            replies.add(client.queryBasic(entry));
+        }
+        CompletableFuture.allOf(replies.toArray(new CompletableFuture<?>[0])).get(1, TimeUnit.MINUTES);
+        long polls = (System.nanoTime() - start) / TimeUnit.MILLISECONDS.toNanos(POLL_MILLIS) + 1;
+        long reached = backendRequests() - before;
+        assertTrue(reached <= (polls + 1) * BACKENDS * REQUESTS_PER_POLL,
+                reached + " backend requests in " + polls + " polls");
+    }
+
+    @Test
+    void joinsAndLeavesArriveAsDeltas() throws Exception {
+        awaitCluster(totalPlayers, BACKENDS * BACKEND_MAX_PLAYERS);
+
+        HytaleOnePlayerRoster changed = backendRosters.get(BACKENDS - 1);
+        List<UUID> joined = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            UUID uuid = new UUID(0x5EED, i);
+            changed.add(uuid, "Joined" + i);
+            joined.add(uuid);
+        }
+        changed.remove(joined.get(0));
+        changed.remove(joined.get(1));
+        awaitCluster(totalPlayers + 3, BACKENDS * BACKEND_MAX_PLAYERS);
+    }
+
+    @Test
+    void journalOverflowResyncsWithPages() throws Exception {
+        awaitCluster(totalPlayers, BACKENDS * BACKEND_MAX_PLAYERS);
+
+        // More changes than the journal keeps, the backend answers with a resync
+        HytaleOnePlayerRoster changed = backendRosters.get(BACKENDS - 1);
+        for (int i = 0; i < 300; i++) {
+            changed.add(new UUID(0x5EEE, i), "Burst" + i);
+        }
+        awaitCluster(totalPlayers + 300, BACKENDS * BACKEND_MAX_PLAYERS);
+    }
+
+    @Test
+    void downBackendKeepsPlayersForGracePeriod() throws Exception {
+        awaitCluster(totalPlayers, BACKENDS * BACKEND_MAX_PLAYERS);
+
+        channels.get(0).close().sync();
+        // A single missed poll is within the grace period
+        Thread.sleep(POLL_MILLIS);
+        assertCluster(query(), totalPlayers, BACKENDS * BACKEND_MAX_PLAYERS);
+        awaitCluster(totalPlayers - players[0], (BACKENDS - 1) * BACKEND_MAX_PLAYERS);
+    }
+
+    @Nonnull
+    private HytaleOneQueryCache start(@Nonnull HytaleOneQueryCache cache) {
+        cache.start();
+        caches.add(cache);
+        return cache;
+    }
+
+    /**
+     * Query the aggregator until it lists the expected players, a paged roster takes several polls.
+     */
+    private void awaitCluster(int expectedPlayers, int expectedMaxPlayers) throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        HytaleOneServerInfo info = query();
+        while (!matches(info, expectedPlayers, expectedMaxPlayers) && System.nanoTime() < deadline) {
+            Thread.sleep(POLL_MILLIS);
+            info = query();
+        }
+        assertCluster(info, expectedPlayers, expectedMaxPlayers);
+    }
+
+    @Nonnull
+    private HytaleOneServerInfo query() throws Exception {
+        return client.queryFull(entry).get(5, TimeUnit.SECONDS);
+    }
+
+    private static boolean matches(@Nonnull HytaleOneServerInfo info, int expectedPlayers, int expectedMaxPlayers) {
+        return info.currentPlayers() == expectedPlayers && info.players().size() == expectedPlayers
+                && info.maxPlayers() == expectedMaxPlayers;
+    }
+
+    private static void assertCluster(@Nonnull HytaleOneServerInfo info, int expectedPlayers,
+                                      int expectedMaxPlayers) {
+        assertEquals(expectedPlayers, info.currentPlayers(), "players");
+        assertEquals(expectedPlayers, info.players().size(), "listed players");
+        assertEquals(expectedMaxPlayers, info.maxPlayers(), "player limit");
+    }
+
+    private long backendRequests() {
+        long total = 0;
+        for (HytaleOneQueryMetrics metrics : backendMetrics) {
+            total += metrics.getBasicRequests() + metrics.getFullRequests() + metrics.getOtherRequests();
+        }
+        return total;
+    }
+}
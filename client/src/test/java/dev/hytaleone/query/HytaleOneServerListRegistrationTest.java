@@ -0,0 +1,185 @@
+package dev.hytaleone.query;
+
+import com.hypixel.hytale.logger.HytaleLogger;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.bson.Document;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs server list registrations against a stand-in endpoint on localhost and checks when
+ * they post: unchanged state is not posted, a change is posted once, idle servers send
+ * keep-alives, an outage is retried with backoff instead of every interval, a failure while
+ * reading server state does not stop the heartbeat, and stopping deregisters every server.
+ */
+class HytaleOneServerListRegistrationTest {
+
+    private static final int SERVERS = 5;
+    private static final int INTERVAL_SECONDS = 1;
+    private static final int KEEP_ALIVE_SECONDS = 4;
+    private static final long INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(INTERVAL_SECONDS);
+
+    // Backoff waits at most 10 seconds before the second retry
+    private static final long RECOVERY_TIMEOUT_MILLIS = 15_000;
+
+    private final Endpoint endpoint = new Endpoint();
+    private final AtomicInteger players = new AtomicInteger();
+    private final AtomicBoolean failing = new AtomicBoolean();
+    private final List<HytaleOneServerListRegistration> registrations = new ArrayList<>();
+    private HttpServer server;
+    private ExecutorService executor;
+
+    @BeforeEach
+    void register() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/register", endpoint::handle);
+        executor = Executors.newFixedThreadPool(4);
+        server.setExecutor(executor);
+        server.start();
+        String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/register";
+
+        for (int i = 0; i < SERVERS; i++) {
+            registrations.add(new HytaleOneServerListRegistration(new HytaleLogger(), url, "test_" + i,
+                    new StandInQuerySource(100), () -> {
+                        if (failing.get()) {
+                            throw new IllegalStateException("Roster is not available");
+                        }
+                        return players.get();
+                    }, "127.0.0.1", 5520, INTERVAL_SECONDS, KEEP_ALIVE_SECONDS));
+        }
+        for (HytaleOneServerListRegistration registration : registrations) {
+            registration.start();
+        }
+        Thread.sleep(INTERVAL_MILLIS + INTERVAL_MILLIS / 2);
+        assertEquals(SERVERS, endpoint.accepted.sumThenReset(), "registrations");
+    }
+
+    @AfterEach
+    void stop() {
+        for (HytaleOneServerListRegistration registration : registrations) {
+            registration.stop();
+        }
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    @Test
+    void postsChangesAndKeepAlivesOnly() throws Exception {
+        Thread.sleep(2 * INTERVAL_MILLIS);
+        assertEquals(0, endpoint.accepted.sumThenReset(), "posts of unchanged state");
+
+        players.incrementAndGet();
+        Thread.sleep(INTERVAL_MILLIS + INTERVAL_MILLIS / 2);
+        assertEquals(SERVERS, endpoint.accepted.sumThenReset(), "posts of the change");
+
+        Thread.sleep(TimeUnit.SECONDS.toMillis(KEEP_ALIVE_SECONDS) + INTERVAL_MILLIS);
+        assertEquals(SERVERS, endpoint.accepted.sumThenReset(), "keep-alives");
+    }
+
+    @Test
+    void outageIsRetriedWithBackoff() throws Exception {
+        endpoint.status = 503;
+        players.incrementAndGet();
+        Thread.sleep(4 * INTERVAL_MILLIS);
+        // Every interval would be 4 attempts per server, backoff allows at most 2
+        long rejected = endpoint.rejected.sum();
+        assertTrue(rejected >= SERVERS && rejected <= 2L * SERVERS, rejected + " posts during the outage");
+
+        endpoint.status = 200;
+        awaitRecovery();
+    }
+
+    @Test
+    void stateFailureDoesNotStopHeartbeat() throws Exception {
+        failing.set(true);
+        Thread.sleep(3 * INTERVAL_MILLIS);
+        failing.set(false);
+        players.incrementAndGet();
+        awaitRecovery();
+    }
+
+    @Test
+    void stopDeregistersEveryServer() {
+        for (HytaleOneServerListRegistration registration : registrations) {
+            registration.stop();
+        }
+        registrations.clear();
+        assertEquals(SERVERS, endpoint.offline.sum(), "deregistrations");
+    }
+
+    /**
+     * Wait until every server got a post through again.
+     */
+    private void awaitRecovery() throws InterruptedException {
+        long start = System.currentTimeMillis();
+        long deadline = start + RECOVERY_TIMEOUT_MILLIS;
+        while (endpoint.acceptedSince(start) < SERVERS && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertEquals(SERVERS, endpoint.acceptedSince(start), "servers posting again");
+    }
+
+    /**
+     * Stand-in for the server list service, counts posts and answers with a configurable status.
+     */
+    private static final class Endpoint {
+
+        final LongAdder accepted = new LongAdder();
+        final LongAdder rejected = new LongAdder();
+        final LongAdder offline = new LongAdder();
+        final Map<String, Long> lastAccepted = new ConcurrentHashMap<>();
+        volatile int status = 200;
+
+        void handle(@Nonnull HttpExchange exchange) throws IOException {
+            Document payload = Document.parse(new String(exchange.getRequestBody().readAllBytes(),
+                    StandardCharsets.UTF_8));
+            int code = status;
+            if (code != 200) {
+                rejected.increment();
+            } else if (!payload.getBoolean("online", true)) {
+                offline.increment();
+            } else {
+                accepted.increment();
+                lastAccepted.put(payload.getString("serverId"), System.currentTimeMillis());
+            }
+
+            byte[] body = "{}".getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(code, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+
+        int acceptedSince(long millis) {
+            int count = 0;
+            for (long last : lastAccepted.values()) {
+                if (last >= millis) {
+                    count++;
+                }
+            }
+            return count;
+        }
+    }
+}
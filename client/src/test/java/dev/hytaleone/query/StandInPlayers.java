@@ -0,0 +1,25 @@
+package dev.hytaleone.query;
+
+import javax.annotation.Nonnull;
+import java.util.SplittableRandom;
+import java.util.UUID;
+
+/**
+ * Fills a roster with generated players in place of the connect events from Universe.
+ */
+public final class StandInPlayers {
+
+    private StandInPlayers() {
+    }
+
+    /**
+     * Add players with realistic name lengths, the same seed always gives the same roster.
+     */
+    public static void populate(@Nonnull HytaleOnePlayerRoster roster, int count) {
+        SplittableRandom random = new SplittableRandom(count);
+        for (int i = 0; i < count; i++) {
+            UUID uuid = new UUID(random.nextLong(), random.nextLong());
+            roster.add(uuid, "Player" + i + "_" + Long.toString(random.nextLong(1L << 20), 36));
+        }
+    }
+}
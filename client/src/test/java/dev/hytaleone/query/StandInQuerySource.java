@@ -0,0 +1,67 @@
+package dev.hytaleone.query;
+
+import javax.annotation.Nonnull;
+import java.util.List;
+
+/**
+ * Fixed server state in place of the HytaleServer config and PluginManager.
+ */
+public final class StandInQuerySource implements HytaleOneQuerySource {
+
+    private static final List<PluginInfo> PLUGINS = List.of(
+            new PluginInfo("HytaleOne:Query", "1.1.0", true),
+            new PluginInfo("Hytale:Permissions", "1.0.0", true),
+            new PluginInfo("Example:Economy", "2.4.1", true),
+            new PluginInfo("Example:Minigames", "0.9.3", false));
+
+    private final int maxPlayers;
+
+    public StandInQuerySource(int maxPlayers) {
+        this.maxPlayers = maxPlayers;
+    }
+
+    @Nonnull
+    @Override
+    public String getServerName() {
+        return "HytaleOne Test Server";
+    }
+
+    @Nonnull
+    @Override
+    public String getMotd() {
+        return "Survival, minigames and a very fast query port";
+    }
+
+    @Override
+    public int getMaxPlayers() {
+        return maxPlayers;
+    }
+
+    @Override
+    public int getHostPort() {
+        return 5520;
+    }
+
+    @Nonnull
+    @Override
+    public String getVersion() {
+        return "2026.01.15-test";
+    }
+
+    @Override
+    public int getProtocolVersion() {
+        return 1;
+    }
+
+    @Nonnull
+    @Override
+    public String getProtocolHash() {
+        return "0123456789abcdef0123456789abcdef";
+    }
+
+    @Nonnull
+    @Override
+    public List<PluginInfo> getPlugins() {
+        return PLUGINS;
+    }
+}
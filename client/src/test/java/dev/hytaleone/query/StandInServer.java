@@ -0,0 +1,70 @@
+package dev.hytaleone.query;
+
+import com.hypixel.hytale.logger.HytaleLogger;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.socket.DatagramChannel;
+import io.netty.channel.socket.nio.NioDatagramChannel;
+import io.netty.util.ReferenceCountUtil;
+
+import javax.annotation.Nonnull;
+import java.net.InetSocketAddress;
+
+/**
+ * Query handlers on localhost channels, built the way the plugin builds them.
+ */
+public final class StandInServer {
+
+    private StandInServer() {
+    }
+
+    /**
+     * Handler without rate limits or challenge, everything optional is disabled.
+     * Tests that need more configure the returned builder.
+     */
+    @Nonnull
+    public static HytaleOneQueryHandler.Builder handler(@Nonnull HytaleOneQueryCache cache,
+                                                        @Nonnull HytaleOneQueryMetrics metrics) {
+        return HytaleOneQueryHandler.builder(new HytaleLogger(), cache, metrics);
+    }
+
+    /**
+     * Bind the handler to a free localhost port, game packets passed through are discarded.
+     */
+    @Nonnull
+    public static Channel bind(@Nonnull EventLoopGroup group, @Nonnull HytaleOneQueryHandler handler)
+            throws InterruptedException {
+        return new Bootstrap()
+                .group(group)
+                .channel(NioDatagramChannel.class)
+                .handler(new ChannelInitializer<DatagramChannel>() {
+                    @Override
+                    protected void initChannel(@Nonnull DatagramChannel ch) {
+                        ch.pipeline().addLast(handler, new ChannelInboundHandlerAdapter() {
+                            @Override
+                            public void channelRead(@Nonnull ChannelHandlerContext ctx, @Nonnull Object msg) {
+                                ReferenceCountUtil.release(msg);
+                            }
+                        });
+                    }
+                })
+                .bind(new InetSocketAddress("127.0.0.1", 0)).sync().channel();
+    }
+
+    /**
+     * Reserve a localhost port and close it again, nothing answers there.
+     */
+    @Nonnull
+    public static InetSocketAddress unreachable(@Nonnull EventLoopGroup group) throws InterruptedException {
+        Channel closed = new Bootstrap().group(group).channel(NioDatagramChannel.class)
+                .handler(new ChannelInboundHandlerAdapter())
+                .bind(new InetSocketAddress("127.0.0.1", 0)).sync().channel();
+        InetSocketAddress address = (InetSocketAddress) closed.localAddress();
+        closed.close().sync();
+        return address;
+    }
+}
@@ -0,0 +1,159 @@
+package dev.hytaleone.query.client;
+
+import com.hypixel.hytale.logger.HytaleLogger;
+import dev.hytaleone.query.HytaleOnePlayerRoster;
+import dev.hytaleone.query.HytaleOneQueryCache;
+import dev.hytaleone.query.HytaleOneQueryChallenge;
+import dev.hytaleone.query.HytaleOneQueryHandler;
+import dev.hytaleone.query.HytaleOneQueryMetrics;
+import dev.hytaleone.query.HytaleOneRosterJournal;
+import dev.hytaleone.query.StandInPlayers;
+import dev.hytaleone.query.StandInQuerySource;
+import dev.hytaleone.query.StandInServer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import javax.annotation.Nonnull;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs the client against the real query handler on localhost, one server per roster size.
+ */
+class HytaleOneQueryClientTest {
+
+    private static final int SERVERS = 8;
+    private static final int MAX_PLAYERS = 100;
+
+    private final List<HytaleOneQueryCache> caches = new ArrayList<>();
+    private final int[] players = new int[SERVERS];
+    private EventLoopGroup group;
+
+    @BeforeEach
+    void startGroup() {
+        group = new NioEventLoopGroup(1);
+    }
+
+    @AfterEach
+    void stopServers() throws InterruptedException {
+        group.shutdownGracefully(0, 1, TimeUnit.SECONDS).sync();
+        for (HytaleOneQueryCache cache : caches) {
+            cache.stop();
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = {false, true})
+    void everyReplyMatchesItsServer(boolean challenge) throws Exception {
+        List<InetSocketAddress> servers = startServers(challenge);
+        int queries = 20_000;
+        LongAdder wrong = new LongAdder();
+        LongAdder failed = new LongAdder();
+        CountDownLatch done = new CountDownLatch(queries);
+
+        try (HytaleOneQueryClient client = new HytaleOneQueryClient(256, 1000, 2, challenge)) {
+            for (int i = 0; i < queries; i++) {
+                int server = i % SERVERS;
+                // Every fifth query is a full one
+                boolean full = i % 5 == 0;
+                client.query(servers.get(server), full, new HytaleOneQueryCallback() {
+                    @Override
+                    public void onReply(@Nonnull HytaleOneQueryResult result) {
+                        if (!isExpected(result, players[server], full)) {
+                            wrong.increment();
+                        }
+                        done.countDown();
+                    }
+
+                    @Override
+                    public void onFailure(@Nonnull InetSocketAddress address, @Nonnull Throwable cause) {
+                        failed.increment();
+                        done.countDown();
+                    }
+                });
+            }
+            assertTrue(done.await(1, TimeUnit.MINUTES), "queries did not finish");
+        }
+        assertEquals(0, wrong.sum(), "wrong replies");
+        assertEquals(0, failed.sum(), "failed queries");
+    }
+
+    @Test
+    void futureApiReturnsServerInfo() throws Exception {
+        List<InetSocketAddress> servers = startServers(false);
+        try (HytaleOneQueryClient client = new HytaleOneQueryClient()) {
+            HytaleOneServerInfo info = client.queryFull(servers.get(SERVERS - 1)).get(5, TimeUnit.SECONDS);
+            assertTrue(info.full());
+            assertEquals("HytaleOne Test Server", info.serverName());
+            assertEquals(players[SERVERS - 1], info.currentPlayers());
+            assertEquals(MAX_PLAYERS, info.maxPlayers());
+            assertEquals(players[SERVERS - 1], info.players().size());
+            assertEquals(4, info.plugins().size());
+
+            HytaleOneServerInfo basic = client.queryBasic(servers.get(0)).get(5, TimeUnit.SECONDS);
+            assertFalse(basic.full());
+            assertEquals(players[0], basic.currentPlayers());
+        }
+    }
+
+    @Test
+    void unreachableServerTimesOut() throws Exception {
+        InetSocketAddress unreachable = StandInServer.unreachable(group);
+        try (HytaleOneQueryClient client = new HytaleOneQueryClient(64, 200, 1, false)) {
+            CompletableFuture<HytaleOneServerInfo> reply = client.queryBasic(unreachable);
+            ExecutionException e = assertThrows(ExecutionException.class, () -> reply.get(5, TimeUnit.SECONDS));
+            assertInstanceOf(TimeoutException.class, e.getCause());
+        }
+    }
+
+    @Nonnull
+    private List<InetSocketAddress> startServers(boolean challenge) throws InterruptedException {
+        List<InetSocketAddress> servers = new ArrayList<>();
+        for (int i = 0; i < SERVERS; i++) {
+            players[i] = i * 7 % 50;
+            HytaleOneRosterJournal journal = new HytaleOneRosterJournal(256);
+            HytaleOnePlayerRoster roster = new HytaleOnePlayerRoster(journal);
+            StandInPlayers.populate(roster, players[i]);
+            HytaleOneQueryCache cache = new HytaleOneQueryCache(new HytaleLogger(), 1000, 1200,
+                    new StandInQuerySource(MAX_PLAYERS), roster, journal);
+            cache.start();
+            caches.add(cache);
+            HytaleOneQueryHandler handler = StandInServer.handler(cache, new HytaleOneQueryMetrics())
+                    .challenge(new HytaleOneQueryChallenge(HytaleOneQueryChallenge.DEFAULT_WINDOW_SECONDS), challenge)
+                    .build();
+            servers.add((InetSocketAddress) StandInServer.bind(group, handler).localAddress());
+        }
+        return servers;
+    }
+
+    private static boolean isExpected(@Nonnull HytaleOneQueryResult result, int players, boolean full) {
+        if (result.isFull() != full || result.getCurrentPlayers() != players || result.getMaxPlayers() != MAX_PLAYERS
+                || !result.getServerName().equals("HytaleOne Test Server")) {
+            return false;
+        }
+        if (!full) {
+            return true;
+        }
+        return result.getPlayerCount() == players && result.getPluginCount() == 4
+                && result.getPluginIdentifier(0).equals("HytaleOne:Query") && result.getGeneration() != 0
+                && (players == 0 || result.getPlayerName(players - 1).startsWith("Player" + (players - 1) + "_"));
+    }
+}
@@ -0,0 +1,303 @@
+package dev.hytaleone.query;
+
+import com.hypixel.hytale.logger.HytaleLogger;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+
+/**
+ * Binary access log of query traffic. Event loops put fixed-size records into a bounded
+ * lock-free ring without allocating, a background thread drains the ring in batches and
+ * appends them to a file that is rotated by size. When the ring is full the record is
+ * dropped and counted, logging never blocks an event loop.
+ * <p>
+ * Each file starts with {@link #FILE_MAGIC}, a version byte and the record size, followed by
+ * little-endian records of {@link #RECORD_SIZE} bytes:
+ * <pre>
+ * int64  timestamp, ms since the epoch
+ * byte[16] sender address, IPv4 as an IPv4-mapped IPv6 address
+ * uint16 sender port
+ * uint8  query type byte, flags included
+ * uint8  outcome
+ * int32  response bytes
+ * </pre>
+ * {@link HytaleOneAccessLogReader} prints and summarizes these files.
+ */
+public final class HytaleOneAccessLog {
+
+    public static final byte[] FILE_MAGIC = {'H', 'Y', 'Q', 'L', 'O', 'G'};
+    public static final byte FILE_VERSION = 1;
+    public static final int HEADER_SIZE = FILE_MAGIC.length + 2;
+    public static final int RECORD_SIZE = 32;
+
+    public static final byte OUTCOME_ANSWERED = 0;
+    public static final byte OUTCOME_DROPPED = 1;
+    public static final byte OUTCOME_RATE_LIMITED = 2;
+    public static final byte OUTCOME_SHED = 3;
+    public static final byte OUTCOME_ERROR = 4;
+
+    public static final String FILE_NAME = "query-access.bin";
+
+    private static final int WORDS = RECORD_SIZE / Long.BYTES;
+    private static final int BATCH_RECORDS = 2048;
+    private static final long FLUSH_MILLIS = 200;
+    private static final long IPV4_MAPPED = 0xFFFF00000000L;
+
+    @Nonnull
+    private final HytaleLogger logger;
+    @Nonnull
+    private final HytaleOneQueryMetrics metrics;
+    @Nonnull
+    private final Path directory;
+    private final long maxFileBytes;
+    private final int maxFiles;
+
+    // Bounded multi-producer ring, a slot's sequence says whether it is free or holds a record
+    private final long[] words;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private long head;
+
+    private final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "HytaleOne-AccessLog");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Only touched on the writer thread
+    private final ByteBuffer batch;
+    private FileChannel channel;
+    private long fileBytes;
+
+    /**
+     * @param ringSize     records buffered between the event loops and the writer, 0 disables the log
+     * @param maxFileBytes size at which the file is rotated
+     * @param maxFiles     rotated files kept next to the current one
+     */
+    public HytaleOneAccessLog(@Nonnull HytaleLogger logger, @Nonnull HytaleOneQueryMetrics metrics,
+                              @Nonnull Path directory, int ringSize, long maxFileBytes, int maxFiles) {
+        this.logger = logger;
+        this.metrics = metrics;
+        this.directory = directory;
+        this.maxFileBytes = Math.max(maxFileBytes, HEADER_SIZE + (long) RECORD_SIZE * BATCH_RECORDS);
+        this.maxFiles = Math.max(maxFiles, 0);
+        int size = ringSize > 0 ? Integer.highestOneBit(Math.max(ringSize, 2) - 1) << 1 : 0;
+        this.words = new long[size * WORDS];
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        this.mask = size - 1;
+        this.batch = ByteBuffer.allocateDirect(size > 0 ? RECORD_SIZE * Math.min(size, BATCH_RECORDS) : 0)
+                .order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Whether records are kept at all.
+     */
+    public boolean isEnabled() {
+        return mask >= 0;
+    }
+
+    /**
+     * Open the log file and start the writer.
+     */
+    public void start() throws IOException {
+        if (!isEnabled()) {
+            return;
+        }
+        Files.createDirectories(directory);
+        openFile();
+        writer.scheduleWithFixedDelay(this::drain, FLUSH_MILLIS, FLUSH_MILLIS, TimeUnit.MILLISECONDS);
+        logger.at(Level.INFO).log("Query access log enabled at %s", directory.resolve(FILE_NAME));
+    }
+
+    /**
+     * Write out what is still buffered and close the file.
+     */
+    public void stop() {
+        if (!isEnabled()) {
+            return;
+        }
+        writer.shutdown();
+        try {
+            writer.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        writer.shutdownNow();
+        synchronized (this) {
+            drain();
+            closeFile();
+        }
+    }
+
+    /**
+     * Add a record. Safe to call from any thread, never blocks and never allocates for IPv4 senders.
+     */
+    public void record(@Nonnull InetSocketAddress sender, byte queryType, int responseBytes, byte outcome) {
+        if (mask < 0) {
+            return;
+        }
+        long position;
+        int slot;
+        while (true) {
+            position = tail.get();
+            slot = (int) position & mask;
+            long sequence = sequences.get(slot);
+            if (sequence < position) {
+                // Writer is behind, drop instead of waiting
+                metrics.recordAccessLogDrop();
+                return;
+            }
+            if (sequence == position && tail.compareAndSet(position, position + 1)) {
+                break;
+            }
+        }
+
+        InetAddress address = sender.getAddress();
+        long high;
+        long low;
+        if (address instanceof Inet4Address) {
+            // hashCode is the address itself, no copy needed
+            high = 0;
+            low = IPV4_MAPPED | (address.hashCode() & 0xFFFFFFFFL);
+        } else {
+            byte[] bytes = address.getAddress();
+            high = readLong(bytes, 0);
+            low = readLong(bytes, 8);
+        }
+
+        int base = slot * WORDS;
+        words[base] = System.currentTimeMillis();
+        words[base + 1] = high;
+        words[base + 2] = low;
+        words[base + 3] = ((long) sender.getPort() << 48) | ((queryType & 0xFFL) << 40) | ((outcome & 0xFFL) << 32)
+                | (responseBytes & 0xFFFFFFFFL);
+        // Publishes the words above to the writer
+        sequences.lazySet(slot, position + 1);
+    }
+
+    /**
+     * Move everything in the ring to the file, one batch at a time.
+     */
+    private synchronized void drain() {
+        try {
+            while (true) {
+                batch.clear();
+                while (batch.hasRemaining()) {
+                    int slot = (int) head & mask;
+                    if (sequences.get(slot) != head + 1) {
+                        break;
+                    }
+                    int base = slot * WORDS;
+                    long packed = words[base + 3];
+                    batch.putLong(words[base]);
+                    // Addresses are stored in network order
+                    batch.order(ByteOrder.BIG_ENDIAN).putLong(words[base + 1]).putLong(words[base + 2])
+                            .order(ByteOrder.LITTLE_ENDIAN);
+                    batch.putShort((short) (packed >>> 48));
+                    batch.put((byte) (packed >>> 40));
+                    batch.put((byte) (packed >>> 32));
+                    batch.putInt((int) packed);
+                    sequences.lazySet(slot, head + mask + 1);
+                    head++;
+                }
+                if (batch.position() == 0) {
+                    return;
+                }
+                batch.flip();
+                write(batch);
+                metrics.recordAccessLogWrite(batch.limit() / RECORD_SIZE);
+            }
+        } catch (Exception e) {
+            logger.at(Level.WARNING).withCause(e).log("Failed to write query access log");
+        }
+    }
+
+    private void write(@Nonnull ByteBuffer buffer) throws IOException {
+        if (channel == null) {
+            return;
+        }
+        if (fileBytes + buffer.remaining() > maxFileBytes) {
+            rotate();
+        }
+        while (buffer.hasRemaining()) {
+            fileBytes += channel.write(buffer);
+        }
+    }
+
+    private void rotate() throws IOException {
+        closeFile();
+        Path oldest = directory.resolve(rotatedName(maxFiles));
+        Files.deleteIfExists(oldest);
+        for (int i = maxFiles - 1; i >= 1; i--) {
+            Path from = directory.resolve(rotatedName(i));
+            if (Files.exists(from)) {
+                Files.move(from, directory.resolve(rotatedName(i + 1)), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        Path current = directory.resolve(FILE_NAME);
+        if (maxFiles > 0) {
+            Files.move(current, directory.resolve(rotatedName(1)), StandardCopyOption.REPLACE_EXISTING);
+        } else {
+            Files.deleteIfExists(current);
+        }
+        openFile();
+    }
+
+    private void openFile() throws IOException {
+        this.channel = FileChannel.open(directory.resolve(FILE_NAME), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        this.fileBytes = channel.size();
+        if (fileBytes == 0) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.put(FILE_MAGIC).put(FILE_VERSION).put((byte) RECORD_SIZE).flip();
+            while (header.hasRemaining()) {
+                fileBytes += channel.write(header);
+            }
+        }
+    }
+
+    private void closeFile() {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.at(Level.FINE).withCause(e).log("Failed to close query access log");
+        }
+        this.channel = null;
+    }
+
+    @Nonnull
+    static String rotatedName(int index) {
+        return FILE_NAME.replace(".bin", "." + index + ".bin");
+    }
+
+    private static long readLong(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (bytes[offset + i] & 0xFF);
+        }
+        return value;
+    }
+}
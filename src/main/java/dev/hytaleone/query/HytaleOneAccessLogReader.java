@@ -0,0 +1,224 @@
+package dev.hytaleone.query;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * Prints and summarizes the binary files written by {@link HytaleOneAccessLog}. Given a
+ * directory it reads the current file and all rotated ones, oldest first.
+ *
+ * <pre>
+ * java -cp plugins/hytaleone-query-x.x.x.jar dev.hytaleone.query.HytaleOneAccessLogReader \
+ *     logs/query-access [--dump] [--top 10]
+ * </pre>
+ */
+public final class HytaleOneAccessLogReader {
+
+    private static final int READ_RECORDS = 4096;
+
+    private final long[] typeCounts = new long[HytaleOneQueryProtocol.TYPE_MASK + 1];
+    private final long[] outcomeCounts = new long[256];
+    private final Map<String, long[]> senders = new HashMap<>();
+    private final Map<Long, long[]> minutes = new HashMap<>();
+    private final boolean dump;
+    private long records;
+    private long bytes;
+    private long first = Long.MAX_VALUE;
+    private long last = Long.MIN_VALUE;
+
+    private HytaleOneAccessLogReader(boolean dump) {
+        this.dump = dump;
+    }
+
+    public static void main(String[] args) throws IOException {
+        boolean dump = false;
+        int top = 10;
+        List<Path> paths = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--dump" -> dump = true;
+                case "--top" -> top = Integer.parseInt(args[++i]);
+                default -> paths.add(Path.of(args[i]));
+            }
+        }
+        if (paths.isEmpty()) {
+            System.err.println("Usage: HytaleOneAccessLogReader <directory or file>... [--dump] [--top N]");
+            System.exit(2);
+        }
+
+        HytaleOneAccessLogReader reader = new HytaleOneAccessLogReader(dump);
+        for (Path path : paths) {
+            for (Path file : filesOf(path)) {
+                reader.read(file);
+            }
+        }
+        reader.summarize(top);
+    }
+
+    /**
+     * Files to read for a path, oldest first.
+     */
+    @Nonnull
+    private static List<Path> filesOf(@Nonnull Path path) throws IOException {
+        if (!Files.isDirectory(path)) {
+            return List.of(path);
+        }
+        List<Path> files = new ArrayList<>();
+        try (Stream<Path> listing = Files.list(path)) {
+            listing.filter(file -> file.getFileName().toString().startsWith("query-access."))
+                    .forEach(files::add);
+        }
+        // Highest rotation index is the oldest, the current file comes last
+        files.sort((a, b) -> Integer.compare(rotationIndex(b), rotationIndex(a)));
+        return files;
+    }
+
+    private static int rotationIndex(@Nonnull Path file) {
+        String[] parts = file.getFileName().toString().split("\\.");
+        return parts.length == 3 ? Integer.parseInt(parts[1]) : 0;
+    }
+
+    private void read(@Nonnull Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HytaleOneAccessLog.HEADER_SIZE);
+            while (header.hasRemaining() && channel.read(header) >= 0) {
+                // Keep reading until the header is complete or the file ends
+            }
+            header.flip();
+            byte[] magic = new byte[HytaleOneAccessLog.FILE_MAGIC.length];
+            if (header.remaining() < HytaleOneAccessLog.HEADER_SIZE
+                    || !Arrays.equals(readMagic(header, magic), HytaleOneAccessLog.FILE_MAGIC)
+                    || header.get() != HytaleOneAccessLog.FILE_VERSION
+                    || header.get() != HytaleOneAccessLog.RECORD_SIZE) {
+                System.err.printf("Skipping %s, not an access log%n", file);
+                return;
+            }
+
+            ByteBuffer buffer = ByteBuffer.allocate(HytaleOneAccessLog.RECORD_SIZE * READ_RECORDS)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            byte[] address = new byte[16];
+            boolean end = false;
+            while (!end) {
+                end = channel.read(buffer) < 0;
+                buffer.flip();
+                while (buffer.remaining() >= HytaleOneAccessLog.RECORD_SIZE) {
+                    long timestamp = buffer.getLong();
+                    buffer.get(address);
+                    int port = buffer.getShort() & 0xFFFF;
+                    int type = buffer.get() & 0xFF;
+                    int outcome = buffer.get() & 0xFF;
+                    int size = buffer.getInt();
+                    add(timestamp, InetAddress.getByAddress(address).getHostAddress(), port, type, outcome, size);
+                }
+                // A torn record at the end of the file is left over and ignored
+                buffer.compact();
+            }
+        }
+    }
+
+    @Nonnull
+    private static byte[] readMagic(@Nonnull ByteBuffer header, @Nonnull byte[] magic) {
+        header.get(magic);
+        return magic;
+    }
+
+    private void add(long timestamp, @Nonnull String address, int port, int type, int outcome, int size) {
+        records++;
+        bytes += size;
+        first = Math.min(first, timestamp);
+        last = Math.max(last, timestamp);
+        typeCounts[type & HytaleOneQueryProtocol.TYPE_MASK]++;
+        outcomeCounts[outcome]++;
+        long[] sender = senders.computeIfAbsent(address, key -> new long[2]);
+        sender[0]++;
+        sender[1] += size;
+        minutes.computeIfAbsent(timestamp / 60_000, key -> new long[1])[0]++;
+        if (dump) {
+            System.out.printf("%s %s:%d %s %s %d%n", Instant.ofEpochMilli(timestamp), address, port,
+                    typeName(type), outcomeName(outcome), size);
+        }
+    }
+
+    private void summarize(int top) {
+        if (records == 0) {
+            System.out.println("No records");
+            return;
+        }
+        System.out.printf("%d records from %s to %s, %d response bytes, %d senders%n", records,
+                Instant.ofEpochMilli(first), Instant.ofEpochMilli(last), bytes, senders.size());
+
+        long busiest = 0;
+        long busiestMinute = 0;
+        for (Map.Entry<Long, long[]> entry : minutes.entrySet()) {
+            if (entry.getValue()[0] > busiest) {
+                busiest = entry.getValue()[0];
+                busiestMinute = entry.getKey();
+            }
+        }
+        System.out.printf("Busiest minute: %s with %d queries%n", Instant.ofEpochMilli(busiestMinute * 60_000),
+                busiest);
+
+        System.out.println("By type:");
+        for (int type = 0; type < typeCounts.length; type++) {
+            if (typeCounts[type] > 0) {
+                System.out.printf("  %-12s %d%n", typeName(type), typeCounts[type]);
+            }
+        }
+        System.out.println("By outcome:");
+        for (int outcome = 0; outcome < outcomeCounts.length; outcome++) {
+            if (outcomeCounts[outcome] > 0) {
+                System.out.printf("  %-12s %d%n", outcomeName(outcome), outcomeCounts[outcome]);
+            }
+        }
+
+        System.out.printf("Top %d senders:%n", top);
+        senders.entrySet().stream()
+                .sorted((a, b) -> Long.compare(b.getValue()[0], a.getValue()[0]))
+                .limit(top)
+                .forEach(entry -> System.out.printf("  %-40s %d queries, %d bytes%n", entry.getKey(),
+                        entry.getValue()[0], entry.getValue()[1]));
+    }
+
+    @Nonnull
+    private static String typeName(int type) {
+        return switch (type & HytaleOneQueryProtocol.TYPE_MASK) {
+            case HytaleOneQueryProtocol.TYPE_BASIC -> "basic";
+            case HytaleOneQueryProtocol.TYPE_FULL -> "full";
+            case HytaleOneQueryProtocol.TYPE_CHALLENGE -> "challenge";
+            case HytaleOneQueryProtocol.TYPE_PLAYER_PAGE -> "page";
+            case HytaleOneQueryProtocol.TYPE_ROSTER_DELTA -> "delta";
+            case HytaleOneQueryProtocol.TYPE_PROJECTION -> "projection";
+            case HytaleOneQueryProtocol.TYPE_LOOKUP -> "lookup";
+            case HytaleOneQueryProtocol.TYPE_SUBSCRIBE -> "subscribe";
+            case HytaleOneQueryProtocol.TYPE_HEALTH -> "health";
+            case HytaleOneQueryProtocol.TYPE_BATCH -> "batch";
+            default -> "type-" + (type & HytaleOneQueryProtocol.TYPE_MASK);
+        };
+    }
+
+    @Nonnull
+    private static String outcomeName(int outcome) {
+        return switch (outcome) {
+            case HytaleOneAccessLog.OUTCOME_ANSWERED -> "answered";
+            case HytaleOneAccessLog.OUTCOME_DROPPED -> "dropped";
+            case HytaleOneAccessLog.OUTCOME_RATE_LIMITED -> "rate-limited";
+            case HytaleOneAccessLog.OUTCOME_SHED -> "shed";
+            case HytaleOneAccessLog.OUTCOME_ERROR -> "error";
+            default -> "outcome-" + outcome;
+        };
+    }
+}
@@ -0,0 +1,78 @@
+package dev.hytaleone.query;
+
+import javax.annotation.Nonnull;
+import java.util.List;
+
+/**
+ * Query source for aggregator mode. Identity, version and plugins come from the local
+ * server, the player limit is the sum over the reachable backends.
+ */
+public final class HytaleOneClusterQuerySource implements HytaleOneQuerySource {
+
+    @Nonnull
+    private final HytaleOneQuerySource local;
+
+    private volatile int maxPlayers;
+
+    public HytaleOneClusterQuerySource(@Nonnull HytaleOneQuerySource local) {
+        this.local = local;
+    }
+
+    /**
+     * Set the combined player limit of the cluster.
+     *
+     * @return true if the limit changed
+     */
+    public boolean setMaxPlayers(int maxPlayers) {
+        if (this.maxPlayers == maxPlayers) {
+            return false;
+        }
+        this.maxPlayers = maxPlayers;
+        return true;
+    }
+
+    @Nonnull
+    @Override
+    public String getServerName() {
+        return local.getServerName();
+    }
+
+    @Nonnull
+    @Override
+    public String getMotd() {
+        return local.getMotd();
+    }
+
+    @Override
+    public int getMaxPlayers() {
+        return maxPlayers;
+    }
+
+    @Override
+    public int getHostPort() {
+        return local.getHostPort();
+    }
+
+    @Nonnull
+    @Override
+    public String getVersion() {
+        return local.getVersion();
+    }
+
+    @Override
+    public int getProtocolVersion() {
+        return local.getProtocolVersion();
+    }
+
+    @Nonnull
+    @Override
+    public String getProtocolHash() {
+        return local.getProtocolHash();
+    }
+
+    @Nonnull
+    @Override
+    public List<PluginInfo> getPlugins() {
+        return local.getPlugins();
+    }
+}
@@ -0,0 +1,388 @@
+package dev.hytaleone.query;
+
+import com.hypixel.hytale.logger.HytaleLogger;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+
+import javax.annotation.Nonnull;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * Samples server health in the background and keeps the encoded health response ready,
+ * so answering a health query is a buffer duplicate. Tick timing comes from a probe task
+ * that each world runs once per tick, the interval between its runs is the tick interval.
+ * Heap, GC, thread and CPU figures come from the JVM MXBeans. Only requests carrying an
+ * HMAC of their challenge token under the shared secret are answered.
+ */
+public final class HytaleOneHealthMonitor {
+
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+
+    // Probe runs closer together than this belong to the same tick
+    private static final long MIN_TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final ByteBufAllocator alloc = PooledByteBufAllocator.DEFAULT;
+    @Nonnull
+    private final HytaleLogger logger;
+    @Nonnull
+    private final HytaleOneHealthSource source;
+    private final long sampleMillis;
+    private final int maxResponseBytes;
+    private final SecretKeySpec key;
+    private final ThreadLocal<Mac> macs;
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "HytaleOne-Health");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Only touched on the scheduler thread
+    private final Map<String, TickProbe> probes = new HashMap<>();
+
+    private volatile Sample sample;
+
+    /**
+     * @param secret           shared secret health queries must prove, empty disables health queries
+     * @param sampleMillis     how often the health snapshot is taken
+     * @param maxResponseBytes byte budget of the response, worlds beyond it are left out
+     */
+    public HytaleOneHealthMonitor(@Nonnull HytaleLogger logger, @Nonnull HytaleOneHealthSource source,
+                                  @Nonnull String secret, int sampleMillis, int maxResponseBytes) {
+        this.logger = logger;
+        this.source = source;
+        this.sampleMillis = Math.max(sampleMillis, 100);
+        this.maxResponseBytes = maxResponseBytes;
+        this.key = secret.isEmpty() ? null : new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), MAC_ALGORITHM);
+        this.macs = ThreadLocal.withInitial(this::newMac);
+    }
+
+    /**
+     * Whether health queries are answered at all.
+     */
+    public boolean isEnabled() {
+        return key != null;
+    }
+
+    /**
+     * Take the first sample and start sampling.
+     */
+    public void start() {
+        if (!isEnabled()) {
+            return;
+        }
+        scheduler.execute(this::sample);
+        scheduler.scheduleWithFixedDelay(this::sample, sampleMillis, sampleMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop sampling and release the response.
+     */
+    public void stop() {
+        scheduler.shutdownNow();
+        try {
+            scheduler.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (TickProbe probe : probes.values()) {
+            probe.stopped = true;
+        }
+        probes.clear();
+        // Readers still holding a pin keep the buffer until they are done
+        Sample current = this.sample;
+        this.sample = null;
+        if (current != null) {
+            current.release();
+        }
+    }
+
+    /**
+     * Check the proof of a health request against the token it carries, in constant time.
+     */
+    public boolean verify(long token, @Nonnull ByteBuf proof) {
+        if (key == null || proof.readableBytes() != HytaleOneQueryProtocol.HEALTH_PROOF_SIZE) {
+            return false;
+        }
+        byte[] expected = proof(macs.get(), token);
+        int difference = 0;
+        for (int i = 0; i < HytaleOneQueryProtocol.HEALTH_PROOF_SIZE; i++) {
+            difference |= expected[i] ^ proof.getByte(proof.readerIndex() + i);
+        }
+        return difference == 0;
+    }
+
+    /**
+     * Get the latest health response, or null before the first sample. The caller owns the returned buffer.
+     */
+    public ByteBuf response() {
+        while (true) {
+            Sample current = this.sample;
+            if (current == null) {
+                return null;
+            }
+            if (current.tryRetain()) {
+                try {
+                    return current.response.retainedDuplicate();
+                } finally {
+                    current.release();
+                }
+            }
+            // Replaced by a concurrent sample, pin the newer one
+        }
+    }
+
+    /**
+     * Compute the proof a client sends for a token: HMAC-SHA256 of the token (8 bytes,
+     * little-endian) under the shared secret, truncated to {@link HytaleOneQueryProtocol#HEALTH_PROOF_SIZE}.
+     */
+    @Nonnull
+    public static byte[] proof(@Nonnull String secret, long token) {
+        try {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), MAC_ALGORITHM));
+            return proof(mac, token);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(MAC_ALGORITHM + " is not available", e);
+        }
+    }
+
+    @Nonnull
+    private static byte[] proof(@Nonnull Mac mac, long token) {
+        for (int i = 0; i < Long.BYTES; i++) {
+            mac.update((byte) (token >>> (8 * i)));
+        }
+        return mac.doFinal();
+    }
+
+    @Nonnull
+    private Mac newMac() {
+        try {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(key);
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(MAC_ALGORITHM + " is not available", e);
+        }
+    }
+
+    private void sample() {
+        try {
+            List<HytaleOneHealthSource.WorldInfo> worlds = source.getWorlds();
+            trackWorlds(worlds);
+
+            ByteBuf buf = alloc.directBuffer();
+            try {
+                writeJvm(buf);
+                int countIndex = buf.writerIndex();
+                buf.writeShortLE(0);
+                long now = System.nanoTime();
+                int written = 0;
+                // Leave room for an echoed nonce
+                int budget = maxResponseBytes - HytaleOneQueryProtocol.NONCE_SIZE;
+                for (HytaleOneHealthSource.WorldInfo world : worlds) {
+                    int mark = buf.writerIndex();
+                    writeWorld(buf, world, probes.get(world.name()), now);
+                    if (buf.writerIndex() > budget) {
+                        buf.writerIndex(mark);
+                        break;
+                    }
+                    written++;
+                }
+                buf.setShortLE(countIndex, written);
+            } catch (RuntimeException e) {
+                buf.release();
+                throw e;
+            }
+
+            Sample previous = this.sample;
+            this.sample = new Sample(buf);
+            if (previous != null) {
+                previous.release();
+            }
+        } catch (Exception e) {
+            logger.at(Level.WARNING).withCause(e).log("Failed to sample server health");
+        }
+    }
+
+    /**
+     * Start probes for new worlds and stop those of unloaded ones.
+     */
+    private void trackWorlds(@Nonnull List<HytaleOneHealthSource.WorldInfo> worlds) {
+        Set<String> names = new HashSet<>();
+        for (HytaleOneHealthSource.WorldInfo world : worlds) {
+            names.add(world.name());
+            if (!probes.containsKey(world.name())) {
+                TickProbe probe = new TickProbe(world.executor());
+                probes.put(world.name(), probe);
+                probe.post();
+            }
+        }
+        for (Iterator<Map.Entry<String, TickProbe>> it = probes.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, TickProbe> entry = it.next();
+            if (!names.contains(entry.getKey())) {
+                entry.getValue().stopped = true;
+                it.remove();
+            }
+        }
+    }
+
+    private void writeJvm(@Nonnull ByteBuf buf) {
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        MemoryUsage nonHeap = ManagementFactory.getMemoryMXBean().getNonHeapMemoryUsage();
+        long gcCount = 0;
+        long gcMillis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            gcCount += Math.max(gc.getCollectionCount(), 0);
+            gcMillis += Math.max(gc.getCollectionTime(), 0);
+        }
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        int cpuPerMille = -1;
+        if (os instanceof com.sun.management.OperatingSystemMXBean platform) {
+            double load = platform.getProcessCpuLoad();
+            cpuPerMille = load >= 0 ? (int) Math.round(load * 1000) : -1;
+        }
+
+        buf.writeBytes(HytaleOneQueryProtocol.RESPONSE_MAGIC);
+        buf.writeByte(HytaleOneQueryProtocol.TYPE_HEALTH);
+        buf.writeLongLE(System.currentTimeMillis());
+        buf.writeIntLE((int) (ManagementFactory.getRuntimeMXBean().getUptime() / 1000));
+        buf.writeLongLE(heap.getUsed());
+        buf.writeLongLE(heap.getCommitted());
+        buf.writeLongLE(heap.getMax());
+        buf.writeLongLE(nonHeap.getUsed());
+        buf.writeLongLE(gcCount);
+        buf.writeLongLE(gcMillis);
+        buf.writeIntLE(ManagementFactory.getThreadMXBean().getThreadCount());
+        buf.writeShortLE(cpuPerMille);
+    }
+
+    private static void writeWorld(@Nonnull ByteBuf buf, @Nonnull HytaleOneHealthSource.WorldInfo world,
+                                   TickProbe probe, long now) {
+        long ticks = 0;
+        long tickNanos = 0;
+        long p50 = 0;
+        long p99 = 0;
+        long max = 0;
+        if (probe != null) {
+            ticks = probe.ticks.getAndSet(0);
+            tickNanos = probe.tickNanos.getAndSet(0);
+            p50 = probe.intervals.percentile(50);
+            p99 = probe.intervals.percentile(99);
+            max = probe.intervals.max();
+            long lastRun = probe.lastRun;
+            if (lastRun != 0) {
+                // A world that stopped ticking shows up as one long tick
+                max = Math.max(max, now - lastRun);
+            }
+            probe.intervals.reset();
+        }
+
+        HytaleOneQueryProtocol.writeString(buf, world.name());
+        buf.writeIntLE(tickNanos > 0 ? (int) Math.min(ticks * 100_000_000_000L / tickNanos, Integer.MAX_VALUE) : 0);
+        buf.writeIntLE(toMicros(p50));
+        buf.writeIntLE(toMicros(p99));
+        buf.writeIntLE(toMicros(max));
+        buf.writeIntLE(world.players());
+        buf.writeIntLE(world.entities());
+        buf.writeIntLE(world.chunks());
+    }
+
+    private static int toMicros(long nanos) {
+        return (int) Math.min(nanos / 1000, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Encoded health response, readers pin it while they take their duplicate.
+     */
+    private static final class Sample extends HytaleOneRefCounted {
+
+        final ByteBuf response;
+
+        Sample(@Nonnull ByteBuf response) {
+            this.response = response;
+        }
+
+        @Override
+        protected void deallocate() {
+            response.release();
+        }
+    }
+
+    /**
+     * Runs once per tick on a world's thread. Each run hands itself back to the world
+     * through the monitor thread, so it is queued for the next tick and not the current one.
+     */
+    private final class TickProbe implements Runnable {
+
+        final Executor world;
+        final HytaleOneQueryHistogram intervals = new HytaleOneQueryHistogram();
+        final AtomicLong ticks = new AtomicLong();
+        final AtomicLong tickNanos = new AtomicLong();
+        volatile long lastRun;
+        volatile boolean stopped;
+
+        TickProbe(@Nonnull Executor world) {
+            this.world = world;
+        }
+
+        @Override
+        public void run() {
+            if (stopped) {
+                return;
+            }
+            long now = System.nanoTime();
+            long last = lastRun;
+            try {
+                if (last != 0 && now - last < MIN_TICK_NANOS) {
+                    // Still the same tick, try again shortly
+                    scheduler.schedule(this::post, 1, TimeUnit.MILLISECONDS);
+                    return;
+                }
+                if (last != 0) {
+                    intervals.record(now - last);
+                    ticks.incrementAndGet();
+                    tickNanos.addAndGet(now - last);
+                }
+                this.lastRun = now;
+                scheduler.execute(this::post);
+            } catch (RejectedExecutionException e) {
+                // Monitor is stopping
+                this.stopped = true;
+            }
+        }
+
+        void post() {
+            if (stopped) {
+                return;
+            }
+            try {
+                world.execute(this);
+            } catch (RejectedExecutionException e) {
+                // World is shutting down
+                this.stopped = true;
+            }
+        }
+    }
+}
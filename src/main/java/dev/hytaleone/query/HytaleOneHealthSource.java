@@ -0,0 +1,21 @@
+package dev.hytaleone.query;
+
+import javax.annotation.Nonnull;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Worlds the health monitor samples. Read on the monitor thread once per sample.
+ */
+public interface HytaleOneHealthSource {
+
+    @Nonnull
+    List<WorldInfo> getWorlds();
+
+    /**
+     * One loaded world. Tasks given to the executor run on the world's tick thread,
+     * counts the server does not expose are -1.
+     */
+    record WorldInfo(@Nonnull String name, @Nonnull Executor executor, int players, int entities, int chunks) {
+    }
+}
@@ -0,0 +1,262 @@
+package dev.hytaleone.query;
+
+import com.hypixel.hytale.logger.HytaleLogger;
+import io.netty.util.concurrent.EventExecutor;
+
+import javax.annotation.Nonnull;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+
+/**
+ * Global load shedding for the query path, driven by event-loop lag and the time spent on queries.
+ * Each event loop that handles queries runs a small probe task every few milliseconds, how
+ * late it runs is the loop's lag. Under pressure the state steps up one level per tick: first full
+ * queries are shed, then basic queries are answered from the cached copy without rebuilding
+ * and everything else is shed, then all queries are dropped. The state only steps down after
+ * pressure stayed below half the thresholds for the whole recovery time, one level at a time.
+ */
+public final class HytaleOneOverloadController {
+
+    public static final int NORMAL = 0;
+    public static final int SHED_FULL = 1;
+    public static final int STALE_BASIC = 2;
+    public static final int DROP_ALL = 3;
+
+    private static final long TICK_MILLIS = 100;
+    private static final long PROBE_MILLIS = 5;
+
+    @Nonnull
+    private final HytaleLogger logger;
+    @Nonnull
+    private final HytaleOneQueryMetrics metrics;
+    private final long lagThresholdNanos;
+    private final double queryShareThreshold;
+    private final int recoverTicks;
+
+    private final CopyOnWriteArrayList<Probe> probes = new CopyOnWriteArrayList<>();
+    private final LongAdder queryNanos = new LongAdder();
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "HytaleOne-Overload");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private volatile int state = NORMAL;
+    // Guarded by probes
+    private boolean started;
+
+    // Only touched on the scheduler thread
+    private long lastTickNanos;
+    private int calmTicks;
+
+    /**
+     * @param lagThresholdMillis  event-loop lag that counts as overload, 0 disables the controller
+     * @param queryPercent        share of event-loop time spent on queries that counts as overload
+     * @param recoverMillis       time pressure must stay low before the state steps down
+     */
+    public HytaleOneOverloadController(@Nonnull HytaleLogger logger, @Nonnull HytaleOneQueryMetrics metrics,
+                                       int lagThresholdMillis, int queryPercent, int recoverMillis) {
+        this.logger = logger;
+        this.metrics = metrics;
+        this.lagThresholdNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(lagThresholdMillis, 0));
+        this.queryShareThreshold = Math.min(Math.max(queryPercent, 1), 100) / 100.0;
+        this.recoverTicks = (int) Math.max(recoverMillis / TICK_MILLIS, 1);
+    }
+
+    /**
+     * Whether the controller measures and sheds at all.
+     */
+    public boolean isEnabled() {
+        return lagThresholdNanos > 0;
+    }
+
+    /**
+     * Start measuring.
+     */
+    public void start() {
+        if (!isEnabled()) {
+            return;
+        }
+        this.lastTickNanos = System.nanoTime();
+        synchronized (probes) {
+            this.started = true;
+            for (Probe probe : probes) {
+                probe.start();
+            }
+        }
+        scheduler.scheduleAtFixedRate(this::tick, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop measuring and go back to normal.
+     */
+    public void stop() {
+        scheduler.shutdownNow();
+        try {
+            scheduler.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (probes) {
+            this.started = false;
+            for (Probe probe : probes) {
+                probe.stopped = true;
+            }
+            probes.clear();
+        }
+        setState(NORMAL);
+    }
+
+    /**
+     * Measure the lag of an event loop that handles queries.
+     */
+    public void watch(@Nonnull EventExecutor executor) {
+        if (!isEnabled()) {
+            return;
+        }
+        for (Probe probe : probes) {
+            if (probe.executor == executor) {
+                return;
+            }
+        }
+        synchronized (probes) {
+            for (Probe probe : probes) {
+                if (probe.executor == executor) {
+                    return;
+                }
+            }
+            Probe probe = new Probe(executor);
+            probes.add(probe);
+            if (started) {
+                probe.start();
+            }
+        }
+    }
+
+    /**
+     * Current shedding state.
+     */
+    public int state() {
+        return state;
+    }
+
+    /**
+     * Record the time one query took on an event loop.
+     */
+    public void recordQueryNanos(long nanos) {
+        if (lagThresholdNanos > 0) {
+            queryNanos.add(nanos);
+        }
+    }
+
+    private void tick() {
+        try {
+            long now = System.nanoTime();
+            long elapsed = Math.max(now - lastTickNanos, 1);
+            this.lastTickNanos = now;
+
+            long lag = 0;
+            for (Probe probe : probes) {
+                if (!probe.stopped) {
+                    lag = Math.max(lag, probe.drain(now));
+                }
+            }
+            int loops = Math.max(probes.size(), 1);
+            double share = (double) queryNanos.sumThenReset() / ((double) elapsed * loops);
+            metrics.recordOverloadSample(lag, share);
+
+            double pressure = Math.max((double) lag / lagThresholdNanos, share / queryShareThreshold);
+            int current = state;
+            if (pressure >= 1.0) {
+                calmTicks = 0;
+                if (current < DROP_ALL) {
+                    setState(current + 1);
+                }
+            } else if (pressure < 0.5 && current > NORMAL) {
+                if (++calmTicks >= recoverTicks) {
+                    calmTicks = 0;
+                    setState(current - 1);
+                }
+            } else {
+                calmTicks = 0;
+            }
+        } catch (Exception e) {
+            logger.at(Level.WARNING).withCause(e).log("Failed to evaluate query load");
+        }
+    }
+
+    private void setState(int next) {
+        int previous = state;
+        if (previous == next) {
+            return;
+        }
+        this.state = next;
+        metrics.recordOverloadTransition(next);
+        logger.at(next > previous ? Level.WARNING : Level.INFO).log("Query load state %s -> %s",
+                name(previous), name(next));
+    }
+
+    @Nonnull
+    public static String name(int state) {
+        return switch (state) {
+            case NORMAL -> "NORMAL";
+            case SHED_FULL -> "SHED_FULL";
+            case STALE_BASIC -> "STALE_BASIC";
+            default -> "DROP_ALL";
+        };
+    }
+
+    /**
+     * Lag probe for one event loop. A task reschedules itself on the loop every few milliseconds
+     * and records how late it ran, the worst delay since the last tick is the loop's lag.
+     */
+    private static final class Probe implements Runnable {
+
+        final EventExecutor executor;
+        final AtomicLong maxLag = new AtomicLong();
+        volatile long expectedAt;
+        volatile boolean stopped;
+
+        Probe(@Nonnull EventExecutor executor) {
+            this.executor = executor;
+        }
+
+        void start() {
+            schedule(System.nanoTime());
+        }
+
+        @Override
+        public void run() {
+            long now = System.nanoTime();
+            maxLag.accumulateAndGet(now - expectedAt, Math::max);
+            if (!stopped) {
+                schedule(now);
+            }
+        }
+
+        /**
+         * Worst lag since the previous call. A probe that is overdue counts as lagging by
+         * how long it has been waiting, so a loop that is stuck is still noticed.
+         */
+        long drain(long now) {
+            return Math.max(maxLag.getAndSet(0), now - expectedAt);
+        }
+
+        private void schedule(long now) {
+            this.expectedAt = now + TimeUnit.MILLISECONDS.toNanos(PROBE_MILLIS);
+            try {
+                executor.schedule(this, PROBE_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // Event loop is shutting down
+                this.stopped = true;
+            }
+        }
+    }
+}
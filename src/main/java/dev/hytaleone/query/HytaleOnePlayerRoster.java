@@ -0,0 +1,379 @@
+package dev.hytaleone.query;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+
+import javax.annotation.Nonnull;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * Incremental index of online players, updated from connect and disconnect events.
+ * Every player owns a fixed-size slot in a packed byte region holding its
+ * pre-encoded name and UUID record. A UUID-keyed and a name-keyed
+ * open-addressing table map players to slots, removal moves the last slot
+ * into the hole, so insert, remove and lookups are O(1). Encoding the roster
+ * is a copy per slot and never touches game objects.
+ */
+public final class HytaleOnePlayerRoster {
+
+    // Longer names are truncated, valid player names are far shorter
+    private static final int MAX_NAME_BYTES = 64;
+    private static final int STRIDE = 2 + MAX_NAME_BYTES + 16;
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final HytaleOneRosterJournal journal;
+
+    // Packed slot records and the UUID of each slot
+    private byte[] region;
+    private long[] slotMsb;
+    private long[] slotLsb;
+    private int count;
+
+    // UUID -> slot table, -1 marks an empty bucket
+    private long[] keyMsb;
+    private long[] keyLsb;
+    private int[] keySlot;
+    private int keyMask;
+
+    // Name -> slot table over the encoded names, same size as the UUID table
+    private int[] slotNameHash;
+    private int[] nameSlot;
+
+    public HytaleOnePlayerRoster(@Nonnull HytaleOneRosterJournal journal) {
+        this.journal = journal;
+        allocate(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Add a player and record a join. Adding an online player again does nothing if its
+     * name is unchanged, and records a leave under the old name and a join under the new
+     * one otherwise.
+     */
+    public synchronized void add(@Nonnull UUID uuid, @Nonnull String name) {
+        long msb = uuid.getMostSignificantBits();
+        long lsb = uuid.getLeastSignificantBits();
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        int length = truncatedLength(bytes);
+        int bucket = find(msb, lsb);
+        int slot;
+        if (bucket >= 0) {
+            slot = keySlot[bucket];
+            if (nameLength(slot) == length && Arrays.equals(region, slot * STRIDE + 2, slot * STRIDE + 2 + length,
+                    bytes, 0, length)) {
+                return;
+            }
+            journal.recordLeave(slotName(slot), uuid);
+            deleteName(findName(slot));
+        } else {
+            if (count == slotMsb.length) {
+                grow();
+            }
+            slot = count++;
+            slotMsb[slot] = msb;
+            slotLsb[slot] = lsb;
+            insert(msb, lsb, slot);
+        }
+        writeSlot(slot, bytes, length, msb, lsb);
+        insertName(slot);
+        // Journal the stored name, so deltas match the pages
+        journal.recordJoin(slotName(slot), uuid);
+    }
+
+    /**
+     * Remove a player if online. Records a leave.
+     */
+    public synchronized void remove(@Nonnull UUID uuid) {
+        long msb = uuid.getMostSignificantBits();
+        long lsb = uuid.getLeastSignificantBits();
+        int bucket = find(msb, lsb);
+        if (bucket < 0) {
+            return;
+        }
+
+        int slot = keySlot[bucket];
+        String name = slotName(slot);
+        delete(bucket);
+        deleteName(findName(slot));
+
+        // Move the last slot into the hole
+        int last = --count;
+        if (slot != last) {
+            System.arraycopy(region, last * STRIDE, region, slot * STRIDE, STRIDE);
+            slotMsb[slot] = slotMsb[last];
+            slotLsb[slot] = slotLsb[last];
+            slotNameHash[slot] = slotNameHash[last];
+            keySlot[find(slotMsb[slot], slotLsb[slot])] = slot;
+            nameSlot[findName(last)] = slot;
+        }
+        journal.recordLeave(name, uuid);
+    }
+
+    /**
+     * Number of online players.
+     */
+    public synchronized int size() {
+        return count;
+    }
+
+    /**
+     * Check which of the given players are online and write one status byte per key.
+     * Keys are read from the buffer, each is a UUID or an encoded name as described in
+     * {@link HytaleOneQueryProtocol#LOOKUP_KEY_UUID}. Every key costs one hash probe,
+     * independent of the number of online players.
+     *
+     * @return the roster generation the answers reflect, or -1 if the keys are truncated
+     */
+    public synchronized long lookup(@Nonnull ByteBuf keys, int keyCount, @Nonnull ByteBuf out) {
+        for (int i = 0; i < keyCount; i++) {
+            if (!keys.isReadable()) {
+                return -1;
+            }
+            byte kind = keys.readByte();
+            boolean online;
+            if (kind == HytaleOneQueryProtocol.LOOKUP_KEY_UUID) {
+                if (keys.readableBytes() < 16) {
+                    return -1;
+                }
+                online = find(keys.readLong(), keys.readLong()) >= 0;
+            } else if (kind == HytaleOneQueryProtocol.LOOKUP_KEY_NAME) {
+                if (keys.readableBytes() < 2 || keys.readableBytes() < 2 + keys.getUnsignedShortLE(keys.readerIndex())) {
+                    return -1;
+                }
+                int length = keys.readUnsignedShortLE();
+                online = findName(keys, keys.readerIndex(), length) >= 0;
+                keys.skipBytes(length);
+            } else {
+                return -1;
+            }
+            out.writeByte(online ? HytaleOneQueryProtocol.LOOKUP_ONLINE : HytaleOneQueryProtocol.LOOKUP_OFFLINE);
+        }
+        return journal.generation();
+    }
+
+    /**
+     * Encode the player list section (count followed by name and UUID records)
+     * together with the offset of every record and the generation it reflects.
+     */
+    @Nonnull
+    public synchronized Encoded encode(@Nonnull ByteBufAllocator alloc) {
+        int[] offsets = new int[count + 1];
+        ByteBuf section = alloc.directBuffer(4 + count * 24);
+        section.writeIntLE(count);
+        for (int slot = 0; slot < count; slot++) {
+            offsets[slot] = section.writerIndex();
+            section.writeBytes(region, slot * STRIDE, 2 + nameLength(slot) + 16);
+        }
+        offsets[count] = section.writerIndex();
+        return new Encoded(count, journal.generation(), section, offsets);
+    }
+
+    private int nameLength(int slot) {
+        int base = slot * STRIDE;
+        return (region[base] & 0xFF) | ((region[base + 1] & 0xFF) << 8);
+    }
+
+    @Nonnull
+    private String slotName(int slot) {
+        return new String(region, slot * STRIDE + 2, nameLength(slot), StandardCharsets.UTF_8);
+    }
+
+    private static int truncatedLength(@Nonnull byte[] bytes) {
+        int length = bytes.length;
+        if (length > MAX_NAME_BYTES) {
+            // Cut at a character boundary
+            length = MAX_NAME_BYTES;
+            while (length > 0 && (bytes[length] & 0xC0) == 0x80) {
+                length--;
+            }
+        }
+        return length;
+    }
+
+    private void writeSlot(int slot, @Nonnull byte[] bytes, int length, long msb, long lsb) {
+        int base = slot * STRIDE;
+        region[base] = (byte) length;
+        region[base + 1] = (byte) (length >>> 8);
+        System.arraycopy(bytes, 0, region, base + 2, length);
+        slotNameHash[slot] = nameHash(bytes, length);
+        writeLong(base + 2 + length, msb);
+        writeLong(base + 2 + length + 8, lsb);
+    }
+
+    private void writeLong(int offset, long value) {
+        for (int i = 7; i >= 0; i--) {
+            region[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    private int find(long msb, long lsb) {
+        int bucket = hash(msb, lsb) & keyMask;
+        while (keySlot[bucket] >= 0) {
+            if (keyMsb[bucket] == msb && keyLsb[bucket] == lsb) {
+                return bucket;
+            }
+            bucket = (bucket + 1) & keyMask;
+        }
+        return -1;
+    }
+
+    private void insert(long msb, long lsb, int slot) {
+        int bucket = hash(msb, lsb) & keyMask;
+        while (keySlot[bucket] >= 0) {
+            bucket = (bucket + 1) & keyMask;
+        }
+        keyMsb[bucket] = msb;
+        keyLsb[bucket] = lsb;
+        keySlot[bucket] = slot;
+    }
+
+    /**
+     * Linear probing removal with backward shift, so no tombstones pile up.
+     */
+    private void delete(int bucket) {
+        int hole = bucket;
+        int next = (hole + 1) & keyMask;
+        while (keySlot[next] >= 0) {
+            int home = hash(keyMsb[next], keyLsb[next]) & keyMask;
+            // Move the entry back if the hole lies between its home bucket and its position
+            if (((next - home) & keyMask) >= ((next - hole) & keyMask)) {
+                keyMsb[hole] = keyMsb[next];
+                keyLsb[hole] = keyLsb[next];
+                keySlot[hole] = keySlot[next];
+                hole = next;
+            }
+            next = (next + 1) & keyMask;
+        }
+        keySlot[hole] = -1;
+    }
+
+    /**
+     * Find the bucket of the given slot in the name table.
+     */
+    private int findName(int slot) {
+        int bucket = slotNameHash[slot] & keyMask;
+        while (nameSlot[bucket] != slot) {
+            bucket = (bucket + 1) & keyMask;
+        }
+        return bucket;
+    }
+
+    /**
+     * Find the slot of a player by its UTF-8 name, or -1 if no player has that name.
+     */
+    private int findName(@Nonnull ByteBuf buf, int offset, int length) {
+        int hash = 0x811C9DC5;
+        for (int i = 0; i < length; i++) {
+            hash = (hash ^ (buf.getByte(offset + i) & 0xFF)) * 0x01000193;
+        }
+        hash = mixNameHash(hash);
+
+        int bucket = hash & keyMask;
+        int slot;
+        while ((slot = nameSlot[bucket]) >= 0) {
+            if (slotNameHash[slot] == hash && nameLength(slot) == length && nameEquals(slot, buf, offset, length)) {
+                return slot;
+            }
+            bucket = (bucket + 1) & keyMask;
+        }
+        return -1;
+    }
+
+    private boolean nameEquals(int slot, @Nonnull ByteBuf buf, int offset, int length) {
+        int base = slot * STRIDE + 2;
+        for (int i = 0; i < length; i++) {
+            if (region[base + i] != buf.getByte(offset + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void insertName(int slot) {
+        int bucket = slotNameHash[slot] & keyMask;
+        while (nameSlot[bucket] >= 0) {
+            bucket = (bucket + 1) & keyMask;
+        }
+        nameSlot[bucket] = slot;
+    }
+
+    /**
+     * Backward shift removal, as in {@link #delete(int)}.
+     */
+    private void deleteName(int bucket) {
+        int hole = bucket;
+        int next = (hole + 1) & keyMask;
+        while (nameSlot[next] >= 0) {
+            int home = slotNameHash[nameSlot[next]] & keyMask;
+            if (((next - home) & keyMask) >= ((next - hole) & keyMask)) {
+                nameSlot[hole] = nameSlot[next];
+                hole = next;
+            }
+            next = (next + 1) & keyMask;
+        }
+        nameSlot[hole] = -1;
+    }
+
+    private void grow() {
+        byte[] oldRegion = region;
+        long[] oldMsb = slotMsb;
+        long[] oldLsb = slotLsb;
+        int[] oldNameHash = slotNameHash;
+
+        allocate(oldMsb.length * 2);
+        System.arraycopy(oldRegion, 0, region, 0, oldRegion.length);
+        System.arraycopy(oldMsb, 0, slotMsb, 0, count);
+        System.arraycopy(oldLsb, 0, slotLsb, 0, count);
+        System.arraycopy(oldNameHash, 0, slotNameHash, 0, count);
+        for (int slot = 0; slot < count; slot++) {
+            insert(slotMsb[slot], slotLsb[slot], slot);
+            insertName(slot);
+        }
+    }
+
+    private void allocate(int capacity) {
+        this.region = new byte[capacity * STRIDE];
+        this.slotMsb = new long[capacity];
+        this.slotLsb = new long[capacity];
+        this.slotNameHash = new int[capacity];
+
+        // Keep the table at most half full
+        int buckets = capacity * 2;
+        this.keyMsb = new long[buckets];
+        this.keyLsb = new long[buckets];
+        this.keySlot = new int[buckets];
+        Arrays.fill(keySlot, -1);
+        this.nameSlot = new int[buckets];
+        Arrays.fill(nameSlot, -1);
+        this.keyMask = buckets - 1;
+    }
+
+    private static int hash(long msb, long lsb) {
+        long h = (msb ^ Long.rotateLeft(lsb, 32)) * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 29));
+    }
+
+    /**
+     * FNV-1a over the encoded name bytes, must match {@link #findName(ByteBuf, int, int)}.
+     */
+    private static int nameHash(@Nonnull byte[] bytes, int length) {
+        int hash = 0x811C9DC5;
+        for (int i = 0; i < length; i++) {
+            hash = (hash ^ (bytes[i] & 0xFF)) * 0x01000193;
+        }
+        return mixNameHash(hash);
+    }
+
+    private static int mixNameHash(int hash) {
+        // Spread the high bits into the low bits used for the bucket index
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Encoded player list section, see {@link #encode(ByteBufAllocator)}.
+     */
+    public record Encoded(int count, long generation, @Nonnull ByteBuf section, @Nonnull int[] offsets) {
+    }
+}
@@ -0,0 +1,610 @@
+package dev.hytaleone.query;
+
+import com.hypixel.hytale.logger.HytaleLogger;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.FixedRecvByteBufAllocator;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.channel.socket.nio.NioDatagramChannel;
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+import javax.annotation.Nonnull;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Aggregator mode: polls backend servers over the query protocol and merges their
+ * players and player limits into the local roster and the cluster source, so public
+ * queries are answered from the query cache and never fan out to the backends.
+ * Every poll round asks all backends in parallel for their counts and the roster changes
+ * since the last seen generation, tagged with a nonce, and merges once all replied or the
+ * timeout passed. A backend is first synced with player pages, and again whenever it
+ * asks for a resync, so no reply has to be larger than the backend's datagram budget.
+ * A backend that misses a round keeps its last known players until it missed
+ * {@value #MAX_MISSED_POLLS} rounds in a row. All polling state is confined to one event loop.
+ */
+public final class HytaleOneQueryAggregator {
+
+    private static final int MAX_MISSED_POLLS = 3;
+
+    private static final int MAX_DATAGRAM_SIZE = 65535;
+
+    // With the basic query, stays within a backend's default basic query rate at the default poll interval
+    private static final int MAX_PAGES_PER_POLL = 8;
+
+    // Batch query indexes of the sync request
+    private static final int SYNC_BASIC = 0;
+    private static final int SYNC_PAGE = 1;
+
+    @Nonnull
+    private final HytaleLogger logger;
+    @Nonnull
+    private final Backend[] backends;
+    @Nonnull
+    private final HytaleOnePlayerRoster roster;
+    @Nonnull
+    private final HytaleOneClusterQuerySource source;
+    @Nonnull
+    private final HytaleOneQueryCache cache;
+    private final long pollMillis;
+    private final long timeoutMillis;
+    @Nonnull
+    private final ChannelFutureListener sendListener;
+
+    private Map<UUID, String> merged = new HashMap<>();
+    private int round;
+    private int outstanding;
+
+    private EventLoopGroup group;
+    private Channel channel;
+
+    public HytaleOneQueryAggregator(@Nonnull HytaleLogger logger, @Nonnull List<InetSocketAddress> backends,
+                                    @Nonnull HytaleOnePlayerRoster roster, @Nonnull HytaleOneClusterQuerySource source,
+                                    @Nonnull HytaleOneQueryCache cache, int pollMillis, int timeoutMillis) {
+        if (backends.isEmpty() || backends.size() > 0xFFFF) {
+            throw new IllegalArgumentException("Expected 1 to 65535 backends, got " + backends.size());
+        }
+        this.logger = logger;
+        this.backends = new Backend[backends.size()];
+        for (int i = 0; i < this.backends.length; i++) {
+            this.backends[i] = new Backend(backends.get(i));
+        }
+        this.roster = roster;
+        this.source = source;
+        this.cache = cache;
+        this.pollMillis = Math.max(pollMillis, 100);
+        // Replies to a round must arrive before the next round starts
+        this.timeoutMillis = Math.min(Math.max(timeoutMillis, 10), this.pollMillis);
+        this.sendListener = future -> {
+            if (!future.isSuccess()) {
+                logger.at(Level.FINE).withCause(future.cause()).log("Failed to send a poll");
+            }
+        };
+    }
+
+    /**
+     * Parse a comma-separated list of host:port backend addresses.
+     */
+    @Nonnull
+    public static List<InetSocketAddress> parseBackends(@Nonnull String list) {
+        List<InetSocketAddress> result = new ArrayList<>();
+        for (String entry : list.split(",")) {
+            String backend = entry.trim();
+            if (backend.isEmpty()) {
+                continue;
+            }
+            int colon = backend.lastIndexOf(':');
+            if (colon <= 0) {
+                throw new IllegalArgumentException("Backend '" + backend + "' is not host:port");
+            }
+            String host = backend.substring(0, colon);
+            if (host.startsWith("[") && host.endsWith("]")) {
+                host = host.substring(1, host.length() - 1);
+            }
+            InetSocketAddress address = new InetSocketAddress(host, Integer.parseInt(backend.substring(colon + 1)));
+            if (address.isUnresolved()) {
+                throw new IllegalArgumentException("Backend host '" + host + "' cannot be resolved");
+            }
+            result.add(address);
+        }
+        return result;
+    }
+
+    /**
+     * Bind the polling socket and start polling.
+     */
+    public void start() throws InterruptedException {
+        this.group = new NioEventLoopGroup(1, new DefaultThreadFactory("HytaleOne-Aggregator", true));
+        try {
+            this.channel = new Bootstrap()
+                    .group(group)
+                    .channel(NioDatagramChannel.class)
+                    // The default 2 KiB receive buffer would truncate replies of backends with a larger budget
+                    .option(ChannelOption.RCVBUF_ALLOCATOR, new FixedRecvByteBufAllocator(MAX_DATAGRAM_SIZE))
+                    .handler(new SimpleChannelInboundHandler<DatagramPacket>() {
+                        @Override
+                        protected void channelRead0(@Nonnull ChannelHandlerContext ctx, @Nonnull DatagramPacket packet) {
+                            onReply(packet);
+                        }
+
+                        @Override
+                        public void channelReadComplete(@Nonnull ChannelHandlerContext ctx) {
+                            // Follow-up requests written while reading the replies
+                            ctx.flush();
+                        }
+                    })
+                    .bind(new InetSocketAddress(0)).sync().channel();
+        } catch (Exception e) {
+            stop();
+            throw e;
+        }
+        channel.eventLoop().scheduleAtFixedRate(this::poll, 0, pollMillis, TimeUnit.MILLISECONDS);
+
+        logger.at(Level.INFO).log("Aggregating %d backend(s) every %d ms", backends.length, pollMillis);
+    }
+
+    /**
+     * Stop polling and close the socket. The merged players stay in the roster.
+     */
+    public void stop() {
+        if (channel != null) {
+            channel.close().awaitUninterruptibly();
+            this.channel = null;
+        }
+        if (group != null) {
+            group.shutdownGracefully(0, 1, TimeUnit.SECONDS).awaitUninterruptibly();
+            this.group = null;
+        }
+    }
+
+    private void poll() {
+        try {
+            round++;
+            outstanding = backends.length;
+            for (int i = 0; i < backends.length; i++) {
+                Backend backend = backends[i];
+                backend.startRound();
+                // The nonce names the backend and the round, late replies from older rounds are ignored
+                int nonce = (round << 16) | i;
+                if (backend.hasToken) {
+                    sendPoll(backend, nonce);
+                } else {
+                    sendChallenge(backend, nonce);
+                }
+            }
+            channel.flush();
+
+            int current = round;
+            channel.eventLoop().schedule(() -> {
+                if (round == current && outstanding > 0) {
+                    finishRound();
+                }
+            }, timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            logger.at(Level.WARNING).withCause(e).log("Failed to poll backends");
+        }
+    }
+
+    private void sendPoll(@Nonnull Backend backend, int nonce) {
+        if (backend.synced) {
+            sendBasic(backend, nonce);
+            sendDelta(backend, nonce);
+        } else if (backend.pageSnapshot == 0) {
+            sendSync(backend, nonce);
+        } else {
+            sendBasic(backend, nonce);
+            sendMissingPages(backend, nonce);
+        }
+    }
+
+    private void sendChallenge(@Nonnull Backend backend, int nonce) {
+        ByteBuf buf = request(HytaleOneQueryProtocol.TYPE_CHALLENGE, nonce,
+                HytaleOneQueryProtocol.CHALLENGE_REQUEST_SIZE);
+        buf.writeZero(buf.writableBytes());
+        send(backend, buf);
+    }
+
+    private void sendBasic(@Nonnull Backend backend, int nonce) {
+        send(backend, request(HytaleOneQueryProtocol.TYPE_BASIC, nonce, HytaleOneQueryProtocol.MIN_REQUEST_SIZE));
+    }
+
+    private void sendDelta(@Nonnull Backend backend, int nonce) {
+        ByteBuf buf = request(HytaleOneQueryProtocol.TYPE_ROSTER_DELTA, nonce,
+                HytaleOneQueryProtocol.DELTA_REQUEST_SIZE);
+        buf.writeLongLE(backend.token);
+        buf.writeLongLE(backend.generation);
+        send(backend, buf);
+    }
+
+    /**
+     * Ask for the counts and the first player page in one batch, so both come from the
+     * same snapshot and the batch header names the roster generation the pages belong to.
+     */
+    private void sendSync(@Nonnull Backend backend, int nonce) {
+        ByteBuf buf = request(HytaleOneQueryProtocol.TYPE_BATCH, nonce,
+                HytaleOneQueryProtocol.BATCH_REQUEST_SIZE + 2 * HytaleOneQueryProtocol.BATCH_QUERY_SIZE);
+        buf.writeLongLE(backend.token);
+        buf.writeByte(2);
+        buf.writeByte(HytaleOneQueryProtocol.TYPE_BASIC);
+        buf.writeZero(HytaleOneQueryProtocol.BATCH_QUERY_SIZE - 1);
+        // Snapshot id 0 cuts the page from the roster of the batch snapshot, page 0, as many as fit
+        buf.writeByte(HytaleOneQueryProtocol.TYPE_PLAYER_PAGE);
+        buf.writeZero(HytaleOneQueryProtocol.BATCH_QUERY_SIZE - 1);
+        send(backend, buf);
+    }
+
+    private void sendMissingPages(@Nonnull Backend backend, int nonce) {
+        int page = backend.pages.nextClearBit(0);
+        for (int sent = 0; page < backend.pageCount && sent < MAX_PAGES_PER_POLL; sent++) {
+            ByteBuf buf = request(HytaleOneQueryProtocol.TYPE_PLAYER_PAGE, nonce,
+                    HytaleOneQueryProtocol.PAGE_REQUEST_SIZE);
+            buf.writeLongLE(backend.token);
+            buf.writeIntLE(backend.pageSnapshot);
+            buf.writeShortLE(page);
+            buf.writeShortLE(backend.pageSize);
+            send(backend, buf);
+            page = backend.pages.nextClearBit(page + 1);
+        }
+    }
+
+    /**
+     * Start a request of the given type carrying the nonce, the caller appends the fields after it.
+     */
+    @Nonnull
+    private ByteBuf request(byte type, int nonce, int size) {
+        ByteBuf buf = channel.alloc().directBuffer(size + HytaleOneQueryProtocol.NONCE_SIZE);
+        buf.writeBytes(HytaleOneQueryProtocol.REQUEST_MAGIC);
+        buf.writeByte(type | HytaleOneQueryProtocol.FLAG_NONCE);
+        buf.writeIntLE(nonce);
+        return buf;
+    }
+
+    private void send(@Nonnull Backend backend, @Nonnull ByteBuf buf) {
+        channel.write(new DatagramPacket(buf, backend.address)).addListener(sendListener);
+    }
+
+    private void onReply(@Nonnull DatagramPacket packet) {
+        ByteBuf content = packet.content();
+        int headerSize = HytaleOneQueryProtocol.NONCE_RESPONSE_HEADER_SIZE;
+        if (content.readableBytes() < headerSize || !hasResponseMagic(content)) {
+            return;
+        }
+        byte type = content.getByte(content.readerIndex() + HytaleOneQueryProtocol.RESPONSE_MAGIC.length);
+        int nonce = content.getIntLE(content.readerIndex() + HytaleOneQueryProtocol.RESPONSE_MAGIC.length + 1);
+        int index = nonce & 0xFFFF;
+        if ((type & HytaleOneQueryProtocol.FLAG_NONCE) == 0 || (nonce >>> 16) != (round & 0xFFFF)
+                || index >= backends.length) {
+            return;
+        }
+        Backend backend = backends[index];
+        if (backend.replied || !backend.address.equals(packet.sender())) {
+            return;
+        }
+
+        int body = content.readerIndex() + headerSize;
+        ByteBuf fields = content.slice(body, content.writerIndex() - body);
+        try {
+            switch (type & HytaleOneQueryProtocol.TYPE_MASK) {
+                case HytaleOneQueryProtocol.TYPE_CHALLENGE -> {
+                    backend.token = fields.readLongLE();
+                    backend.hasToken = true;
+                    sendPoll(backend, nonce);
+                    return;
+                }
+                case HytaleOneQueryProtocol.TYPE_BASIC -> readBasic(backend, fields);
+                case HytaleOneQueryProtocol.TYPE_ROSTER_DELTA -> readDelta(backend, fields, nonce);
+                case HytaleOneQueryProtocol.TYPE_PLAYER_PAGE -> readPage(backend, fields);
+                case HytaleOneQueryProtocol.TYPE_BATCH -> readSync(backend, fields, nonce);
+                default -> {
+                    return;
+                }
+            }
+        } catch (RuntimeException e) {
+            logger.at(Level.FINE).withCause(e).log("Malformed reply from backend %s", backend.address);
+            return;
+        }
+
+        if (!backend.answered) {
+            backend.answered = true;
+            if (backend.missed >= MAX_MISSED_POLLS) {
+                logger.at(Level.INFO).log("Backend %s is reachable again", backend.address);
+            }
+            backend.missed = 0;
+        }
+        if (backend.countsSeen && backend.playersSeen) {
+            backend.replied = true;
+            if (--outstanding == 0) {
+                finishRound();
+            }
+        }
+    }
+
+    /**
+     * Read the player limit of a basic response body, starting at the server name.
+     */
+    private static void readBasic(@Nonnull Backend backend, @Nonnull ByteBuf buf) {
+        skipString(buf); // server name
+        skipString(buf); // MOTD
+        buf.skipBytes(4); // current players
+        backend.maxPlayers = Math.max(buf.readIntLE(), 0);
+        backend.countsSeen = true;
+    }
+
+    /**
+     * Apply a roster delta body to the players of a synced backend, or start syncing it
+     * with pages again when the backend can no longer send its changes.
+     */
+    private void readDelta(@Nonnull Backend backend, @Nonnull ByteBuf buf, int nonce) {
+        if (!backend.synced || backend.playersSeen) {
+            return;
+        }
+        byte status = buf.readByte();
+        long generation = buf.readLongLE();
+        switch (status) {
+            case HytaleOneQueryProtocol.DELTA_NOT_MODIFIED -> {
+            }
+            case HytaleOneQueryProtocol.DELTA_CHANGES -> {
+                int count = buf.readIntLE();
+                if (count < 0 || count > buf.readableBytes() / 19) {
+                    throw new IllegalArgumentException("Bad change count " + count);
+                }
+                Map<UUID, String> players = new HashMap<>(backend.players);
+                for (int i = 0; i < count; i++) {
+                    byte op = buf.readByte();
+                    String name = readName(buf);
+                    UUID uuid = new UUID(buf.readLong(), buf.readLong());
+                    if (op == HytaleOneRosterJournal.OP_JOIN) {
+                        players.put(uuid, name);
+                    } else {
+                        players.remove(uuid);
+                    }
+                }
+                backend.players = players;
+            }
+            case HytaleOneQueryProtocol.DELTA_RESYNC -> {
+                // Too far behind for changes, the players are synced with pages within this round
+                backend.synced = false;
+                backend.pageSnapshot = 0;
+                backend.progressed = true;
+                sendSync(backend, nonce);
+                return;
+            }
+            default -> throw new IllegalArgumentException("Unknown delta status " + status);
+        }
+        backend.generation = generation;
+        backend.playersSeen = true;
+        backend.progressed = true;
+    }
+
+    /**
+     * Read the entries of the sync batch, the counts and the first player page, and request
+     * the remaining pages of that roster.
+     */
+    private void readSync(@Nonnull Backend backend, @Nonnull ByteBuf buf, int nonce) {
+        if (backend.synced) {
+            return;
+        }
+        long generation = buf.readLongLE();
+        buf.skipBytes(2); // datagram index and count
+        int entries = buf.readUnsignedByte();
+        for (int i = 0; i < entries; i++) {
+            int query = buf.readUnsignedByte();
+            int length = buf.readUnsignedShortLE();
+            if (length == HytaleOneQueryProtocol.BATCH_ENTRY_TOO_LARGE) {
+                // Not answered, a missing first page is asked for again next round
+                continue;
+            }
+            ByteBuf entry = buf.readSlice(length);
+            // Each entry is a complete reply without a nonce
+            int headerSize = HytaleOneQueryProtocol.RESPONSE_MAGIC.length + 1;
+            if (entry.readableBytes() < headerSize) {
+                continue;
+            }
+            byte type = entry.getByte(entry.readerIndex() + HytaleOneQueryProtocol.RESPONSE_MAGIC.length);
+            entry.skipBytes(headerSize);
+            if (query == SYNC_BASIC && type == HytaleOneQueryProtocol.TYPE_BASIC) {
+                readBasic(backend, entry);
+            } else if (query == SYNC_PAGE && type == HytaleOneQueryProtocol.TYPE_PLAYER_PAGE
+                    && backend.pageSnapshot == 0) {
+                int snapshot = entry.readIntLE();
+                int total = entry.readIntLE();
+                int page = entry.readUnsignedShortLE();
+                int pageSize = entry.readUnsignedShortLE();
+                if (snapshot == 0 || page != 0 || (total > 0 && pageSize == 0)) {
+                    throw new IllegalArgumentException("Bad first page of snapshot " + snapshot);
+                }
+                backend.pageSnapshot = snapshot;
+                backend.pageSize = pageSize;
+                backend.pageCount = total > 0 ? (total + pageSize - 1) / pageSize : 1;
+                backend.pageGeneration = generation;
+                backend.pages.clear();
+                backend.paged = new HashMap<>(total * 2);
+                storePage(backend, page, entry);
+                if (!backend.synced) {
+                    sendMissingPages(backend, nonce);
+                }
+            }
+        }
+    }
+
+    /**
+     * Read a player page body of the roster being synced.
+     */
+    private static void readPage(@Nonnull Backend backend, @Nonnull ByteBuf buf) {
+        if (backend.synced || backend.pageSnapshot == 0) {
+            return;
+        }
+        int snapshot = buf.readIntLE();
+        buf.skipBytes(4); // total players
+        int page = buf.readUnsignedShortLE();
+        int pageSize = buf.readUnsignedShortLE();
+        if (snapshot != backend.pageSnapshot || pageSize != backend.pageSize) {
+            // The backend no longer keeps that roster, sync again from its latest one
+            backend.pageSnapshot = 0;
+            return;
+        }
+        storePage(backend, page, buf);
+    }
+
+    /**
+     * Store the entries of a page, the last missing page completes the sync.
+     */
+    private static void storePage(@Nonnull Backend backend, int page, @Nonnull ByteBuf buf) {
+        int count = buf.readUnsignedShortLE();
+        if (page >= backend.pageCount || backend.pages.get(page)) {
+            return;
+        }
+        if (count > buf.readableBytes() / 18) {
+            throw new IllegalArgumentException("Bad page entry count " + count);
+        }
+        for (int i = 0; i < count; i++) {
+            String name = readName(buf);
+            backend.paged.put(new UUID(buf.readLong(), buf.readLong()), name);
+        }
+        backend.pages.set(page);
+        backend.progressed = true;
+
+        if (backend.pages.nextClearBit(0) >= backend.pageCount) {
+            backend.players = backend.paged;
+            backend.generation = backend.pageGeneration;
+            backend.synced = true;
+            backend.playersSeen = true;
+            backend.pageSnapshot = 0;
+            backend.paged = null;
+        }
+    }
+
+    @Nonnull
+    private static String readName(@Nonnull ByteBuf buf) {
+        int length = buf.readUnsignedShortLE();
+        return buf.readCharSequence(length, StandardCharsets.UTF_8).toString();
+    }
+
+    private static void skipString(@Nonnull ByteBuf buf) {
+        buf.skipBytes(buf.readUnsignedShortLE());
+    }
+
+    private static boolean hasResponseMagic(@Nonnull ByteBuf buf) {
+        for (int i = 0; i < HytaleOneQueryProtocol.RESPONSE_MAGIC.length; i++) {
+            if (buf.getByte(buf.readerIndex() + i) != HytaleOneQueryProtocol.RESPONSE_MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void finishRound() {
+        outstanding = 0;
+        for (Backend backend : backends) {
+            if (backend.replied) {
+                continue;
+            }
+            if (backend.answered) {
+                if (!backend.progressed) {
+                    // Only the token-free replies came back, ask for a fresh token in case the old one expired
+                    backend.hasToken = false;
+                }
+                continue;
+            }
+            // Ask for a fresh token next round in case the old one expired
+            backend.hasToken = false;
+            if (++backend.missed == MAX_MISSED_POLLS) {
+                logger.at(Level.WARNING).log("Backend %s missed %d polls, dropping its players",
+                        backend.address, MAX_MISSED_POLLS);
+            }
+        }
+        merge();
+    }
+
+    /**
+     * Apply the players of all live backends to the roster as joins and leaves.
+     */
+    private void merge() {
+        Map<UUID, String> next = new HashMap<>(merged.size() * 2);
+        int maxPlayers = 0;
+        for (Backend backend : backends) {
+            if (backend.missed < MAX_MISSED_POLLS && backend.players != null) {
+                next.putAll(backend.players);
+                maxPlayers += backend.maxPlayers;
+            }
+        }
+
+        boolean changed = false;
+        for (UUID uuid : merged.keySet()) {
+            if (!next.containsKey(uuid)) {
+                roster.remove(uuid);
+                changed = true;
+            }
+        }
+        for (Map.Entry<UUID, String> player : next.entrySet()) {
+            if (!player.getValue().equals(merged.get(player.getKey()))) {
+                roster.add(player.getKey(), player.getValue());
+                changed = true;
+            }
+        }
+        this.merged = next;
+
+        if (source.setMaxPlayers(maxPlayers) || changed) {
+            cache.invalidate();
+        }
+    }
+
+    /**
+     * Poll state of one backend.
+     */
+    private static final class Backend {
+
+        final InetSocketAddress address;
+        long token;
+        boolean hasToken;
+        int missed;
+        int maxPlayers;
+        Map<UUID, String> players;
+
+        // Roster generation the players are at, changes are asked for from there
+        boolean synced;
+        long generation;
+
+        // Roster being synced with pages, 0 when no sync is in progress
+        int pageSnapshot;
+        int pageSize;
+        int pageCount;
+        long pageGeneration;
+        final BitSet pages = new BitSet();
+        Map<UUID, String> paged;
+
+        // State of the current round
+        boolean answered;
+        boolean countsSeen;
+        boolean playersSeen;
+        boolean progressed;
+        boolean replied;
+
+        Backend(@Nonnull InetSocketAddress address) {
+            this.address = address;
+        }
+
+        void startRound() {
+            this.answered = false;
+            this.countsSeen = false;
+            this.playersSeen = false;
+            this.progressed = false;
+            this.replied = false;
+        }
+    }
+}
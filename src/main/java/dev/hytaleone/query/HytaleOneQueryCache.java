@@ -0,0 +1,640 @@
+package dev.hytaleone.query;
+
+import com.hypixel.hytale.logger.HytaleLogger;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+
+import javax.annotation.Nonnull;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.zip.Deflater;
+
+/**
+ * Versioned cache of pre-encoded query responses.
+ * Static sections are encoded once on start, dynamic state is captured again on a
+ * background thread every TTL and right after the cache is invalidated, so queries
+ * never wait for a rebuild. Responses are served as retained duplicates of pooled
+ * direct buffers. Readers pin a snapshot while they take their duplicates, so its
+ * buffers only go back to the pool once the last reader is done with it.
+ */
+public final class HytaleOneQueryCache {
+
+    // Older rosters stay around so clients can finish paging through a consistent snapshot
+    private static final int RETAINED_ROSTERS = 4;
+
+    // Shortest refresh interval, a TTL of 0 refreshes this often
+    private static final long MIN_REFRESH_MILLIS = 10;
+
+    private final ByteBufAllocator alloc = PooledByteBufAllocator.DEFAULT;
+    @Nonnull
+    private final HytaleLogger logger;
+    private final long refreshMillis;
+    private final int maxResponseBytes;
+    private final HytaleOneQuerySource source;
+    private final HytaleOnePlayerRoster roster;
+    private final HytaleOneRosterJournal journal;
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "HytaleOne-QueryCache");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Set while a refresh for an invalidation is queued, so a burst of changes queues one
+    private final AtomicBoolean refreshQueued = new AtomicBoolean();
+
+    private volatile Snapshot snapshot;
+
+    // Newest first, replaced as a whole on every roster change
+    private volatile Roster[] rosters = new Roster[0];
+
+    // Only touched on the scheduler thread
+    private final Deflater deflater = new Deflater();
+    private int nextRosterId = 1;
+    private ByteBuf versionSection;
+    private ByteBuf pluginSection;
+    private List<HytaleOneQuerySource.PluginInfo> plugins;
+    private ByteBuf identitySection;
+    private String serverName;
+    private String motd;
+    private int hostPort;
+
+    /**
+     * @param ttlMillis        how often the snapshot is rebuilt when nothing invalidates it
+     * @param maxResponseBytes byte budget of paged and delta responses
+     */
+    public HytaleOneQueryCache(@Nonnull HytaleLogger logger, long ttlMillis, int maxResponseBytes,
+                               @Nonnull HytaleOneQuerySource source, @Nonnull HytaleOnePlayerRoster roster,
+                               @Nonnull HytaleOneRosterJournal journal) {
+        this.logger = logger;
+        this.refreshMillis = Math.max(ttlMillis, MIN_REFRESH_MILLIS);
+        this.maxResponseBytes = maxResponseBytes;
+        this.source = source;
+        this.roster = roster;
+        this.journal = journal;
+    }
+
+    /**
+     * Encode the static sections, build the first snapshot and start refreshing it.
+     * Returns once the first snapshot is published.
+     */
+    public void start() {
+        try {
+            // Built on the scheduler thread like every later snapshot, which owns the section fields
+            scheduler.submit(() -> {
+                if (versionSection != null) {
+                    throw new IllegalStateException("Query cache is already running");
+                }
+                this.versionSection = HytaleOneQueryProtocol.encodeVersion(alloc, source.getVersion(),
+                        source.getProtocolVersion(), source.getProtocolHash());
+                this.hostPort = source.getHostPort();
+                rebuild();
+            }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while building the first query snapshot", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Failed to build the first query snapshot", e.getCause());
+        }
+        scheduler.scheduleWithFixedDelay(this::refresh, refreshMillis, refreshMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop refreshing and release all cached buffers. Readers still holding a pin keep
+     * theirs until they are done. The cache cannot be used afterwards.
+     */
+    public void stop() {
+        scheduler.shutdownNow();
+        try {
+            scheduler.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        Snapshot current = this.snapshot;
+        this.snapshot = null;
+        if (current != null) {
+            current.release();
+        }
+        Roster[] retained = this.rosters;
+        this.rosters = new Roster[0];
+        for (Roster roster : retained) {
+            roster.release();
+        }
+        releaseSection(versionSection);
+        releaseSection(pluginSection);
+        releaseSection(identitySection);
+        this.versionSection = null;
+        this.pluginSection = null;
+        this.identitySection = null;
+        deflater.end();
+    }
+
+    /**
+     * Mark the cached state as outdated, it is rebuilt right away on the refresh thread.
+     * Queries keep getting the previous snapshot until the new one is published.
+     */
+    public void invalidate() {
+        if (refreshQueued.compareAndSet(false, true)) {
+            try {
+                scheduler.execute(this::refresh);
+            } catch (RejectedExecutionException e) {
+                // Stopped, nothing left to refresh
+            }
+        }
+    }
+
+    /**
+     * Latest roster generation.
+     */
+    public long generation() {
+        return journal.generation();
+    }
+
+    @Nonnull
+    HytaleOneQuerySource source() {
+        return source;
+    }
+
+    @Nonnull
+    HytaleOnePlayerRoster roster() {
+        return roster;
+    }
+
+    @Nonnull
+    HytaleOneRosterJournal journal() {
+        return journal;
+    }
+
+    /**
+     * Get the basic response. The caller owns the returned buffer.
+     */
+    @Nonnull
+    public ByteBuf basicResponse() {
+        return duplicate(current -> current.basic);
+    }
+
+    /**
+     * Get the full response. The caller owns the returned buffer.
+     */
+    @Nonnull
+    public ByteBuf fullResponse() {
+        return duplicate(current -> current.full);
+    }
+
+    /**
+     * Get the compressed full response, or the plain one when compression does
+     * not make it smaller. The caller owns the returned buffer.
+     */
+    @Nonnull
+    public ByteBuf compressedFullResponse() {
+        return duplicate(Snapshot::smallestFull);
+    }
+
+    /**
+     * Get a projection holding only the requested fields of the current snapshot.
+     * Sections are copied from the snapshot, nothing is encoded per request.
+     * The caller owns the returned buffer.
+     */
+    @Nonnull
+    public ByteBuf projection(@Nonnull ByteBufAllocator alloc, int fields) {
+        Snapshot current = pinSnapshot();
+        try {
+            return projection(alloc, current, fields);
+        } finally {
+            current.release();
+        }
+    }
+
+    @Nonnull
+    private ByteBuf projection(@Nonnull ByteBufAllocator alloc, @Nonnull Snapshot current, int fields) {
+        ByteBuf identity = null;
+        ByteBuf version = null;
+        ByteBuf players = null;
+        ByteBuf plugins = null;
+        try {
+            identity = retainIfRequested(fields, HytaleOneQueryProtocol.FIELD_IDENTITY, current.identitySection);
+            version = retainIfRequested(fields, HytaleOneQueryProtocol.FIELD_VERSION, current.versionSection);
+            players = retainIfRequested(fields, HytaleOneQueryProtocol.FIELD_PLAYERS, current.roster.section);
+            plugins = retainIfRequested(fields, HytaleOneQueryProtocol.FIELD_PLUGINS, current.pluginSection);
+            return HytaleOneQueryProtocol.buildProjectionResponse(alloc, fields, current.playerCount,
+                    current.maxPlayers, hostPort, identity, version, players, current.generation, plugins);
+        } finally {
+            releaseSection(identity);
+            releaseSection(version);
+            releaseSection(players);
+            releaseSection(plugins);
+        }
+    }
+
+    /**
+     * Answer a presence lookup from the roster index, one status byte per key.
+     * Lookups never touch the snapshot, so they always see the live roster.
+     * The caller owns the returned buffer.
+     *
+     * @return the response, or null if the keys are malformed
+     */
+    public ByteBuf lookup(@Nonnull ByteBufAllocator alloc, @Nonnull ByteBuf keys, int keyCount) {
+        ByteBuf buf = alloc.directBuffer(HytaleOneQueryProtocol.LOOKUP_RESPONSE_HEADER_SIZE + keyCount);
+        HytaleOneQueryProtocol.writeLookupHeader(buf, 0L, keyCount);
+        long generation = roster.lookup(keys, keyCount, buf);
+        if (generation < 0) {
+            buf.release();
+            return null;
+        }
+        return buf.setLongLE(HytaleOneQueryProtocol.RESPONSE_MAGIC.length + 1, generation);
+    }
+
+    /**
+     * Get one page of the player list. Pages are cut from the roster snapshot with the
+     * given id, or from the latest roster if that one is no longer retained. The page
+     * size is capped so the response fits the configured byte budget.
+     * The caller owns the returned buffer.
+     */
+    @Nonnull
+    public ByteBuf playerPage(@Nonnull ByteBufAllocator alloc, int snapshotId, int page, int pageSize) {
+        Roster roster = pinRoster(snapshotId);
+        try {
+            return playerPage(alloc, roster, page, pageSize, maxResponseBytes);
+        } finally {
+            roster.release();
+        }
+    }
+
+    @Nonnull
+    private ByteBuf playerPage(@Nonnull ByteBufAllocator alloc, @Nonnull Roster roster, int page, int pageSize,
+                               int maxBytes) {
+        int effectiveSize = roster.pageSize(pageSize, maxBytes);
+        int from = (int) Math.min((long) page * effectiveSize, roster.count);
+        int to = Math.min(from + effectiveSize, roster.count);
+        int start = roster.offsets[from];
+        ByteBuf entries = roster.section.retainedSlice(start, roster.offsets[to] - start);
+        return HytaleOneQueryProtocol.buildPageResponse(alloc, roster.id, roster.count,
+                page, effectiveSize, to - from, entries);
+    }
+
+    /**
+     * Answer the sub-queries of a batch request from one snapshot, so all answers describe the
+     * same point in time. Basic, full, projection and player page sub-queries are answered, a
+     * page with snapshot id 0 is cut from the roster of that snapshot. Other types get an empty
+     * entry. The caller owns the returned datagrams.
+     */
+    @Nonnull
+    public List<ByteBuf> batch(@Nonnull ByteBufAllocator alloc, @Nonnull ByteBuf request, int count) {
+        boolean compressed = HytaleOneQueryProtocol.acceptsCompression(request);
+        ByteBuf[] responses = new ByteBuf[count];
+        Snapshot current = pinSnapshot();
+        try {
+            for (int i = 0; i < count; i++) {
+                responses[i] = batchResponse(alloc, current, request, i, compressed);
+            }
+            // Leave room for an echoed nonce in every datagram
+            return HytaleOneQueryProtocol.buildBatchResponse(alloc, current.generation, responses,
+                    maxResponseBytes - HytaleOneQueryProtocol.NONCE_SIZE);
+        } finally {
+            for (ByteBuf response : responses) {
+                releaseSection(response);
+            }
+            current.release();
+        }
+    }
+
+    private ByteBuf batchResponse(@Nonnull ByteBufAllocator alloc, @Nonnull Snapshot current,
+                                  @Nonnull ByteBuf request, int index, boolean compressed) {
+        return switch (HytaleOneQueryProtocol.getBatchQueryType(request, index)) {
+            case HytaleOneQueryProtocol.TYPE_BASIC -> current.basic.retainedDuplicate();
+            case HytaleOneQueryProtocol.TYPE_FULL -> (compressed ? current.smallestFull() : current.full)
+                    .retainedDuplicate();
+            case HytaleOneQueryProtocol.TYPE_PROJECTION -> projection(alloc, current,
+                    HytaleOneQueryProtocol.getBatchProjectionFields(request, index));
+            case HytaleOneQueryProtocol.TYPE_PLAYER_PAGE -> batchPage(alloc, current,
+                    HytaleOneQueryProtocol.getBatchPageSnapshotId(request, index),
+                    HytaleOneQueryProtocol.getBatchPageIndex(request, index),
+                    HytaleOneQueryProtocol.getBatchPageSize(request, index));
+            default -> null;
+        };
+    }
+
+    @Nonnull
+    private ByteBuf batchPage(@Nonnull ByteBufAllocator alloc, @Nonnull Snapshot current, int snapshotId,
+                              int page, int pageSize) {
+        // A page of the largest size still fits a datagram next to the batch headers
+        int maxBytes = maxResponseBytes - HytaleOneQueryProtocol.BATCH_RESPONSE_HEADER_SIZE
+                - HytaleOneQueryProtocol.BATCH_ENTRY_HEADER_SIZE;
+        if (snapshotId == 0) {
+            // Pinned along with the snapshot
+            return playerPage(alloc, current.roster, page, pageSize, maxBytes);
+        }
+        Roster roster = pinRoster(snapshotId);
+        try {
+            return playerPage(alloc, roster, page, pageSize, maxBytes);
+        } finally {
+            roster.release();
+        }
+    }
+
+    /**
+     * Get the roster changes since the given generation. Answers "not modified" when
+     * nothing changed, the ordered joins and leaves when the journal still covers the
+     * generation and they fit the byte budget, and otherwise the id and generation of the
+     * latest roster snapshot, for the client to page through. Every answer fits the budget.
+     * The caller owns the returned buffer.
+     */
+    @Nonnull
+    public ByteBuf rosterDelta(@Nonnull ByteBufAllocator alloc, long since) {
+        long current = journal.generation();
+        if (since == current) {
+            ByteBuf buf = alloc.directBuffer(HytaleOneQueryProtocol.DELTA_RESPONSE_HEADER_SIZE);
+            HytaleOneQueryProtocol.writeDeltaHeader(buf, HytaleOneQueryProtocol.DELTA_NOT_MODIFIED, current);
+            return buf;
+        }
+
+        ByteBuf buf = alloc.directBuffer();
+        HytaleOneQueryProtocol.writeDeltaHeader(buf, HytaleOneQueryProtocol.DELTA_CHANGES, 0L);
+        long generation = journal.writeChangesSince(since, buf);
+        if (generation >= 0 && buf.readableBytes() <= maxResponseBytes) {
+            return buf.setLongLE(HytaleOneQueryProtocol.DELTA_RESPONSE_HEADER_SIZE - 8, generation);
+        }
+        buf.release();
+
+        // Too old or too many changes, point the client at the pages of the latest roster.
+        // Only the id and generation are read, so the roster needs no pin
+        Roster latest = findRoster(0);
+        buf = alloc.directBuffer(HytaleOneQueryProtocol.DELTA_RESYNC_RESPONSE_SIZE);
+        HytaleOneQueryProtocol.writeDeltaHeader(buf, HytaleOneQueryProtocol.DELTA_RESYNC, latest.generation);
+        return buf.writeIntLE(latest.id);
+    }
+
+    @Nonnull
+    private Roster findRoster(int id) {
+        Roster[] current = this.rosters;
+        if (current.length == 0) {
+            throw new IllegalStateException("Query cache is not running");
+        }
+        for (Roster roster : current) {
+            if (roster.id == id) {
+                return roster;
+            }
+        }
+        return current[0];
+    }
+
+    /**
+     * Pin the roster with the given id, or the latest one if it is no longer retained.
+     */
+    @Nonnull
+    private Roster pinRoster(int id) {
+        while (true) {
+            Roster roster = findRoster(id);
+            if (roster.tryRetain()) {
+                return roster;
+            }
+            // Evicted by a concurrent rebuild, look again in the newer list
+        }
+    }
+
+    /**
+     * Pin the current snapshot, its buffers stay valid until the caller releases it.
+     */
+    @Nonnull
+    private Snapshot pinSnapshot() {
+        while (true) {
+            Snapshot current = requireSnapshot();
+            if (current.tryRetain()) {
+                return current;
+            }
+            // Replaced by a concurrent rebuild, pin the newer snapshot
+        }
+    }
+
+    @Nonnull
+    private ByteBuf duplicate(@Nonnull Function<Snapshot, ByteBuf> response) {
+        Snapshot current = pinSnapshot();
+        try {
+            return response.apply(current).retainedDuplicate();
+        } finally {
+            current.release();
+        }
+    }
+
+    /**
+     * Rebuild the snapshot, runs on the scheduler thread every TTL and after invalidations.
+     */
+    private void refresh() {
+        // Cleared before the capture, so a change during the rebuild queues the next one
+        refreshQueued.set(false);
+        if (versionSection == null) {
+            return;
+        }
+        try {
+            rebuild();
+        } catch (Exception e) {
+            // Keep serving the previous snapshot, the next refresh tries again
+            logger.at(Level.WARNING).withCause(e).log("Failed to refresh the query cache");
+        }
+    }
+
+    @Nonnull
+    private Snapshot requireSnapshot() {
+        Snapshot current = this.snapshot;
+        if (current == null) {
+            throw new IllegalStateException("Query cache is not running");
+        }
+        return current;
+    }
+
+    /**
+     * Capture the current server state and swap in a new snapshot.
+     * Only called on the scheduler thread.
+     */
+    private void rebuild() {
+        refreshIdentity(source.getServerName(), source.getMotd());
+        refreshPlugins(source.getPlugins());
+        int maxPlayers = source.getMaxPlayers();
+
+        Roster roster = refreshRoster();
+
+        ByteBuf basic = HytaleOneQueryProtocol.buildBasicResponse(alloc, identitySection,
+                roster.count, maxPlayers, hostPort, versionSection);
+        ByteBuf full = HytaleOneQueryProtocol.buildFullResponse(alloc, identitySection,
+                roster.count, maxPlayers, hostPort, versionSection, roster.section, pluginSection, roster.generation);
+
+        // Compress once per state change, a rebuild after the TTL usually yields the same bytes.
+        // The previous snapshot is still published, so the cache's own reference keeps it valid.
+        Snapshot previous = this.snapshot;
+        ByteBuf compressed;
+        if (previous != null && previous.full.equals(full)) {
+            compressed = previous.compressed != null ? previous.compressed.retain() : null;
+        } else {
+            compressed = HytaleOneQueryProtocol.compressFullResponse(alloc, full, deflater);
+        }
+
+        // Sections are retained so projections can still read them after the next rebuild replaces them
+        roster.retain();
+        this.snapshot = new Snapshot(roster.generation, basic, full, compressed,
+                roster.count, maxPlayers, identitySection.retain(), versionSection.retain(),
+                roster, pluginSection.retain());
+        if (previous != null) {
+            previous.release();
+        }
+    }
+
+    /**
+     * Keep the latest roster if the player list did not change, otherwise
+     * encode it again and publish it with a fresh snapshot id.
+     */
+    @Nonnull
+    private Roster refreshRoster() {
+        Roster[] current = this.rosters;
+        if (current.length > 0 && current[0].generation == journal.generation()) {
+            return current[0];
+        }
+
+        HytaleOnePlayerRoster.Encoded encoded = this.roster.encode(alloc);
+        Roster roster = new Roster(nextRosterId++, encoded);
+        int kept = Math.min(current.length, RETAINED_ROSTERS - 1);
+        Roster[] next = new Roster[kept + 1];
+        next[0] = roster;
+        System.arraycopy(current, 0, next, 1, kept);
+        this.rosters = next;
+
+        // Snapshots and readers still holding an evicted roster keep it until they are done
+        for (int i = kept; i < current.length; i++) {
+            current[i].release();
+        }
+        return roster;
+    }
+
+    private void refreshIdentity(@Nonnull String serverName, @Nonnull String motd) {
+        if (identitySection != null && serverName.equals(this.serverName) && motd.equals(this.motd)) {
+            return;
+        }
+        releaseSection(identitySection);
+        this.identitySection = HytaleOneQueryProtocol.encodeIdentity(alloc, serverName, motd);
+        this.serverName = serverName;
+        this.motd = motd;
+    }
+
+    private void refreshPlugins(@Nonnull List<HytaleOneQuerySource.PluginInfo> plugins) {
+        if (pluginSection != null && plugins.equals(this.plugins)) {
+            return;
+        }
+        releaseSection(pluginSection);
+        this.pluginSection = HytaleOneQueryProtocol.encodePlugins(alloc, plugins);
+        this.plugins = plugins;
+    }
+
+    private static ByteBuf retainIfRequested(int fields, int field, @Nonnull ByteBuf section) {
+        return (fields & field) != 0 ? section.retainedDuplicate() : null;
+    }
+
+    private static void releaseSection(ByteBuf section) {
+        if (section != null) {
+            section.release();
+        }
+    }
+
+    /**
+     * Encoded player list section with the offset of every entry, used to cut pages.
+     * The roster list holds one reference, every snapshot built from it holds another.
+     */
+    private static final class Roster extends HytaleOneRefCounted {
+
+        final int id;
+        final int count;
+        final long generation;
+        final ByteBuf section;
+        final int[] offsets;
+        final int maxEntrySize;
+
+        Roster(int id, @Nonnull HytaleOnePlayerRoster.Encoded encoded) {
+            this.id = id;
+            this.count = encoded.count();
+            this.generation = encoded.generation();
+            this.section = encoded.section();
+            this.offsets = encoded.offsets();
+
+            int max = 1;
+            for (int i = 0; i < count; i++) {
+                max = Math.max(max, offsets[i + 1] - offsets[i]);
+            }
+            this.maxEntrySize = max;
+        }
+
+        @Override
+        protected void deallocate() {
+            section.release();
+        }
+
+        /**
+         * Page size that keeps every page of this roster within the byte budget.
+         */
+        int pageSize(int requested, int maxResponseBytes) {
+            // Leave room for an echoed nonce so pages are the same for every client
+            int budget = maxResponseBytes - HytaleOneQueryProtocol.PAGE_RESPONSE_HEADER_SIZE
+                    - HytaleOneQueryProtocol.NONCE_SIZE;
+            int limit = Math.min(Math.max(budget / maxEntrySize, 1), 0xFFFF);
+            return requested > 0 ? Math.min(requested, limit) : limit;
+        }
+    }
+
+    /**
+     * Immutable set of encoded responses and sections built from one state capture.
+     * The cache holds one reference while the snapshot is published, readers pin it
+     * while they take their duplicates.
+     */
+    private static final class Snapshot extends HytaleOneRefCounted {
+
+        final long generation;
+        final ByteBuf basic;
+        final ByteBuf full;
+        final ByteBuf compressed;
+        final int playerCount;
+        final int maxPlayers;
+        final ByteBuf identitySection;
+        final ByteBuf versionSection;
+        final Roster roster;
+        final ByteBuf pluginSection;
+
+        Snapshot(long generation, @Nonnull ByteBuf basic, @Nonnull ByteBuf full, ByteBuf compressed,
+                 int playerCount, int maxPlayers, @Nonnull ByteBuf identitySection, @Nonnull ByteBuf versionSection,
+                 @Nonnull Roster roster, @Nonnull ByteBuf pluginSection) {
+            this.generation = generation;
+            this.basic = basic;
+            this.full = full;
+            this.compressed = compressed;
+            this.playerCount = playerCount;
+            this.maxPlayers = maxPlayers;
+            this.identitySection = identitySection;
+            this.versionSection = versionSection;
+            this.roster = roster;
+            this.pluginSection = pluginSection;
+        }
+
+        @Nonnull
+        ByteBuf smallestFull() {
+            return compressed != null ? compressed : full;
+        }
+
+        @Override
+        protected void deallocate() {
+            basic.release();
+            full.release();
+            if (compressed != null) {
+                compressed.release();
+            }
+            identitySection.release();
+            versionSection.release();
+            roster.release();
+            pluginSection.release();
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package dev.hytaleone.query;
+
+import javax.annotation.Nonnull;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stateless challenge tokens for the query handshake.
+ * A token is a keyed MAC (SipHash-2-4) over the sender address and the
+ * current time window, so validating it needs no per-client state. Tokens
+ * from the previous window are still accepted to cover clock edges.
+ */
+public final class HytaleOneQueryChallenge {
+
+    public static final int DEFAULT_WINDOW_SECONDS = 30;
+
+    private final long key0;
+    private final long key1;
+    private final long windowNanos;
+
+    public HytaleOneQueryChallenge(int windowSeconds) {
+        SecureRandom random = new SecureRandom();
+        this.key0 = random.nextLong();
+        this.key1 = random.nextLong();
+        this.windowNanos = TimeUnit.SECONDS.toNanos(Math.max(windowSeconds, 1));
+    }
+
+    /**
+     * Issue a token for the sender, valid for the current and the next window.
+     */
+    public long issue(@Nonnull InetSocketAddress sender) {
+        return token(sender.getAddress(), currentWindow());
+    }
+
+    /**
+     * Check a token presented by the sender.
+     */
+    public boolean verify(@Nonnull InetSocketAddress sender, long token) {
+        InetAddress address = sender.getAddress();
+        long window = currentWindow();
+        return token == token(address, window) || token == token(address, window - 1);
+    }
+
+    private long currentWindow() {
+        return System.nanoTime() / windowNanos;
+    }
+
+    private long token(@Nonnull InetAddress address, long window) {
+        if (address instanceof Inet4Address) {
+            // hashCode is the address itself, no copy needed. The last word keeps IPv4 and IPv6 apart
+            return sipHash(window, address.hashCode() & 0xFFFFFFFFL, 4);
+        }
+        byte[] bytes = address.getAddress();
+        return sipHash(window, readLong(bytes, 0), readLong(bytes, 8));
+    }
+
+    private static long readLong(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (bytes[offset + i] & 0xFF);
+        }
+        return value;
+    }
+
+    /**
+     * SipHash-2-4 over three 64-bit words.
+     */
+    private long sipHash(long m0, long m1, long m2) {
+        long v0 = key0 ^ 0x736f6d6570736575L;
+        long v1 = key1 ^ 0x646f72616e646f6dL;
+        long v2 = key0 ^ 0x6c7967656e657261L;
+        long v3 = key1 ^ 0x7465646279746573L;
+
+        for (int i = 0; i < 4; i++) {
+            long m = i == 0 ? m0 : i == 1 ? m1 : i == 2 ? m2 : 24L << 56;
+            v3 ^= m;
+            for (int r = 0; r < 2; r++) {
+                v0 += v1; v1 = Long.rotateLeft(v1, 13); v1 ^= v0; v0 = Long.rotateLeft(v0, 32);
+                v2 += v3; v3 = Long.rotateLeft(v3, 16); v3 ^= v2;
+                v0 += v3; v3 = Long.rotateLeft(v3, 21); v3 ^= v0;
+                v2 += v1; v1 = Long.rotateLeft(v1, 17); v1 ^= v2; v2 = Long.rotateLeft(v2, 32);
+            }
+            v0 ^= m;
+        }
+
+        v2 ^= 0xFF;
+        for (int r = 0; r < 4; r++) {
+            v0 += v1; v1 = Long.rotateLeft(v1, 13); v1 ^= v0; v0 = Long.rotateLeft(v0, 32);
+            v2 += v3; v3 = Long.rotateLeft(v3, 16); v3 ^= v2;
+            v0 += v3; v3 = Long.rotateLeft(v3, 21); v3 ^= v0;
+            v2 += v1; v1 = Long.rotateLeft(v1, 17); v1 ^= v2; v2 = Long.rotateLeft(v2, 32);
+        }
+        return v0 ^ v1 ^ v2 ^ v3;
+    }
+}
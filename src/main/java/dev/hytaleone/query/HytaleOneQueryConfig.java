@@ -14,10 +14,103 @@ public class HytaleOneQueryConfig {
                     (o, v) -> o.registerOnStartup = v, o -> o.registerOnStartup)
             .addField(new KeyedCodec<>("ServerIdDoNotChange", Codec.STRING),
                     (o, v) -> o.serverId = v, o -> o.serverId)
+            .addField(new KeyedCodec<>("ServerListEndpoint", Codec.STRING),
+                    (o, v) -> o.serverListEndpoint = v, o -> o.serverListEndpoint)
+            .addField(new KeyedCodec<>("HeartbeatIntervalSeconds", Codec.INTEGER),
+                    (o, v) -> o.heartbeatIntervalSeconds = v, o -> o.heartbeatIntervalSeconds)
+            .addField(new KeyedCodec<>("HeartbeatKeepAliveSeconds", Codec.INTEGER),
+                    (o, v) -> o.heartbeatKeepAliveSeconds = v, o -> o.heartbeatKeepAliveSeconds)
+            .addField(new KeyedCodec<>("DedicatedPort", Codec.INTEGER),
+                    (o, v) -> o.dedicatedPort = v, o -> o.dedicatedPort)
+            .addField(new KeyedCodec<>("DedicatedThreads", Codec.INTEGER),
+                    (o, v) -> o.dedicatedThreads = v, o -> o.dedicatedThreads)
+            .addField(new KeyedCodec<>("AggregatorBackends", Codec.STRING),
+                    (o, v) -> o.aggregatorBackends = v, o -> o.aggregatorBackends)
+            .addField(new KeyedCodec<>("AggregatorPollMillis", Codec.INTEGER),
+                    (o, v) -> o.aggregatorPollMillis = v, o -> o.aggregatorPollMillis)
+            .addField(new KeyedCodec<>("AggregatorTimeoutMillis", Codec.INTEGER),
+                    (o, v) -> o.aggregatorTimeoutMillis = v, o -> o.aggregatorTimeoutMillis)
+            .addField(new KeyedCodec<>("CacheTtlMillis", Codec.INTEGER),
+                    (o, v) -> o.cacheTtlMillis = v, o -> o.cacheTtlMillis)
+            .addField(new KeyedCodec<>("MaxResponseBytes", Codec.INTEGER),
+                    (o, v) -> o.maxResponseBytes = v, o -> o.maxResponseBytes)
+            .addField(new KeyedCodec<>("RosterJournalSize", Codec.INTEGER),
+                    (o, v) -> o.rosterJournalSize = v, o -> o.rosterJournalSize)
+            .addField(new KeyedCodec<>("BasicQueriesPerSecond", Codec.INTEGER),
+                    (o, v) -> o.basicQueriesPerSecond = v, o -> o.basicQueriesPerSecond)
+            .addField(new KeyedCodec<>("BasicQueryBurst", Codec.INTEGER),
+                    (o, v) -> o.basicQueryBurst = v, o -> o.basicQueryBurst)
+            .addField(new KeyedCodec<>("FullQueriesPerSecond", Codec.INTEGER),
+                    (o, v) -> o.fullQueriesPerSecond = v, o -> o.fullQueriesPerSecond)
+            .addField(new KeyedCodec<>("FullQueryBurst", Codec.INTEGER),
+                    (o, v) -> o.fullQueryBurst = v, o -> o.fullQueryBurst)
+            .addField(new KeyedCodec<>("RateLimitTableSize", Codec.INTEGER),
+                    (o, v) -> o.rateLimitTableSize = v, o -> o.rateLimitTableSize)
+            .addField(new KeyedCodec<>("RequireChallenge", Codec.BOOLEAN),
+                    (o, v) -> o.requireChallenge = v, o -> o.requireChallenge)
+            .addField(new KeyedCodec<>("ChallengeWindowSeconds", Codec.INTEGER),
+                    (o, v) -> o.challengeWindowSeconds = v, o -> o.challengeWindowSeconds)
+            .addField(new KeyedCodec<>("SubscriberTableSize", Codec.INTEGER),
+                    (o, v) -> o.subscriberTableSize = v, o -> o.subscriberTableSize)
+            .addField(new KeyedCodec<>("MaxLeaseSeconds", Codec.INTEGER),
+                    (o, v) -> o.maxLeaseSeconds = v, o -> o.maxLeaseSeconds)
+            .addField(new KeyedCodec<>("PushCoalesceMillis", Codec.INTEGER),
+                    (o, v) -> o.pushCoalesceMillis = v, o -> o.pushCoalesceMillis)
+            .addField(new KeyedCodec<>("OverloadLagMillis", Codec.INTEGER),
+                    (o, v) -> o.overloadLagMillis = v, o -> o.overloadLagMillis)
+            .addField(new KeyedCodec<>("OverloadQueryPercent", Codec.INTEGER),
+                    (o, v) -> o.overloadQueryPercent = v, o -> o.overloadQueryPercent)
+            .addField(new KeyedCodec<>("OverloadRecoverMillis", Codec.INTEGER),
+                    (o, v) -> o.overloadRecoverMillis = v, o -> o.overloadRecoverMillis)
+            .addField(new KeyedCodec<>("AccessLogRingSize", Codec.INTEGER),
+                    (o, v) -> o.accessLogRingSize = v, o -> o.accessLogRingSize)
+            .addField(new KeyedCodec<>("AccessLogDirectory", Codec.STRING),
+                    (o, v) -> o.accessLogDirectory = v, o -> o.accessLogDirectory)
+            .addField(new KeyedCodec<>("AccessLogMaxFileMegabytes", Codec.INTEGER),
+                    (o, v) -> o.accessLogMaxFileMegabytes = v, o -> o.accessLogMaxFileMegabytes)
+            .addField(new KeyedCodec<>("AccessLogMaxFiles", Codec.INTEGER),
+                    (o, v) -> o.accessLogMaxFiles = v, o -> o.accessLogMaxFiles)
+            .addField(new KeyedCodec<>("HealthSecret", Codec.STRING),
+                    (o, v) -> o.healthSecret = v, o -> o.healthSecret)
+            .addField(new KeyedCodec<>("HealthSampleMillis", Codec.INTEGER),
+                    (o, v) -> o.healthSampleMillis = v, o -> o.healthSampleMillis)
+            .addField(new KeyedCodec<>("MaxPendingReplies", Codec.INTEGER),
+                    (o, v) -> o.maxPendingReplies = v, o -> o.maxPendingReplies)
             .build();
 
     private boolean registerOnStartup = true;
     private String serverId = null;
+    private String serverListEndpoint = "https://hytale.one/api/plugin/query/register";
+    private int heartbeatIntervalSeconds = 30;
+    private int heartbeatKeepAliveSeconds = 300;
+    private int dedicatedPort = 0;
+    private int dedicatedThreads = 2;
+    private String aggregatorBackends = "";
+    private int aggregatorPollMillis = 1000;
+    private int aggregatorTimeoutMillis = 500;
+    private int cacheTtlMillis = 1000;
+    private int maxResponseBytes = 1200;
+    private int rosterJournalSize = 256;
+    private int basicQueriesPerSecond = 10;
+    private int basicQueryBurst = 20;
+    private int fullQueriesPerSecond = 2;
+    private int fullQueryBurst = 4;
+    private int rateLimitTableSize = 4096;
+    private boolean requireChallenge = false;
+    private int challengeWindowSeconds = HytaleOneQueryChallenge.DEFAULT_WINDOW_SECONDS;
+    private int subscriberTableSize = 256;
+    private int maxLeaseSeconds = 60;
+    private int pushCoalesceMillis = 250;
+    private int overloadLagMillis = 50;
+    private int overloadQueryPercent = 50;
+    private int overloadRecoverMillis = 2000;
+    private int accessLogRingSize = 0;
+    private String accessLogDirectory = "logs/query-access";
+    private int accessLogMaxFileMegabytes = 64;
+    private int accessLogMaxFiles = 4;
+    private String healthSecret = "";
+    private int healthSampleMillis = 1000;
+    private int maxPendingReplies = HytaleOneQueryHandler.DEFAULT_MAX_PENDING_REPLIES;
 
     public HytaleOneQueryConfig() {
     }
@@ -43,4 +136,345 @@ public class HytaleOneQueryConfig {
     public void setServerId(String serverId) {
         this.serverId = serverId;
     }
+
+    /**
+     * URL the server list registration and heartbeats are posted to.
+     */
+    public String getServerListEndpoint() {
+        return serverListEndpoint;
+    }
+
+    public void setServerListEndpoint(String serverListEndpoint) {
+        this.serverListEndpoint = serverListEndpoint;
+    }
+
+    /**
+     * How often the server list heartbeat checks for changes, 0 registers once on startup.
+     */
+    public int getHeartbeatIntervalSeconds() {
+        return heartbeatIntervalSeconds;
+    }
+
+    public void setHeartbeatIntervalSeconds(int heartbeatIntervalSeconds) {
+        this.heartbeatIntervalSeconds = heartbeatIntervalSeconds;
+    }
+
+    /**
+     * Longest time between two heartbeats when nothing changed.
+     */
+    public int getHeartbeatKeepAliveSeconds() {
+        return heartbeatKeepAliveSeconds;
+    }
+
+    public void setHeartbeatKeepAliveSeconds(int heartbeatKeepAliveSeconds) {
+        this.heartbeatKeepAliveSeconds = heartbeatKeepAliveSeconds;
+    }
+
+    /**
+     * UDP port of the dedicated query listener, 0 answers queries on the game port.
+     */
+    public int getDedicatedPort() {
+        return dedicatedPort;
+    }
+
+    public void setDedicatedPort(int dedicatedPort) {
+        this.dedicatedPort = dedicatedPort;
+    }
+
+    /**
+     * Event loop threads of the dedicated query listener.
+     */
+    public int getDedicatedThreads() {
+        return dedicatedThreads;
+    }
+
+    public void setDedicatedThreads(int dedicatedThreads) {
+        this.dedicatedThreads = dedicatedThreads;
+    }
+
+    /**
+     * Comma-separated host:port list of backend servers to aggregate, empty disables aggregator mode.
+     */
+    public String getAggregatorBackends() {
+        return aggregatorBackends != null ? aggregatorBackends : "";
+    }
+
+    public void setAggregatorBackends(String aggregatorBackends) {
+        this.aggregatorBackends = aggregatorBackends;
+    }
+
+    /**
+     * How often the backends are polled in aggregator mode.
+     */
+    public int getAggregatorPollMillis() {
+        return aggregatorPollMillis;
+    }
+
+    public void setAggregatorPollMillis(int aggregatorPollMillis) {
+        this.aggregatorPollMillis = aggregatorPollMillis;
+    }
+
+    /**
+     * How long a poll waits for backend replies before merging without them.
+     */
+    public int getAggregatorTimeoutMillis() {
+        return aggregatorTimeoutMillis;
+    }
+
+    public void setAggregatorTimeoutMillis(int aggregatorTimeoutMillis) {
+        this.aggregatorTimeoutMillis = aggregatorTimeoutMillis;
+    }
+
+    /**
+     * Maximum age of cached query responses before they are rebuilt.
+     */
+    public int getCacheTtlMillis() {
+        return cacheTtlMillis;
+    }
+
+    public void setCacheTtlMillis(int cacheTtlMillis) {
+        this.cacheTtlMillis = cacheTtlMillis;
+    }
+
+    /**
+     * Byte budget for paged responses, keeps them within a single datagram.
+     */
+    public int getMaxResponseBytes() {
+        return maxResponseBytes;
+    }
+
+    public void setMaxResponseBytes(int maxResponseBytes) {
+        this.maxResponseBytes = maxResponseBytes;
+    }
+
+    /**
+     * Number of recent player joins and leaves kept for delta queries.
+     */
+    public int getRosterJournalSize() {
+        return rosterJournalSize;
+    }
+
+    public void setRosterJournalSize(int rosterJournalSize) {
+        this.rosterJournalSize = rosterJournalSize;
+    }
+
+    /**
+     * Basic queries allowed per second and sender address, 0 disables the limit.
+     */
+    public int getBasicQueriesPerSecond() {
+        return basicQueriesPerSecond;
+    }
+
+    public void setBasicQueriesPerSecond(int basicQueriesPerSecond) {
+        this.basicQueriesPerSecond = basicQueriesPerSecond;
+    }
+
+    /**
+     * Basic queries a sender address may burst above its rate.
+     */
+    public int getBasicQueryBurst() {
+        return basicQueryBurst;
+    }
+
+    public void setBasicQueryBurst(int basicQueryBurst) {
+        this.basicQueryBurst = basicQueryBurst;
+    }
+
+    /**
+     * Full queries allowed per second and sender address, 0 disables the limit.
+     */
+    public int getFullQueriesPerSecond() {
+        return fullQueriesPerSecond;
+    }
+
+    public void setFullQueriesPerSecond(int fullQueriesPerSecond) {
+        this.fullQueriesPerSecond = fullQueriesPerSecond;
+    }
+
+    /**
+     * Full queries a sender address may burst above its rate.
+     */
+    public int getFullQueryBurst() {
+        return fullQueryBurst;
+    }
+
+    public void setFullQueryBurst(int fullQueryBurst) {
+        this.fullQueryBurst = fullQueryBurst;
+    }
+
+    /**
+     * Number of sender addresses tracked by each rate limiter.
+     */
+    public int getRateLimitTableSize() {
+        return rateLimitTableSize;
+    }
+
+    public void setRateLimitTableSize(int rateLimitTableSize) {
+        this.rateLimitTableSize = rateLimitTableSize;
+    }
+
+    /**
+     * Whether large responses require a challenge token from the handshake.
+     */
+    public boolean isRequireChallenge() {
+        return requireChallenge;
+    }
+
+    public void setRequireChallenge(boolean requireChallenge) {
+        this.requireChallenge = requireChallenge;
+    }
+
+    /**
+     * How long a challenge token stays valid before it rotates.
+     */
+    public int getChallengeWindowSeconds() {
+        return challengeWindowSeconds;
+    }
+
+    public void setChallengeWindowSeconds(int challengeWindowSeconds) {
+        this.challengeWindowSeconds = challengeWindowSeconds;
+    }
+
+    /**
+     * Maximum number of change subscribers, 0 disables subscriptions.
+     */
+    public int getSubscriberTableSize() {
+        return subscriberTableSize;
+    }
+
+    public void setSubscriberTableSize(int subscriberTableSize) {
+        this.subscriberTableSize = subscriberTableSize;
+    }
+
+    /**
+     * Longest subscription lease granted, subscribers renew before it runs out.
+     */
+    public int getMaxLeaseSeconds() {
+        return maxLeaseSeconds;
+    }
+
+    public void setMaxLeaseSeconds(int maxLeaseSeconds) {
+        this.maxLeaseSeconds = maxLeaseSeconds;
+    }
+
+    /**
+     * Window over which changes are collected into a single push.
+     */
+    public int getPushCoalesceMillis() {
+        return pushCoalesceMillis;
+    }
+
+    public void setPushCoalesceMillis(int pushCoalesceMillis) {
+        this.pushCoalesceMillis = pushCoalesceMillis;
+    }
+
+    /**
+     * Event-loop lag at which queries start being shed, 0 disables load shedding.
+     */
+    public int getOverloadLagMillis() {
+        return overloadLagMillis;
+    }
+
+    public void setOverloadLagMillis(int overloadLagMillis) {
+        this.overloadLagMillis = overloadLagMillis;
+    }
+
+    /**
+     * Share of event-loop time spent on queries at which queries start being shed.
+     */
+    public int getOverloadQueryPercent() {
+        return overloadQueryPercent;
+    }
+
+    public void setOverloadQueryPercent(int overloadQueryPercent) {
+        this.overloadQueryPercent = overloadQueryPercent;
+    }
+
+    /**
+     * Time the load must stay low before shedding steps back down a level.
+     */
+    public int getOverloadRecoverMillis() {
+        return overloadRecoverMillis;
+    }
+
+    public void setOverloadRecoverMillis(int overloadRecoverMillis) {
+        this.overloadRecoverMillis = overloadRecoverMillis;
+    }
+
+    /**
+     * Records buffered for the access log writer, 0 disables the access log.
+     */
+    public int getAccessLogRingSize() {
+        return accessLogRingSize;
+    }
+
+    public void setAccessLogRingSize(int accessLogRingSize) {
+        this.accessLogRingSize = accessLogRingSize;
+    }
+
+    /**
+     * Directory the access log files are written to, relative to the server directory.
+     */
+    public String getAccessLogDirectory() {
+        return accessLogDirectory != null && !accessLogDirectory.isBlank() ? accessLogDirectory : "logs/query-access";
+    }
+
+    public void setAccessLogDirectory(String accessLogDirectory) {
+        this.accessLogDirectory = accessLogDirectory;
+    }
+
+    /**
+     * Size at which the access log file is rotated.
+     */
+    public int getAccessLogMaxFileMegabytes() {
+        return accessLogMaxFileMegabytes;
+    }
+
+    public void setAccessLogMaxFileMegabytes(int accessLogMaxFileMegabytes) {
+        this.accessLogMaxFileMegabytes = accessLogMaxFileMegabytes;
+    }
+
+    /**
+     * Rotated access log files kept next to the current one.
+     */
+    public int getAccessLogMaxFiles() {
+        return accessLogMaxFiles;
+    }
+
+    public void setAccessLogMaxFiles(int accessLogMaxFiles) {
+        this.accessLogMaxFiles = accessLogMaxFiles;
+    }
+
+    /**
+     * Shared secret health queries must prove, empty disables health queries.
+     */
+    public String getHealthSecret() {
+        return healthSecret != null ? healthSecret : "";
+    }
+
+    public void setHealthSecret(String healthSecret) {
+        this.healthSecret = healthSecret;
+    }
+
+    /**
+     * How often the health snapshot is taken.
+     */
+    public int getHealthSampleMillis() {
+        return healthSampleMillis;
+    }
+
+    public void setHealthSampleMillis(int healthSampleMillis) {
+        this.healthSampleMillis = healthSampleMillis;
+    }
+
+    /**
+     * Replies written before a flush is forced within one read cycle, 1 flushes every reply.
+     */
+    public int getMaxPendingReplies() {
+        return maxPendingReplies;
+    }
+
+    public void setMaxPendingReplies(int maxPendingReplies) {
+        this.maxPendingReplies = maxPendingReplies;
+    }
 }
@@ -2,24 +2,92 @@ package dev.hytaleone.query;
 
 import com.hypixel.hytale.logger.HytaleLogger;
 import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.channel.socket.DatagramPacket;
+import io.netty.util.AttributeKey;
 
 import javax.annotation.Nonnull;
+import java.nio.file.Path;
+import java.util.List;
 import java.util.logging.Level;
 
 /**
  * Netty handler that intercepts UDP packets and handles query requests.
  * Non-query packets are passed through to the QUIC codec.
+ * Replies are written without flushing and flushed once per read cycle, so a burst
+ * of queries leaves in a single batched send where the transport supports it.
+ * Game packets are counted in plain per-channel fields and added to the metrics once
+ * per read cycle as well, so passing one through costs no atomic operation.
  */
 public class HytaleOneQueryHandler extends ChannelInboundHandlerAdapter {
 
+    public static final int DEFAULT_MAX_PENDING_REPLIES = 64;
+
+    // Per-channel state of the current read cycle, since the handler is shared
+    private static final AttributeKey<ReadCycle> READ_CYCLE = AttributeKey.valueOf("hytaleone-read-cycle");
+
     @Nonnull
     private final HytaleLogger logger;
+    @Nonnull
+    private final HytaleOneQueryCache cache;
+    @Nonnull
+    private final HytaleOneRateLimiter basicLimiter;
+    @Nonnull
+    private final HytaleOneRateLimiter fullLimiter;
+    @Nonnull
+    private final HytaleOneQueryChallenge challenge;
+    private final boolean requireChallenge;
+    @Nonnull
+    private final HytaleOneQueryMetrics metrics;
+    @Nonnull
+    private final HytaleOneQuerySubscriptions subscriptions;
+    @Nonnull
+    private final HytaleOneOverloadController overload;
+    @Nonnull
+    private final HytaleOneAccessLog accessLog;
+    @Nonnull
+    private final HytaleOneHealthMonitor health;
+    private final int maxPendingReplies;
+    @Nonnull
+    private final ChannelFutureListener sendListener;
 
-    public HytaleOneQueryHandler(@Nonnull HytaleLogger logger) {
-        this.logger = logger;
+    private HytaleOneQueryHandler(@Nonnull Builder builder) {
+        this.logger = builder.logger;
+        this.cache = builder.cache;
+        this.metrics = builder.metrics;
+        this.basicLimiter = builder.basicLimiter != null ? builder.basicLimiter : new HytaleOneRateLimiter(0, 1, 0);
+        this.fullLimiter = builder.fullLimiter != null ? builder.fullLimiter : new HytaleOneRateLimiter(0, 1, 0);
+        this.challenge = builder.challenge != null ? builder.challenge
+                : new HytaleOneQueryChallenge(HytaleOneQueryChallenge.DEFAULT_WINDOW_SECONDS);
+        this.requireChallenge = builder.requireChallenge;
+        this.subscriptions = builder.subscriptions != null ? builder.subscriptions
+                : new HytaleOneQuerySubscriptions(logger, cache.source(), cache.roster(), cache.journal(), metrics,
+                0, 1, 0, 0);
+        this.overload = builder.overload != null ? builder.overload
+                : new HytaleOneOverloadController(logger, metrics, 0, 100, 0);
+        this.accessLog = builder.accessLog != null ? builder.accessLog
+                : new HytaleOneAccessLog(logger, metrics, Path.of("."), 0, 0, 0);
+        this.health = builder.health != null ? builder.health
+                : new HytaleOneHealthMonitor(logger, List::of, "", 0, 0);
+        this.maxPendingReplies = Math.max(builder.maxPendingReplies, 1);
+        this.sendListener = future -> {
+            if (!future.isSuccess()) {
+                metrics.recordSendFailure();
+            }
+        };
+    }
+
+    /**
+     * Start a handler serving from the given cache. Everything else is optional: without
+     * rate limiters nothing is limited, without a challenge setting full queries need no token,
+     * and subscriptions, load shedding, the access log and health queries stay disabled.
+     */
+    @Nonnull
+    public static Builder builder(@Nonnull HytaleLogger logger, @Nonnull HytaleOneQueryCache cache,
+                                  @Nonnull HytaleOneQueryMetrics metrics) {
+        return new Builder(logger, cache, metrics);
     }
 
     @Override
@@ -27,48 +95,449 @@ public class HytaleOneQueryHandler extends ChannelInboundHandlerAdapter {
         return true;
     }
 
+    @Override
+    public void handlerAdded(@Nonnull ChannelHandlerContext ctx) {
+        // Measure the lag of every event loop that serves queries
+        if (ctx.channel().isRegistered()) {
+            overload.watch(ctx.executor());
+        }
+    }
+
+    @Override
+    public void handlerRemoved(@Nonnull ChannelHandlerContext ctx) {
+        ReadCycle cycle = ctx.channel().attr(READ_CYCLE).get();
+        if (cycle != null) {
+            recordCounts(cycle);
+        }
+    }
+
+    @Override
+    public void channelRegistered(@Nonnull ChannelHandlerContext ctx) throws Exception {
+        overload.watch(ctx.executor());
+        super.channelRegistered(ctx);
+    }
+
     @Override
     public void channelRead(@Nonnull ChannelHandlerContext ctx, @Nonnull Object msg) throws Exception {
+        ReadCycle cycle = readCycle(ctx);
         if (msg instanceof DatagramPacket packet) {
             ByteBuf content = packet.content();
 
-            if (HytaleOneQueryProtocol.isQueryRequest(content)) {
-                handleQuery(ctx, packet);
-                return;
+            if (HytaleOneQueryProtocol.hasQueryPrefix(content)) {
+                if (HytaleOneQueryProtocol.hasRequestMagic(content)) {
+                    handleQuery(ctx, cycle, packet);
+                    return;
+                }
+                cycle.prefixMismatches++;
             }
         }
 
         // Not a query packet, pass through to QUIC codec
+        cycle.passThrough++;
         ctx.fireChannelRead(msg);
     }
 
-    private void handleQuery(@Nonnull ChannelHandlerContext ctx, @Nonnull DatagramPacket request) {
+    /**
+     * Answer a packet that is known to carry the request magic.
+     */
+    private void handleQuery(@Nonnull ChannelHandlerContext ctx, @Nonnull ReadCycle cycle,
+                             @Nonnull DatagramPacket request) {
+        long startNanos = System.nanoTime();
+        byte queryType = HytaleOneQueryProtocol.TYPE_BASIC;
+        byte outcome = HytaleOneAccessLog.OUTCOME_DROPPED;
+        int size = 0;
         try {
-            byte queryType = HytaleOneQueryProtocol.getQueryType(request.content());
+            queryType = HytaleOneQueryProtocol.getQueryType(request.content());
+            metrics.recordRequest(queryType);
 
-            logger.at(Level.FINE).log("Query request (type=%d) from %s",
-                    queryType, request.sender());
+            // Overloaded, shed before spending anything else on the request
+            int load = overload.state();
+            if (load != HytaleOneOverloadController.NORMAL && isShed(request.content(), queryType, load)) {
+                metrics.recordShed();
+                outcome = HytaleOneAccessLog.OUTCOME_SHED;
+                return;
+            }
 
-            ByteBuf response;
-            if (queryType == HytaleOneQueryProtocol.TYPE_FULL) {
-                response = HytaleOneQueryProtocol.buildFullResponse(ctx.alloc());
-            } else {
-                response = HytaleOneQueryProtocol.buildBasicResponse(ctx.alloc());
+            // Over budget, drop silently
+            if (!limiterFor(request.content(), queryType).tryAcquire(request.sender())) {
+                metrics.recordRateLimited();
+                outcome = HytaleOneAccessLog.OUTCOME_RATE_LIMITED;
+                return;
             }
 
-            ctx.writeAndFlush(new DatagramPacket(response, request.sender()));
+            ByteBuf content = request.content();
+            boolean hasNonce = HytaleOneQueryProtocol.hasNonce(content);
+            if (hasNonce && !hasMinimumSize(content, HytaleOneQueryProtocol.MIN_REQUEST_SIZE)) {
+                return;
+            }
+
+            if (queryType == HytaleOneQueryProtocol.TYPE_BATCH) {
+                List<ByteBuf> parts = buildBatch(ctx, request);
+                if (parts == null) {
+                    return;
+                }
+                for (ByteBuf part : parts) {
+                    size += reply(ctx, cycle, request, part, hasNonce);
+                }
+            } else {
+                ByteBuf response = buildResponse(ctx, request, queryType, load);
+                if (response == null) {
+                    return;
+                }
+                size = reply(ctx, cycle, request, response, hasNonce);
+            }
+            metrics.recordResponse(size, System.nanoTime() - startNanos);
+            outcome = HytaleOneAccessLog.OUTCOME_ANSWERED;
 
         } catch (Exception e) {
+            metrics.recordException();
+            outcome = HytaleOneAccessLog.OUTCOME_ERROR;
             logger.at(Level.WARNING).withCause(e).log("Failed to process query from %s",
                     request.sender());
         } finally {
+            accessLog.record(request.sender(), queryType, size, outcome);
             request.release();
+            overload.recordQueryNanos(System.nanoTime() - startNanos);
+        }
+    }
+
+    /**
+     * Echo the nonce if the request had one and write the reply. Takes ownership of the response.
+     *
+     * @return the size of the reply
+     */
+    private int reply(@Nonnull ChannelHandlerContext ctx, @Nonnull ReadCycle cycle,
+                      @Nonnull DatagramPacket request, @Nonnull ByteBuf response, boolean hasNonce) {
+        if (hasNonce) {
+            response = HytaleOneQueryProtocol.withNonce(ctx.alloc(), response,
+                    HytaleOneQueryProtocol.getNonce(request.content()));
+        }
+        int size = response.readableBytes();
+        send(ctx, cycle, new DatagramPacket(response, request.sender()));
+        return size;
+    }
+
+    /**
+     * Write a reply, flushing only when the pending bound is reached. A reply the transport
+     * fails to send, such as one over the path MTU, is counted and never reaches the
+     * exception handlers further down the pipeline.
+     */
+    private void send(@Nonnull ChannelHandlerContext ctx, @Nonnull ReadCycle cycle, @Nonnull DatagramPacket reply) {
+        ctx.write(reply, ctx.newPromise().addListener(sendListener));
+        if (++cycle.pendingReplies >= maxPendingReplies) {
+            flush(ctx, cycle);
+        }
+    }
+
+    @Override
+    public void channelReadComplete(@Nonnull ChannelHandlerContext ctx) {
+        // End of the read cycle, send everything written during it at once
+        ReadCycle cycle = readCycle(ctx);
+        if (cycle.pendingReplies > 0) {
+            flush(ctx, cycle);
+        }
+        recordCounts(cycle);
+        ctx.fireChannelReadComplete();
+    }
+
+    private void flush(@Nonnull ChannelHandlerContext ctx, @Nonnull ReadCycle cycle) {
+        cycle.pendingReplies = 0;
+        ctx.flush();
+        metrics.recordFlush();
+    }
+
+    private void recordCounts(@Nonnull ReadCycle cycle) {
+        if (cycle.passThrough > 0) {
+            metrics.recordPassThrough(cycle.passThrough);
+            cycle.passThrough = 0;
+        }
+        if (cycle.prefixMismatches > 0) {
+            metrics.recordPrefixMismatches(cycle.prefixMismatches);
+            cycle.prefixMismatches = 0;
+        }
+    }
+
+    @Nonnull
+    private static ReadCycle readCycle(@Nonnull ChannelHandlerContext ctx) {
+        ReadCycle cycle = ctx.channel().attr(READ_CYCLE).get();
+        if (cycle == null) {
+            cycle = new ReadCycle();
+            ctx.channel().attr(READ_CYCLE).set(cycle);
         }
+        return cycle;
+    }
+
+    /**
+     * Build the response for a query, or return null if the request is dropped.
+     */
+    private ByteBuf buildResponse(@Nonnull ChannelHandlerContext ctx, @Nonnull DatagramPacket request,
+                                  byte queryType, int load) {
+        ByteBuf content = request.content();
+        switch (queryType) {
+            case HytaleOneQueryProtocol.TYPE_FULL -> {
+                // Large responses only go to senders that proved they own their address
+                if (requireChallenge && !hasValidToken(request)) {
+                    return null;
+                }
+                return HytaleOneQueryProtocol.acceptsCompression(content)
+                        ? cache.compressedFullResponse() : cache.fullResponse();
+            }
+            case HytaleOneQueryProtocol.TYPE_PLAYER_PAGE -> {
+                if (!hasMinimumSize(content, HytaleOneQueryProtocol.PAGE_REQUEST_SIZE)
+                        || (requireChallenge && !hasValidToken(request))) {
+                    return null;
+                }
+                return cache.playerPage(ctx.alloc(), HytaleOneQueryProtocol.getPageSnapshotId(content),
+                        HytaleOneQueryProtocol.getPageIndex(content), HytaleOneQueryProtocol.getPageSize(content));
+            }
+            case HytaleOneQueryProtocol.TYPE_ROSTER_DELTA -> {
+                if (!hasMinimumSize(content, HytaleOneQueryProtocol.DELTA_REQUEST_SIZE)
+                        || (requireChallenge && !hasValidToken(request))) {
+                    return null;
+                }
+                return cache.rosterDelta(ctx.alloc(), HytaleOneQueryProtocol.getGeneration(content));
+            }
+            case HytaleOneQueryProtocol.TYPE_PROJECTION -> {
+                if (!hasMinimumSize(content, HytaleOneQueryProtocol.PROJECTION_REQUEST_SIZE)) {
+                    return null;
+                }
+                int fields = HytaleOneQueryProtocol.getProjectionFields(content);
+                if (requireChallenge && (fields & HytaleOneQueryProtocol.FIELDS_LARGE) != 0
+                        && !hasValidToken(request)) {
+                    return null;
+                }
+                return cache.projection(ctx.alloc(), fields);
+            }
+            case HytaleOneQueryProtocol.TYPE_LOOKUP -> {
+                if (!hasMinimumSize(content, HytaleOneQueryProtocol.LOOKUP_REQUEST_SIZE)
+                        || (requireChallenge && !hasValidToken(request))) {
+                    return null;
+                }
+                ByteBuf response = cache.lookup(ctx.alloc(), HytaleOneQueryProtocol.getLookupKeys(content),
+                        HytaleOneQueryProtocol.getLookupKeyCount(content));
+                if (response == null) {
+                    metrics.recordMalformed();
+                }
+                return response;
+            }
+            case HytaleOneQueryProtocol.TYPE_SUBSCRIBE -> {
+                // Pushes are unsolicited, so subscribing always needs a token, whatever RequireChallenge says
+                if (!hasMinimumSize(content, HytaleOneQueryProtocol.SUBSCRIBE_REQUEST_SIZE)
+                        || !hasValidToken(request)) {
+                    return null;
+                }
+                int lease = subscriptions.subscribe(ctx, request.sender(),
+                        HytaleOneQueryProtocol.getLeaseSeconds(content));
+                return HytaleOneQueryProtocol.buildSubscribeResponse(ctx.alloc(), lease, cache.generation());
+            }
+            case HytaleOneQueryProtocol.TYPE_HEALTH -> {
+                // Operators only: the token binds the secret proof to the sender and the current window
+                if (!health.isEnabled() || !hasMinimumSize(content, HytaleOneQueryProtocol.HEALTH_REQUEST_SIZE)
+                        || !hasValidToken(request)) {
+                    return null;
+                }
+                if (!health.verify(HytaleOneQueryProtocol.getToken(content),
+                        HytaleOneQueryProtocol.getHealthProof(content))) {
+                    metrics.recordChallengeFailure();
+                    return null;
+                }
+                return health.response();
+            }
+            case HytaleOneQueryProtocol.TYPE_CHALLENGE -> {
+                if (!hasMinimumSize(content, HytaleOneQueryProtocol.CHALLENGE_REQUEST_SIZE)) {
+                    return null;
+                }
+                return HytaleOneQueryProtocol.buildChallengeResponse(ctx.alloc(), challenge.issue(request.sender()));
+            }
+            default -> {
+                if (load >= HytaleOneOverloadController.STALE_BASIC) {
+                    metrics.recordStaleResponse();
+                }
+                return cache.basicResponse();
+            }
+        }
+    }
+
+    /**
+     * Answer the sub-queries of a batch from one snapshot, or return null if the request is dropped.
+     * A batch can be answered with several datagrams, so it always needs a token.
+     */
+    private List<ByteBuf> buildBatch(@Nonnull ChannelHandlerContext ctx, @Nonnull DatagramPacket request) {
+        ByteBuf content = request.content();
+        if (!hasMinimumSize(content, HytaleOneQueryProtocol.BATCH_REQUEST_SIZE)) {
+            return null;
+        }
+        int count = HytaleOneQueryProtocol.getBatchQueryCount(content);
+        if (count == 0 || count > HytaleOneQueryProtocol.MAX_BATCH_QUERIES) {
+            metrics.recordMalformed();
+            return null;
+        }
+        if (!hasMinimumSize(content, HytaleOneQueryProtocol.BATCH_REQUEST_SIZE
+                + count * HytaleOneQueryProtocol.BATCH_QUERY_SIZE) || !hasValidToken(request)) {
+            return null;
+        }
+        return cache.batch(ctx.alloc(), content, count);
+    }
+
+    /**
+     * Whether a query is shed in the given overload state. Full queries, batches and everything
+     * carrying the player list go first, then all but basic queries, then everything.
+     */
+    private static boolean isShed(@Nonnull ByteBuf content, byte queryType, int load) {
+        if (load >= HytaleOneOverloadController.DROP_ALL) {
+            return true;
+        }
+        if (load >= HytaleOneOverloadController.STALE_BASIC) {
+            return queryType != HytaleOneQueryProtocol.TYPE_BASIC;
+        }
+        return switch (queryType) {
+            case HytaleOneQueryProtocol.TYPE_FULL, HytaleOneQueryProtocol.TYPE_PLAYER_PAGE,
+                 HytaleOneQueryProtocol.TYPE_ROSTER_DELTA, HytaleOneQueryProtocol.TYPE_BATCH -> true;
+            case HytaleOneQueryProtocol.TYPE_PROJECTION -> !HytaleOneQueryProtocol.hasProjectionFields(content)
+                    || (HytaleOneQueryProtocol.getProjectionFields(content) & HytaleOneQueryProtocol.FIELDS_LARGE) != 0;
+            default -> false;
+        };
+    }
+
+    /**
+     * Batches and projections with the player or plugin list count against the full query budget.
+     */
+    @Nonnull
+    private HytaleOneRateLimiter limiterFor(@Nonnull ByteBuf content, byte queryType) {
+        if (queryType == HytaleOneQueryProtocol.TYPE_FULL || queryType == HytaleOneQueryProtocol.TYPE_BATCH) {
+            return fullLimiter;
+        }
+        if (queryType == HytaleOneQueryProtocol.TYPE_PROJECTION && HytaleOneQueryProtocol.hasProjectionFields(content)
+                && (HytaleOneQueryProtocol.getProjectionFields(content) & HytaleOneQueryProtocol.FIELDS_LARGE) != 0) {
+            return fullLimiter;
+        }
+        return basicLimiter;
+    }
+
+    /**
+     * Check the request size, the given size excludes the optional nonce.
+     */
+    private boolean hasMinimumSize(@Nonnull ByteBuf content, int size) {
+        if (content.readableBytes() < size + HytaleOneQueryProtocol.getNonceLength(content)) {
+            metrics.recordMalformed();
+            return false;
+        }
+        return true;
+    }
+
+    private boolean hasValidToken(@Nonnull DatagramPacket request) {
+        ByteBuf content = request.content();
+        if (HytaleOneQueryProtocol.hasToken(content)
+                && challenge.verify(request.sender(), HytaleOneQueryProtocol.getToken(content))) {
+            return true;
+        }
+        metrics.recordChallengeFailure();
+        return false;
     }
 
     @Override
     public void exceptionCaught(@Nonnull ChannelHandlerContext ctx, @Nonnull Throwable cause) {
+        metrics.recordException();
         logger.at(Level.WARNING).withCause(cause).log("Exception in query handler");
         ctx.fireExceptionCaught(cause);
     }
+
+    /**
+     * Replies and packet counts of one channel's read cycle, only touched on its event loop.
+     */
+    private static final class ReadCycle {
+
+        int pendingReplies;
+        long passThrough;
+        long prefixMismatches;
+    }
+
+    /**
+     * Collects the handler's collaborators, the ones left unset are disabled.
+     */
+    public static final class Builder {
+
+        @Nonnull
+        private final HytaleLogger logger;
+        @Nonnull
+        private final HytaleOneQueryCache cache;
+        @Nonnull
+        private final HytaleOneQueryMetrics metrics;
+        private HytaleOneRateLimiter basicLimiter;
+        private HytaleOneRateLimiter fullLimiter;
+        private HytaleOneQueryChallenge challenge;
+        private boolean requireChallenge;
+        private HytaleOneQuerySubscriptions subscriptions;
+        private HytaleOneOverloadController overload;
+        private HytaleOneAccessLog accessLog;
+        private HytaleOneHealthMonitor health;
+        private int maxPendingReplies = DEFAULT_MAX_PENDING_REPLIES;
+
+        private Builder(@Nonnull HytaleLogger logger, @Nonnull HytaleOneQueryCache cache,
+                        @Nonnull HytaleOneQueryMetrics metrics) {
+            this.logger = logger;
+            this.cache = cache;
+            this.metrics = metrics;
+        }
+
+        /**
+         * Per-address budgets, batches and the player and plugin lists count against the full one.
+         */
+        @Nonnull
+        public Builder rateLimiters(@Nonnull HytaleOneRateLimiter basicLimiter,
+                                    @Nonnull HytaleOneRateLimiter fullLimiter) {
+            this.basicLimiter = basicLimiter;
+            this.fullLimiter = fullLimiter;
+            return this;
+        }
+
+        /**
+         * Challenge tokens, required for large responses when requireChallenge is set.
+         * Subscriptions, batches and health queries always need one.
+         */
+        @Nonnull
+        public Builder challenge(@Nonnull HytaleOneQueryChallenge challenge, boolean requireChallenge) {
+            this.challenge = challenge;
+            this.requireChallenge = requireChallenge;
+            return this;
+        }
+
+        @Nonnull
+        public Builder subscriptions(@Nonnull HytaleOneQuerySubscriptions subscriptions) {
+            this.subscriptions = subscriptions;
+            return this;
+        }
+
+        @Nonnull
+        public Builder overload(@Nonnull HytaleOneOverloadController overload) {
+            this.overload = overload;
+            return this;
+        }
+
+        @Nonnull
+        public Builder accessLog(@Nonnull HytaleOneAccessLog accessLog) {
+            this.accessLog = accessLog;
+            return this;
+        }
+
+        @Nonnull
+        public Builder health(@Nonnull HytaleOneHealthMonitor health) {
+            this.health = health;
+            return this;
+        }
+
+        /**
+         * Replies written before a flush is forced, the rest go out at the end of the read cycle.
+         */
+        @Nonnull
+        public Builder maxPendingReplies(int maxPendingReplies) {
+            this.maxPendingReplies = maxPendingReplies;
+            return this;
+        }
+
+        @Nonnull
+        public HytaleOneQueryHandler build() {
+            return new HytaleOneQueryHandler(this);
+        }
+    }
 }
@@ -0,0 +1,135 @@
+package dev.hytaleone.query;
+
+import com.hypixel.hytale.logger.HytaleLogger;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollDatagramChannel;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.DatagramChannel;
+import io.netty.channel.socket.nio.NioChannelOption;
+import io.netty.channel.socket.nio.NioDatagramChannel;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Dedicated UDP listener for queries on a port of its own, isolated from the game event loops.
+ * One socket per thread is bound to the port with SO_REUSEPORT so the kernel spreads queries
+ * across all threads. Epoll is preferred, NIO is used when the native transport is missing,
+ * and a single socket when the platform has no SO_REUSEPORT.
+ */
+public final class HytaleOneQueryListener {
+
+    @Nonnull
+    private final HytaleLogger logger;
+    @Nonnull
+    private final HytaleOneQueryHandler handler;
+    private final int port;
+    private final int threads;
+
+    private EventLoopGroup group;
+    private final List<Channel> channels = new ArrayList<>();
+
+    public HytaleOneQueryListener(@Nonnull HytaleLogger logger, @Nonnull HytaleOneQueryHandler handler,
+                                  int port, int threads) {
+        this.logger = logger;
+        this.handler = handler;
+        this.port = port;
+        this.threads = Math.max(threads, 1);
+    }
+
+    /**
+     * Bind the listener sockets.
+     */
+    public void start() throws InterruptedException {
+        boolean epoll = isEpollAvailable();
+        boolean reusePort = epoll || isNioReusePortSupported();
+        int sockets = reusePort ? threads : 1;
+        this.group = epoll
+                ? new EpollEventLoopGroup(sockets, new DefaultThreadFactory("HytaleOne-Query", true))
+                : new NioEventLoopGroup(sockets, new DefaultThreadFactory("HytaleOne-Query", true));
+
+        Bootstrap bootstrap = new Bootstrap()
+                .group(group)
+                .channel(epoll ? EpollDatagramChannel.class : NioDatagramChannel.class)
+                .handler(new ChannelInitializer<DatagramChannel>() {
+                    @Override
+                    protected void initChannel(@Nonnull DatagramChannel ch) {
+                        ch.pipeline().addLast(handler, new ChannelInboundHandlerAdapter() {
+                            @Override
+                            public void channelRead(@Nonnull ChannelHandlerContext ctx, @Nonnull Object msg) {
+                                // Nothing but queries is expected here
+                                ReferenceCountUtil.release(msg);
+                            }
+                        });
+                    }
+                });
+        if (epoll) {
+            bootstrap.option(EpollChannelOption.SO_REUSEPORT, true);
+        } else if (reusePort) {
+            bootstrap.option(NioChannelOption.of(StandardSocketOptions.SO_REUSEPORT), true);
+        }
+
+        try {
+            // Each bind registers with the next event loop, so every thread owns one socket
+            for (int i = 0; i < sockets; i++) {
+                channels.add(bootstrap.bind(new InetSocketAddress(port)).sync().channel());
+            }
+        } catch (Exception e) {
+            stop();
+            throw e;
+        }
+
+        logger.at(Level.INFO).log("Dedicated query listener on port %d with %d %s socket(s)", port, sockets,
+                epoll ? "epoll" : "NIO");
+        if (!reusePort && threads > 1) {
+            logger.at(Level.INFO).log("SO_REUSEPORT is not supported, using a single query thread");
+        }
+    }
+
+    /**
+     * Close the sockets and stop the event loops.
+     */
+    public void stop() {
+        for (Channel channel : channels) {
+            channel.close().awaitUninterruptibly();
+        }
+        channels.clear();
+        if (group != null) {
+            group.shutdownGracefully(0, 1, TimeUnit.SECONDS).awaitUninterruptibly();
+            this.group = null;
+        }
+    }
+
+    private static boolean isNioReusePortSupported() {
+        try (java.nio.channels.DatagramChannel channel = java.nio.channels.DatagramChannel.open()) {
+            return channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static boolean isEpollAvailable() {
+        try {
+            return Epoll.isAvailable();
+        } catch (LinkageError e) {
+            // Native transport classes are not on the classpath
+            return false;
+        }
+    }
+}
@@ -0,0 +1,355 @@
+package dev.hytaleone.query;
+
+import javax.annotation.Nonnull;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and histograms for the query subsystem, exposed over JMX.
+ * All counters are striped so recording never contends across event loops.
+ */
+public final class HytaleOneQueryMetrics implements HytaleOneQueryMetricsMBean {
+
+    public static final String OBJECT_NAME = "dev.hytaleone.query:type=QueryMetrics";
+
+    private final LongAdder basicRequests = new LongAdder();
+    private final LongAdder fullRequests = new LongAdder();
+    private final LongAdder otherRequests = new LongAdder();
+    private final LongAdder passThroughPackets = new LongAdder();
+    private final LongAdder prefixMismatches = new LongAdder();
+    private final LongAdder malformedPackets = new LongAdder();
+    private final LongAdder rateLimitedPackets = new LongAdder();
+    private final LongAdder challengeFailures = new LongAdder();
+    private final LongAdder responses = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder exceptions = new LongAdder();
+    private final LongAdder pushes = new LongAdder();
+    private final LongAdder shedQueries = new LongAdder();
+    private final LongAdder staleResponses = new LongAdder();
+    private final LongAdder overloadTransitions = new LongAdder();
+    private final LongAdder accessLogRecords = new LongAdder();
+    private final LongAdder accessLogDrops = new LongAdder();
+    private final LongAdder flushes = new LongAdder();
+    private final LongAdder sendFailures = new LongAdder();
+
+    private volatile int overloadState;
+    private volatile long eventLoopLagNanos;
+    private volatile double queryTimeShare;
+
+    private final HytaleOneQueryHistogram latency = new HytaleOneQueryHistogram();
+    private final HytaleOneQueryHistogram responseSizes = new HytaleOneQueryHistogram();
+
+    public void recordRequest(byte queryType) {
+        if (queryType == HytaleOneQueryProtocol.TYPE_BASIC) {
+            basicRequests.increment();
+        } else if (queryType == HytaleOneQueryProtocol.TYPE_FULL) {
+            fullRequests.increment();
+        } else {
+            otherRequests.increment();
+        }
+    }
+
+    /**
+     * Record pass-through packets, counted per read cycle by the handler.
+     */
+    public void recordPassThrough(long packets) {
+        passThroughPackets.add(packets);
+    }
+
+    /**
+     * Record packets that passed the first-byte prefilter but not the magic compare.
+     */
+    public void recordPrefixMismatches(long packets) {
+        prefixMismatches.add(packets);
+    }
+
+    public void recordMalformed() {
+        malformedPackets.increment();
+    }
+
+    public void recordRateLimited() {
+        rateLimitedPackets.increment();
+    }
+
+    public void recordChallengeFailure() {
+        challengeFailures.increment();
+    }
+
+    public void recordException() {
+        exceptions.increment();
+    }
+
+    /**
+     * Record a sent response with the time it took to build and write it.
+     */
+    public void recordResponse(int bytes, long nanos) {
+        responses.increment();
+        bytesSent.add(bytes);
+        responseSizes.record(bytes);
+        latency.record(nanos);
+    }
+
+    /**
+     * Record a flush of the replies written during a read cycle.
+     */
+    public void recordFlush() {
+        flushes.increment();
+    }
+
+    /**
+     * Record a reply or push the transport failed to send.
+     */
+    public void recordSendFailure() {
+        sendFailures.increment();
+    }
+
+    /**
+     * Record a change notification sent to a subscriber.
+     */
+    public void recordPush(int bytes) {
+        pushes.increment();
+        bytesSent.add(bytes);
+    }
+
+    /**
+     * Record a query dropped by the overload controller.
+     */
+    public void recordShed() {
+        shedQueries.increment();
+    }
+
+    /**
+     * Record a basic response served from the cache without rebuilding it.
+     */
+    public void recordStaleResponse() {
+        staleResponses.increment();
+    }
+
+    /**
+     * Record the load measured by the overload controller on its last tick.
+     */
+    public void recordOverloadSample(long lagNanos, double queryShare) {
+        this.eventLoopLagNanos = lagNanos;
+        this.queryTimeShare = queryShare;
+    }
+
+    /**
+     * Record a change of the overload state.
+     */
+    public void recordOverloadTransition(int state) {
+        this.overloadState = state;
+        overloadTransitions.increment();
+    }
+
+    /**
+     * Record access log records written to disk.
+     */
+    public void recordAccessLogWrite(int records) {
+        accessLogRecords.add(records);
+    }
+
+    /**
+     * Record an access log record dropped because the ring was full.
+     */
+    public void recordAccessLogDrop() {
+        accessLogDrops.increment();
+    }
+
+    /**
+     * Register with the platform MBean server, replacing a stale registration.
+     */
+    public void register() throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(OBJECT_NAME);
+        if (server.isRegistered(name)) {
+            server.unregisterMBean(name);
+        }
+        server.registerMBean(this, name);
+    }
+
+    /**
+     * Remove the registration from the platform MBean server.
+     */
+    public void unregister() throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(OBJECT_NAME);
+        if (server.isRegistered(name)) {
+            server.unregisterMBean(name);
+        }
+    }
+
+    @Nonnull
+    public HytaleOneQueryHistogram getLatencyHistogram() {
+        return latency;
+    }
+
+    @Nonnull
+    public HytaleOneQueryHistogram getResponseSizeHistogram() {
+        return responseSizes;
+    }
+
+    @Override
+    public long getBasicRequests() {
+        return basicRequests.sum();
+    }
+
+    @Override
+    public long getFullRequests() {
+        return fullRequests.sum();
+    }
+
+    @Override
+    public long getOtherRequests() {
+        return otherRequests.sum();
+    }
+
+    @Override
+    public long getPassThroughPackets() {
+        return passThroughPackets.sum();
+    }
+
+    @Override
+    public long getPrefixMismatches() {
+        return prefixMismatches.sum();
+    }
+
+    @Override
+    public long getMalformedPackets() {
+        return malformedPackets.sum();
+    }
+
+    @Override
+    public long getDroppedPackets() {
+        return malformedPackets.sum() + rateLimitedPackets.sum() + challengeFailures.sum() + shedQueries.sum();
+    }
+
+    @Override
+    public long getRateLimitedPackets() {
+        return rateLimitedPackets.sum();
+    }
+
+    @Override
+    public long getChallengeFailures() {
+        return challengeFailures.sum();
+    }
+
+    @Override
+    public long getResponses() {
+        return responses.sum();
+    }
+
+    @Override
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    @Override
+    public long getExceptions() {
+        return exceptions.sum();
+    }
+
+    @Override
+    public long getFlushes() {
+        return flushes.sum();
+    }
+
+    @Override
+    public long getSendFailures() {
+        return sendFailures.sum();
+    }
+
+    @Override
+    public long getPushes() {
+        return pushes.sum();
+    }
+
+    @Override
+    public long getShedQueries() {
+        return shedQueries.sum();
+    }
+
+    @Override
+    public long getStaleResponses() {
+        return staleResponses.sum();
+    }
+
+    @Override
+    public int getOverloadState() {
+        return overloadState;
+    }
+
+    @Nonnull
+    @Override
+    public String getOverloadStateName() {
+        return HytaleOneOverloadController.name(overloadState);
+    }
+
+    @Override
+    public long getOverloadTransitions() {
+        return overloadTransitions.sum();
+    }
+
+    @Override
+    public long getEventLoopLagNanos() {
+        return eventLoopLagNanos;
+    }
+
+    @Override
+    public int getQueryTimePercent() {
+        return (int) Math.round(queryTimeShare * 100);
+    }
+
+    @Override
+    public long getAccessLogRecords() {
+        return accessLogRecords.sum();
+    }
+
+    @Override
+    public long getAccessLogDrops() {
+        return accessLogDrops.sum();
+    }
+
+    @Override
+    public long getLatencyP50Nanos() {
+        return latency.percentile(50);
+    }
+
+    @Override
+    public long getLatencyP99Nanos() {
+        return latency.percentile(99);
+    }
+
+    @Override
+    public long getLatencyP999Nanos() {
+        return latency.percentile(99.9);
+    }
+
+    @Override
+    public long getLatencyMaxNanos() {
+        return latency.max();
+    }
+
+    @Override
+    public long getResponseSizeP50() {
+        return responseSizes.percentile(50);
+    }
+
+    @Override
+    public long getResponseSizeP99() {
+        return responseSizes.percentile(99);
+    }
+
+    @Override
+    public long getResponseSizeMax() {
+        return responseSizes.max();
+    }
+
+    @Override
+    public void resetHistograms() {
+        latency.reset();
+        responseSizes.reset();
+    }
+}
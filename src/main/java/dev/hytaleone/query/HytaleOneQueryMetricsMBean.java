@@ -0,0 +1,92 @@
+package dev.hytaleone.query;
+
+/**
+ * JMX view of the query subsystem metrics.
+ */
+public interface HytaleOneQueryMetricsMBean {
+
+    long getBasicRequests();
+
+    long getFullRequests();
+
+    long getOtherRequests();
+
+    long getPassThroughPackets();
+
+    /**
+     * Pass-through packets that got past the first-byte prefilter and needed the full magic compare.
+     */
+    long getPrefixMismatches();
+
+    long getMalformedPackets();
+
+    /**
+     * All queries dropped without an answer: malformed, rate limited, failed challenge and shed.
+     */
+    long getDroppedPackets();
+
+    long getRateLimitedPackets();
+
+    long getChallengeFailures();
+
+    long getResponses();
+
+    long getBytesSent();
+
+    long getExceptions();
+
+    /**
+     * Reply flushes, each one batched send on transports that support it.
+     */
+    long getFlushes();
+
+    /**
+     * Replies and pushes the transport failed to send, e.g. datagrams over the path MTU.
+     */
+    long getSendFailures();
+
+    long getPushes();
+
+    long getShedQueries();
+
+    long getStaleResponses();
+
+    /**
+     * Overload state, 0 normal, 1 shedding full queries, 2 stale basic only, 3 dropping all.
+     */
+    int getOverloadState();
+
+    String getOverloadStateName();
+
+    long getOverloadTransitions();
+
+    long getEventLoopLagNanos();
+
+    /**
+     * Share of event-loop time spent on queries during the last overload tick.
+     */
+    int getQueryTimePercent();
+
+    long getAccessLogRecords();
+
+    long getAccessLogDrops();
+
+    long getLatencyP50Nanos();
+
+    long getLatencyP99Nanos();
+
+    long getLatencyP999Nanos();
+
+    long getLatencyMaxNanos();
+
+    long getResponseSizeP50();
+
+    long getResponseSizeP99();
+
+    long getResponseSizeMax();
+
+    /**
+     * Clear the latency and response size histograms, for interval sampling.
+     */
+    void resetHistograms();
+}
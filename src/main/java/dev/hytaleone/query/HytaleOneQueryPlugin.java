@@ -1,13 +1,19 @@
 package dev.hytaleone.query;
 
 import com.hypixel.hytale.server.core.HytaleServer;
+import com.hypixel.hytale.server.core.event.events.player.PlayerConnectEvent;
+import com.hypixel.hytale.server.core.event.events.player.PlayerDisconnectEvent;
 import com.hypixel.hytale.server.core.io.ServerManager;
 import com.hypixel.hytale.server.core.plugin.JavaPlugin;
 import com.hypixel.hytale.server.core.plugin.JavaPluginInit;
+import com.hypixel.hytale.server.core.universe.PlayerRef;
+import com.hypixel.hytale.server.core.universe.Universe;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelPipeline;
 
 import javax.annotation.Nonnull;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
 import java.util.logging.Level;
 
 /**
@@ -21,6 +27,16 @@ public class HytaleOneQueryPlugin extends JavaPlugin {
     private static final String CONFIG_MODULE = "HytaleOneQuery";
 
     private HytaleOneQueryHandler queryHandler;
+    private HytaleOneQueryCache queryCache;
+    private HytaleOnePlayerRoster roster;
+    private HytaleOneQueryMetrics metrics;
+    private HytaleOneServerListRegistration registration;
+    private HytaleOneQueryListener listener;
+    private HytaleOneQueryAggregator aggregator;
+    private HytaleOneQuerySubscriptions subscriptions;
+    private HytaleOneOverloadController overload;
+    private HytaleOneAccessLog accessLog;
+    private HytaleOneHealthMonitor health;
     private HytaleOneQueryConfig config;
 
     public HytaleOneQueryPlugin(@Nonnull JavaPluginInit init) {
@@ -38,28 +54,131 @@ public class HytaleOneQueryPlugin extends JavaPlugin {
         // Wait for ServerManager to finish binding
         ServerManager.get().waitForBindComplete();
 
-        // Create the shared query handler
-        this.queryHandler = new HytaleOneQueryHandler(getLogger());
+        HytaleOneRosterJournal journal = new HytaleOneRosterJournal(config.getRosterJournalSize());
+        this.roster = new HytaleOnePlayerRoster(journal);
+        HytaleOneQuerySource source = new HytaleOneServerQuerySource();
 
-        // Inject handler into all listener pipelines
-        int registered = 0;
-        for (Channel channel : ServerManager.get().getListeners()) {
+        // In aggregator mode the roster holds the players of the backends instead of the local ones
+        boolean aggregating = !config.getAggregatorBackends().isBlank();
+        HytaleOneClusterQuerySource clusterSource = null;
+        if (aggregating) {
+            clusterSource = new HytaleOneClusterQuerySource(source);
+            source = clusterSource;
+        } else {
+            // Keep the player index up to date from events, then seed it with players already online.
+            // Adding a player the events already added does nothing, so no join is recorded twice
+            getEventRegistry().register(PlayerConnectEvent.class, event -> onPlayerChange(event.getPlayerRef(), true));
+            getEventRegistry().register(PlayerDisconnectEvent.class, event -> onPlayerChange(event.getPlayerRef(), false));
+            for (PlayerRef player : Universe.get().getPlayers()) {
+                roster.add(player.getUuid(), player.getUsername());
+            }
+        }
+
+        // Encode static response sections and the first snapshot
+        this.queryCache = new HytaleOneQueryCache(getLogger(), config.getCacheTtlMillis(),
+                config.getMaxResponseBytes(), source, roster, journal);
+        queryCache.start();
+
+        if (aggregating) {
             try {
-                ChannelPipeline pipeline = channel.pipeline();
-                pipeline.addFirst(HANDLER_NAME, queryHandler);
-                registered++;
-                getLogger().at(Level.FINE).log("Registered query handler on %s", channel.localAddress());
+                this.aggregator = new HytaleOneQueryAggregator(getLogger(),
+                        HytaleOneQueryAggregator.parseBackends(config.getAggregatorBackends()), roster, clusterSource,
+                        queryCache, config.getAggregatorPollMillis(), config.getAggregatorTimeoutMillis());
+                aggregator.start();
             } catch (Exception e) {
-                getLogger().at(Level.WARNING).withCause(e).log(
-                        "Failed to register query handler on %s", channel.localAddress());
+                getLogger().at(Level.WARNING).withCause(e).log("Failed to start aggregator mode");
+                this.aggregator = null;
             }
         }
 
-        getLogger().at(Level.INFO).log("Query protocol enabled on %d listener(s)", registered);
+        // Create the shared query handler with per-address budgets
+        HytaleOneRateLimiter basicLimiter = new HytaleOneRateLimiter(config.getBasicQueriesPerSecond(),
+                config.getBasicQueryBurst(), config.getRateLimitTableSize());
+        HytaleOneRateLimiter fullLimiter = new HytaleOneRateLimiter(config.getFullQueriesPerSecond(),
+                config.getFullQueryBurst(), config.getRateLimitTableSize());
+        HytaleOneQueryChallenge challenge = new HytaleOneQueryChallenge(config.getChallengeWindowSeconds());
+        this.metrics = new HytaleOneQueryMetrics();
+        this.subscriptions = new HytaleOneQuerySubscriptions(getLogger(), source, roster, journal, metrics,
+                config.getSubscriberTableSize(), config.getMaxLeaseSeconds(), config.getPushCoalesceMillis(),
+                config.getMaxResponseBytes());
+        subscriptions.start();
+        this.overload = new HytaleOneOverloadController(getLogger(), metrics, config.getOverloadLagMillis(),
+                config.getOverloadQueryPercent(), config.getOverloadRecoverMillis());
+        this.accessLog = new HytaleOneAccessLog(getLogger(), metrics, Path.of(config.getAccessLogDirectory()),
+                config.getAccessLogRingSize(), config.getAccessLogMaxFileMegabytes() * 1024L * 1024L,
+                config.getAccessLogMaxFiles());
+        try {
+            accessLog.start();
+        } catch (Exception e) {
+            getLogger().at(Level.WARNING).withCause(e).log("Failed to open query access log in %s",
+                    config.getAccessLogDirectory());
+            this.accessLog = new HytaleOneAccessLog(getLogger(), metrics, Path.of(config.getAccessLogDirectory()),
+                    0, 0, 0);
+        }
+        this.health = new HytaleOneHealthMonitor(getLogger(), new HytaleOneServerHealthSource(),
+                config.getHealthSecret(), config.getHealthSampleMillis(), config.getMaxResponseBytes());
+        health.start();
+        this.queryHandler = HytaleOneQueryHandler.builder(getLogger(), queryCache, metrics)
+                .rateLimiters(basicLimiter, fullLimiter)
+                .challenge(challenge, config.isRequireChallenge())
+                .subscriptions(subscriptions)
+                .overload(overload)
+                .accessLog(accessLog)
+                .health(health)
+                .maxPendingReplies(config.getMaxPendingReplies())
+                .build();
+
+        try {
+            metrics.register();
+        } catch (Exception e) {
+            getLogger().at(Level.WARNING).withCause(e).log("Failed to register query metrics MBean");
+        }
+
+        int queryPort = source.getHostPort();
+        if (config.getDedicatedPort() > 0) {
+            // Answer queries on a port of their own, away from the game event loops
+            this.listener = new HytaleOneQueryListener(getLogger(), queryHandler, config.getDedicatedPort(),
+                    config.getDedicatedThreads());
+            try {
+                listener.start();
+                queryPort = config.getDedicatedPort();
+            } catch (Exception e) {
+                getLogger().at(Level.WARNING).withCause(e).log("Failed to bind dedicated query port %d",
+                        config.getDedicatedPort());
+                this.listener = null;
+            }
+        } else {
+            // Inject handler into all listener pipelines
+            int registered = 0;
+            for (Channel channel : ServerManager.get().getListeners()) {
+                try {
+                    ChannelPipeline pipeline = channel.pipeline();
+                    pipeline.addFirst(HANDLER_NAME, queryHandler);
+                    registered++;
+                    getLogger().at(Level.FINE).log("Registered query handler on %s", channel.localAddress());
+                } catch (Exception e) {
+                    getLogger().at(Level.WARNING).withCause(e).log(
+                            "Failed to register query handler on %s", channel.localAddress());
+                }
+            }
+
+            getLogger().at(Level.INFO).log("Query protocol enabled on %d listener(s)", registered);
+        }
+
+        // Watch the event loops the handler was added to and shed queries when they fall behind
+        overload.start();
 
         // Register with server list service (if enabled)
         if (config.isRegisterOnStartup()) {
-            HytaleOneServerListRegistration.register(getLogger(), config, this::saveConfig);
+            String serverId = HytaleOneServerListRegistration.ensureServerId(getLogger(), config.getServerId(),
+                    newId -> {
+                        config.setServerId(newId);
+                        saveConfig();
+                    });
+            this.registration = new HytaleOneServerListRegistration(getLogger(), config.getServerListEndpoint(),
+                    serverId, source, roster::size, getHostAddress(), queryPort,
+                    config.getHeartbeatIntervalSeconds(), config.getHeartbeatKeepAliveSeconds());
+            registration.start();
         } else {
             getLogger().at(Level.INFO).log("Server list registration is disabled");
         }
@@ -71,6 +190,22 @@ public class HytaleOneQueryPlugin extends JavaPlugin {
             return;
         }
 
+        // Leave the server list before the roster goes away
+        if (registration != null) {
+            registration.stop();
+            this.registration = null;
+        }
+
+        if (listener != null) {
+            listener.stop();
+            this.listener = null;
+        }
+
+        if (aggregator != null) {
+            aggregator.stop();
+            this.aggregator = null;
+        }
+
         // Remove handler from all listener pipelines
         int removed = 0;
         for (Channel channel : ServerManager.get().getListeners()) {
@@ -85,8 +220,49 @@ public class HytaleOneQueryPlugin extends JavaPlugin {
             }
         }
 
-        getLogger().at(Level.INFO).log("Query protocol disabled, removed from %d listener(s)", removed);
+        getLogger().at(Level.INFO).log("Query protocol disabled, removed from %d listener(s), %d query(s) dropped",
+                removed, metrics.getDroppedPackets());
         this.queryHandler = null;
+
+        subscriptions.stop();
+        this.subscriptions = null;
+
+        overload.stop();
+        this.overload = null;
+
+        accessLog.stop();
+        this.accessLog = null;
+
+        health.stop();
+        this.health = null;
+
+        try {
+            metrics.unregister();
+        } catch (Exception e) {
+            getLogger().at(Level.FINE).log("Query metrics MBean already unregistered");
+        }
+        this.metrics = null;
+
+        queryCache.stop();
+        this.queryCache = null;
+        this.roster = null;
+    }
+
+    private void onPlayerChange(@Nonnull PlayerRef player, boolean joined) {
+        HytaleOnePlayerRoster roster = this.roster;
+        if (roster == null) {
+            return;
+        }
+        if (joined) {
+            roster.add(player.getUuid(), player.getUsername());
+        } else {
+            roster.remove(player.getUuid());
+        }
+
+        HytaleOneQueryCache cache = this.queryCache;
+        if (cache != null) {
+            cache.invalidate();
+        }
     }
 
     private void loadConfig() {
@@ -108,6 +284,20 @@ public class HytaleOneQueryPlugin extends JavaPlugin {
         serverConfig.markChanged();
     }
 
+    /**
+     * Address announced to the server list, or null to let the service use the sender address.
+     */
+    private static String getHostAddress() {
+        try {
+            InetSocketAddress address = ServerManager.get().getNonLoopbackAddress();
+            if (address != null && address.getAddress() != null) {
+                return address.getAddress().getHostAddress();
+            }
+        } catch (Exception ignored) {
+        }
+        return null;
+    }
+
     @Nonnull
     public HytaleOneQueryConfig getConfig() {
         return config;
@@ -1,23 +1,16 @@
 package dev.hytaleone.query;
 
-import com.hypixel.hytale.common.plugin.PluginIdentifier;
-import com.hypixel.hytale.common.util.java.ManifestUtil;
-import com.hypixel.hytale.protocol.ProtocolSettings;
-import com.hypixel.hytale.server.core.HytaleServer;
-import com.hypixel.hytale.server.core.io.ServerManager;
-import com.hypixel.hytale.server.core.plugin.PluginBase;
-import com.hypixel.hytale.server.core.plugin.PluginManager;
-import com.hypixel.hytale.server.core.universe.PlayerRef;
-import com.hypixel.hytale.server.core.universe.Universe;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
 
 import javax.annotation.Nonnull;
-import java.net.InetSocketAddress;
-import java.net.SocketException;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
+import java.util.zip.Deflater;
 
 /**
  * Query protocol constants and packet building utilities.
@@ -27,11 +20,115 @@ public final class HytaleOneQueryProtocol {
     public static final byte[] REQUEST_MAGIC = "HYQUERY\0".getBytes(StandardCharsets.US_ASCII);
     public static final byte[] RESPONSE_MAGIC = "HYREPLY\0".getBytes(StandardCharsets.US_ASCII);
 
+    // Request magic as one big-endian long, compared with a single getLong
+    public static final long REQUEST_MAGIC_LONG = 0x4859515545525900L;
+
     public static final byte TYPE_BASIC = 0x00;
     public static final byte TYPE_FULL = 0x01;
+    public static final byte TYPE_CHALLENGE = 0x02;
+    public static final byte TYPE_PLAYER_PAGE = 0x03;
+    public static final byte TYPE_ROSTER_DELTA = 0x04;
+    public static final byte TYPE_PROJECTION = 0x05;
+    public static final byte TYPE_LOOKUP = 0x06;
+    public static final byte TYPE_SUBSCRIBE = 0x07;
+    public static final byte TYPE_PUSH = 0x08;
+    public static final byte TYPE_HEALTH = 0x09;
+    public static final byte TYPE_BATCH = 0x0A;
+
+    // Flags in the upper bits of the type byte
+    public static final byte FLAG_COMPRESSED = 0x40;
+    public static final byte FLAG_NONCE = (byte) 0x80;
+    public static final byte TYPE_MASK = 0x3F;
+
+    public static final byte COMPRESSION_DEFLATE = 0x01;
+
+    public static final byte DELTA_NOT_MODIFIED = 0x00;
+    public static final byte DELTA_CHANGES = 0x01;
+    public static final byte DELTA_RESYNC = 0x02;
+
+    // Projection fields, each bit selects one section and doubles as its tag in the reply
+    public static final int FIELD_COUNTS = 0x01;
+    public static final int FIELD_IDENTITY = 0x02;
+    public static final int FIELD_VERSION = 0x04;
+    public static final int FIELD_PLAYERS = 0x08;
+    public static final int FIELD_PLUGINS = 0x10;
+    public static final int FIELD_HOST_PORT = 0x20;
+    public static final int FIELD_ALL = 0x3F;
+
+    // Fields that make a projection as expensive as a full query
+    public static final int FIELDS_LARGE = FIELD_PLAYERS | FIELD_PLUGINS;
+
+    // Lookup keys: kind byte followed by a UUID (16 bytes) or a length-prefixed name
+    public static final byte LOOKUP_KEY_UUID = 0x00;
+    public static final byte LOOKUP_KEY_NAME = 0x01;
+
+    public static final byte LOOKUP_OFFLINE = 0x00;
+    public static final byte LOOKUP_ONLINE = 0x01;
+
+    // What changed since the previous push
+    public static final byte PUSH_COUNTS = 0x01;
+    public static final byte PUSH_IDENTITY = 0x02;
+    public static final byte PUSH_ROSTER = 0x04;
+    public static final byte PUSH_ROSTER_TRUNCATED = 0x08;
+    public static final byte PUSH_IDENTITY_TRUNCATED = 0x10;
 
     public static final int MIN_REQUEST_SIZE = REQUEST_MAGIC.length + 1; // magic + type
 
+    // With the nonce flag a client nonce follows the type byte, shifting all later fields
+    public static final int NONCE_SIZE = 4;
+    public static final int NONCE_REQUEST_SIZE = MIN_REQUEST_SIZE + NONCE_SIZE;
+    public static final int NONCE_RESPONSE_HEADER_SIZE = RESPONSE_MAGIC.length + 1 + NONCE_SIZE;
+
+    // Field sizes below are for requests without a nonce
+    public static final int TOKEN_OFFSET = MIN_REQUEST_SIZE;
+    public static final int TOKEN_REQUEST_SIZE = TOKEN_OFFSET + 8; // magic + type + token
+
+    // Challenge requests are padded to the reply size so the handshake never amplifies
+    public static final int CHALLENGE_REQUEST_SIZE = TOKEN_REQUEST_SIZE;
+
+    // Player page request: magic + type + token + snapshot id + page index + page size
+    public static final int PAGE_REQUEST_SIZE = TOKEN_REQUEST_SIZE + 8;
+    public static final int PAGE_RESPONSE_HEADER_SIZE = RESPONSE_MAGIC.length + 1 + 14;
+
+    // Roster delta request: magic + type + token + last seen generation
+    public static final int DELTA_REQUEST_SIZE = TOKEN_REQUEST_SIZE + 8;
+    public static final int DELTA_RESPONSE_HEADER_SIZE = RESPONSE_MAGIC.length + 1 + 9;
+    public static final int DELTA_RESYNC_RESPONSE_SIZE = DELTA_RESPONSE_HEADER_SIZE + 4; // + snapshot id
+
+    // Projection request: magic + type + token + field mask
+    public static final int PROJECTION_REQUEST_SIZE = TOKEN_REQUEST_SIZE + 2;
+
+    // Lookup request: magic + type + token + key count, followed by the keys
+    public static final int LOOKUP_REQUEST_SIZE = TOKEN_REQUEST_SIZE + 1;
+    public static final int LOOKUP_RESPONSE_HEADER_SIZE = RESPONSE_MAGIC.length + 1 + 9;
+
+    // Subscribe request: magic + type + token + lease seconds, the reply has the same size
+    public static final int SUBSCRIBE_REQUEST_SIZE = TOKEN_REQUEST_SIZE + 2;
+
+    // Health request: magic + type + token + truncated HMAC-SHA256 of the token under the shared secret
+    public static final int HEALTH_PROOF_SIZE = 16;
+    public static final int HEALTH_REQUEST_SIZE = TOKEN_REQUEST_SIZE + HEALTH_PROOF_SIZE;
+
+    // Batch request: magic + type + token + query count, followed by fixed-size sub-queries of
+    // type + 8 parameter bytes laid out like the fields after the token of the single request
+    public static final int MAX_BATCH_QUERIES = 8;
+    public static final int BATCH_QUERY_SIZE = 9;
+    public static final int BATCH_REQUEST_SIZE = TOKEN_REQUEST_SIZE + 1;
+
+    // Batch response: magic + type + generation + part index + part count + entry count,
+    // followed by entries of sub-query index + length + the reply to that sub-query
+    public static final int BATCH_RESPONSE_HEADER_SIZE = RESPONSE_MAGIC.length + 1 + 11;
+    public static final int BATCH_ENTRY_HEADER_SIZE = 3;
+
+    // Entry length of a reply that does not fit a datagram, the client asks for it with pages
+    public static final int BATCH_ENTRY_TOO_LARGE = 0xFFFF;
+
+    // Projection section header: tag + length
+    public static final int SECTION_HEADER_SIZE = 5;
+
+    // Compressed response: magic + type + codec + uncompressed length
+    public static final int COMPRESSED_HEADER_SIZE = RESPONSE_MAGIC.length + 1 + 5;
+
     private HytaleOneQueryProtocol() {
     }
 
@@ -39,134 +136,569 @@ public final class HytaleOneQueryProtocol {
      * Check if the buffer starts with the request magic bytes.
      */
     public static boolean isQueryRequest(@Nonnull ByteBuf buf) {
-        if (buf.readableBytes() < MIN_REQUEST_SIZE) {
-            return false;
-        }
-        for (int i = 0; i < REQUEST_MAGIC.length; i++) {
-            if (buf.getByte(i) != REQUEST_MAGIC[i]) {
-                return false;
-            }
-        }
-        return true;
+        return hasQueryPrefix(buf) && hasRequestMagic(buf);
+    }
+
+    /**
+     * Cheap prefilter on the size and first byte. QUIC long headers have the high bit of the
+     * first byte set and never pass, short headers only pass when their masked bits spell 'H'.
+     */
+    public static boolean hasQueryPrefix(@Nonnull ByteBuf buf) {
+        return buf.readableBytes() >= MIN_REQUEST_SIZE && buf.getByte(0) == REQUEST_MAGIC[0];
     }
 
     /**
-     * Get the query type from the request buffer.
+     * Compare the full magic, only valid after {@link #hasQueryPrefix} passed.
+     */
+    public static boolean hasRequestMagic(@Nonnull ByteBuf buf) {
+        return buf.getLong(0) == REQUEST_MAGIC_LONG;
+    }
+
+    /**
+     * Get the query type from the request buffer, without flags.
      */
     public static byte getQueryType(@Nonnull ByteBuf buf) {
-        return buf.getByte(REQUEST_MAGIC.length);
+        return (byte) (buf.getByte(REQUEST_MAGIC.length) & TYPE_MASK);
+    }
+
+    /**
+     * Check if the client accepts a compressed reply.
+     */
+    public static boolean acceptsCompression(@Nonnull ByteBuf buf) {
+        return (buf.getByte(REQUEST_MAGIC.length) & FLAG_COMPRESSED) != 0;
+    }
+
+    /**
+     * Check if the request carries a client nonce to echo in the reply.
+     */
+    public static boolean hasNonce(@Nonnull ByteBuf buf) {
+        return (buf.getByte(REQUEST_MAGIC.length) & FLAG_NONCE) != 0;
+    }
+
+    /**
+     * Get the client nonce, only valid if {@link #hasNonce(ByteBuf)}.
+     */
+    public static int getNonce(@Nonnull ByteBuf buf) {
+        return buf.getIntLE(MIN_REQUEST_SIZE);
+    }
+
+    /**
+     * Get the number of bytes the nonce adds to the request, 0 or {@link #NONCE_SIZE}.
+     */
+    public static int getNonceLength(@Nonnull ByteBuf buf) {
+        return hasNonce(buf) ? NONCE_SIZE : 0;
+    }
+
+    /**
+     * Check if the request carries a challenge token after the type.
+     */
+    public static boolean hasToken(@Nonnull ByteBuf buf) {
+        return buf.readableBytes() >= TOKEN_REQUEST_SIZE + getNonceLength(buf);
+    }
+
+    /**
+     * Get the challenge token from the request buffer.
+     */
+    public static long getToken(@Nonnull ByteBuf buf) {
+        return buf.getLongLE(TOKEN_OFFSET + getNonceLength(buf));
+    }
+
+    /**
+     * Get the roster snapshot id a page request refers to, 0 for the latest.
+     */
+    public static int getPageSnapshotId(@Nonnull ByteBuf buf) {
+        return buf.getIntLE(TOKEN_REQUEST_SIZE + getNonceLength(buf));
+    }
+
+    /**
+     * Get the requested page index.
+     */
+    public static int getPageIndex(@Nonnull ByteBuf buf) {
+        return buf.getUnsignedShortLE(TOKEN_REQUEST_SIZE + getNonceLength(buf) + 4);
+    }
+
+    /**
+     * Get the requested page size in players, 0 lets the server choose.
+     */
+    public static int getPageSize(@Nonnull ByteBuf buf) {
+        return buf.getUnsignedShortLE(TOKEN_REQUEST_SIZE + getNonceLength(buf) + 6);
+    }
+
+    /**
+     * Get the roster generation the client last saw.
+     */
+    public static long getGeneration(@Nonnull ByteBuf buf) {
+        return buf.getLongLE(TOKEN_REQUEST_SIZE + getNonceLength(buf));
+    }
+
+    /**
+     * Check if the request is long enough to carry a projection field mask.
+     */
+    public static boolean hasProjectionFields(@Nonnull ByteBuf buf) {
+        return buf.readableBytes() >= PROJECTION_REQUEST_SIZE + getNonceLength(buf);
+    }
+
+    /**
+     * Get the requested projection fields, unknown bits are ignored.
+     */
+    public static int getProjectionFields(@Nonnull ByteBuf buf) {
+        return buf.getUnsignedShortLE(TOKEN_REQUEST_SIZE + getNonceLength(buf)) & FIELD_ALL;
+    }
+
+    /**
+     * Get the number of keys in a lookup request.
+     */
+    public static int getLookupKeyCount(@Nonnull ByteBuf buf) {
+        return buf.getUnsignedByte(TOKEN_REQUEST_SIZE + getNonceLength(buf));
     }
 
     /**
-     * Build a basic query response containing server info only.
+     * Get the keys of a lookup request as a slice of the request buffer.
      */
     @Nonnull
-    public static ByteBuf buildBasicResponse(@Nonnull ByteBufAllocator alloc) {
-        ByteBuf buf = alloc.buffer();
+    public static ByteBuf getLookupKeys(@Nonnull ByteBuf buf) {
+        int offset = LOOKUP_REQUEST_SIZE + getNonceLength(buf);
+        return buf.slice(offset, buf.writerIndex() - offset);
+    }
 
-        // Magic header
+    /**
+     * Write the lookup response header, the status bytes follow in key order.
+     */
+    public static void writeLookupHeader(@Nonnull ByteBuf buf, long generation, int keyCount) {
         buf.writeBytes(RESPONSE_MAGIC);
+        buf.writeByte(TYPE_LOOKUP);
+        buf.writeLongLE(generation);
+        buf.writeByte(keyCount);
+    }
 
-        // Response type
-        buf.writeByte(TYPE_BASIC);
+    /**
+     * Get the requested subscription lease in seconds, 0 cancels the subscription.
+     */
+    public static int getLeaseSeconds(@Nonnull ByteBuf buf) {
+        return buf.getUnsignedShortLE(TOKEN_REQUEST_SIZE + getNonceLength(buf));
+    }
+
+    /**
+     * Get the secret proof of a health request as a slice of the request buffer.
+     */
+    @Nonnull
+    public static ByteBuf getHealthProof(@Nonnull ByteBuf buf) {
+        return buf.slice(TOKEN_REQUEST_SIZE + getNonceLength(buf), HEALTH_PROOF_SIZE);
+    }
 
-        // Server name
-        writeString(buf, HytaleServer.get().getConfig().getServerName());
+    /**
+     * Get the number of sub-queries in a batch request.
+     */
+    public static int getBatchQueryCount(@Nonnull ByteBuf buf) {
+        return buf.getUnsignedByte(TOKEN_REQUEST_SIZE + getNonceLength(buf));
+    }
 
-        // MOTD
-        writeString(buf, HytaleServer.get().getConfig().getMotd());
+    /**
+     * Get the type of a batch sub-query, without flags.
+     */
+    public static byte getBatchQueryType(@Nonnull ByteBuf buf, int index) {
+        return (byte) (buf.getByte(batchQueryOffset(buf, index)) & TYPE_MASK);
+    }
 
-        // Current players
-        buf.writeIntLE(Universe.get().getPlayerCount());
+    /**
+     * Get the roster snapshot id of a player page sub-query, 0 for the roster of the batch snapshot.
+     */
+    public static int getBatchPageSnapshotId(@Nonnull ByteBuf buf, int index) {
+        return buf.getIntLE(batchQueryOffset(buf, index) + 1);
+    }
 
-        // Max players
-        buf.writeIntLE(Math.max(HytaleServer.get().getConfig().getMaxPlayers(), 0));
+    /**
+     * Get the page index of a player page sub-query.
+     */
+    public static int getBatchPageIndex(@Nonnull ByteBuf buf, int index) {
+        return buf.getUnsignedShortLE(batchQueryOffset(buf, index) + 5);
+    }
 
-        // Host port
-        buf.writeShortLE(getHostPort());
+    /**
+     * Get the page size of a player page sub-query, 0 lets the server choose.
+     */
+    public static int getBatchPageSize(@Nonnull ByteBuf buf, int index) {
+        return buf.getUnsignedShortLE(batchQueryOffset(buf, index) + 7);
+    }
 
-        // Server version
-        writeString(buf, getVersion());
+    /**
+     * Get the fields of a projection sub-query, unknown bits are ignored.
+     */
+    public static int getBatchProjectionFields(@Nonnull ByteBuf buf, int index) {
+        return buf.getUnsignedShortLE(batchQueryOffset(buf, index) + 1) & FIELD_ALL;
+    }
 
-        // Protocol version
-        buf.writeIntLE(ProtocolSettings.PROTOCOL_VERSION);
+    private static int batchQueryOffset(@Nonnull ByteBuf buf, int index) {
+        return BATCH_REQUEST_SIZE + getNonceLength(buf) + index * BATCH_QUERY_SIZE;
+    }
 
-        // Protocol hash
-        writeString(buf, ProtocolSettings.PROTOCOL_HASH);
+    /**
+     * Pack the replies to the sub-queries of a batch into as few datagrams as the byte budget
+     * allows, in sub-query order. A missing reply (null) is written as an empty entry, a reply
+     * that does not fit a datagram within the budget as an empty {@link #BATCH_ENTRY_TOO_LARGE}
+     * entry, so no datagram exceeds the budget. Every datagram carries the roster generation of
+     * the snapshot, its index and the total number of datagrams.
+     * The replies are copied, the caller keeps ownership of them.
+     */
+    @Nonnull
+    public static List<ByteBuf> buildBatchResponse(@Nonnull ByteBufAllocator alloc, long generation,
+                                                   @Nonnull ByteBuf[] responses, int budget) {
+        List<ByteBuf> parts = new ArrayList<>(1);
+        ByteBuf part = null;
+        for (int i = 0; i < responses.length; i++) {
+            ByteBuf response = responses[i];
+            int length = response != null ? response.readableBytes() : 0;
+            int lengthField = length;
+            if (BATCH_RESPONSE_HEADER_SIZE + BATCH_ENTRY_HEADER_SIZE + length > budget) {
+                length = 0;
+                lengthField = BATCH_ENTRY_TOO_LARGE;
+            }
+            int entrySize = BATCH_ENTRY_HEADER_SIZE + length;
+            if (part == null || part.readableBytes() + entrySize > budget) {
+                part = alloc.directBuffer(BATCH_RESPONSE_HEADER_SIZE + entrySize);
+                part.writeBytes(RESPONSE_MAGIC);
+                part.writeByte(TYPE_BATCH);
+                part.writeLongLE(generation);
+                // Part index, part count and entry count are filled in below
+                part.writeZero(3);
+                parts.add(part);
+            }
 
-        return buf;
+            part.writeByte(i);
+            part.writeShortLE(lengthField);
+            if (length > 0) {
+                part.writeBytes(response, response.readerIndex(), length);
+            }
+            int countIndex = BATCH_RESPONSE_HEADER_SIZE - 1;
+            part.setByte(countIndex, part.getUnsignedByte(countIndex) + 1);
+        }
+
+        for (int i = 0; i < parts.size(); i++) {
+            parts.get(i).setByte(BATCH_RESPONSE_HEADER_SIZE - 3, i)
+                    .setByte(BATCH_RESPONSE_HEADER_SIZE - 2, parts.size());
+        }
+        return parts;
     }
 
     /**
-     * Build a full query response containing server info, player list, and plugins.
+     * Build a subscribe response with the granted lease and the current roster generation.
      */
     @Nonnull
-    public static ByteBuf buildFullResponse(@Nonnull ByteBufAllocator alloc) {
-        ByteBuf buf = alloc.buffer();
+    public static ByteBuf buildSubscribeResponse(@Nonnull ByteBufAllocator alloc, int leaseSeconds,
+                                                 long generation) {
+        ByteBuf buf = alloc.directBuffer(SUBSCRIBE_REQUEST_SIZE);
+        buf.writeBytes(RESPONSE_MAGIC);
+        buf.writeByte(TYPE_SUBSCRIBE);
+        buf.writeShortLE(leaseSeconds);
+        buf.writeLongLE(generation);
+        return buf;
+    }
 
-        // Magic header
+    /**
+     * Write the push header.
+     *
+     * @return the index of the changes byte, so flags can be added later
+     */
+    public static int writePushHeader(@Nonnull ByteBuf buf, int sequence, byte changes, int currentPlayers,
+                                      int maxPlayers, long previousGeneration, long generation) {
         buf.writeBytes(RESPONSE_MAGIC);
+        buf.writeByte(TYPE_PUSH);
+        buf.writeIntLE(sequence);
+        int changesIndex = buf.writerIndex();
+        buf.writeByte(changes);
+        buf.writeIntLE(currentPlayers);
+        buf.writeIntLE(maxPlayers);
+        buf.writeLongLE(previousGeneration);
+        buf.writeLongLE(generation);
+        return changesIndex;
+    }
 
-        // Response type
-        buf.writeByte(TYPE_FULL);
+    /**
+     * Write the roster delta response header.
+     */
+    public static void writeDeltaHeader(@Nonnull ByteBuf buf, byte status, long generation) {
+        buf.writeBytes(RESPONSE_MAGIC);
+        buf.writeByte(TYPE_ROSTER_DELTA);
+        buf.writeByte(status);
+        buf.writeLongLE(generation);
+    }
 
-        // Server name
-        writeString(buf, HytaleServer.get().getConfig().getServerName());
+    /**
+     * Build a challenge response carrying the token for the sender.
+     */
+    @Nonnull
+    public static ByteBuf buildChallengeResponse(@Nonnull ByteBufAllocator alloc, long token) {
+        ByteBuf buf = alloc.directBuffer(TOKEN_REQUEST_SIZE);
+        buf.writeBytes(RESPONSE_MAGIC);
+        buf.writeByte(TYPE_CHALLENGE);
+        buf.writeLongLE(token);
+        return buf;
+    }
 
-        // MOTD
-        writeString(buf, HytaleServer.get().getConfig().getMotd());
+    /**
+     * Build a basic query response from pre-encoded sections.
+     */
+    @Nonnull
+    public static ByteBuf buildBasicResponse(@Nonnull ByteBufAllocator alloc, @Nonnull ByteBuf identity,
+                                             int currentPlayers, int maxPlayers, int hostPort,
+                                             @Nonnull ByteBuf version) {
+        ByteBuf buf = alloc.directBuffer(RESPONSE_MAGIC.length + 1
+                + identity.readableBytes() + 10 + version.readableBytes());
+        writeBasicFields(buf, TYPE_BASIC, identity, currentPlayers, maxPlayers, hostPort, version);
+        return buf;
+    }
 
-        // Current players
-        List<PlayerRef> players = Universe.get().getPlayers();
-        buf.writeIntLE(players.size());
+    /**
+     * Build a full query response from pre-encoded sections.
+     */
+    @Nonnull
+    public static ByteBuf buildFullResponse(@Nonnull ByteBufAllocator alloc, @Nonnull ByteBuf identity,
+                                            int currentPlayers, int maxPlayers, int hostPort,
+                                            @Nonnull ByteBuf version, @Nonnull ByteBuf players,
+                                            @Nonnull ByteBuf plugins, long generation) {
+        ByteBuf buf = alloc.directBuffer(RESPONSE_MAGIC.length + 1 + identity.readableBytes() + 10
+                + version.readableBytes() + players.readableBytes() + plugins.readableBytes() + 8);
+        writeBasicFields(buf, TYPE_FULL, identity, currentPlayers, maxPlayers, hostPort, version);
 
-        // Max players
-        buf.writeIntLE(Math.max(HytaleServer.get().getConfig().getMaxPlayers(), 0));
+        // Player list
+        buf.writeBytes(players, players.readerIndex(), players.readableBytes());
 
-        // Host port
-        buf.writeShortLE(getHostPort());
+        // Plugin list
+        buf.writeBytes(plugins, plugins.readerIndex(), plugins.readableBytes());
 
-        // Server version
-        writeString(buf, getVersion());
+        // Roster generation, appended so older clients can ignore it
+        buf.writeLongLE(generation);
 
-        // Protocol version
-        buf.writeIntLE(ProtocolSettings.PROTOCOL_VERSION);
+        return buf;
+    }
 
-        // Protocol hash
-        writeString(buf, ProtocolSettings.PROTOCOL_HASH);
+    /**
+     * Build a projection response holding only the requested sections, each written as
+     * tag + length + value in tag order. Sections of fields that are not requested may be null.
+     */
+    @Nonnull
+    public static ByteBuf buildProjectionResponse(@Nonnull ByteBufAllocator alloc, int fields,
+                                                  int currentPlayers, int maxPlayers, int hostPort,
+                                                  ByteBuf identity, ByteBuf version, ByteBuf players,
+                                                  long generation, ByteBuf plugins) {
+        int size = RESPONSE_MAGIC.length + 1;
+        size += sectionSize(fields, FIELD_COUNTS, 8);
+        size += sectionSize(fields, FIELD_IDENTITY, identity);
+        size += sectionSize(fields, FIELD_VERSION, version);
+        size += sectionSize(fields, FIELD_PLAYERS, players != null ? players.readableBytes() + 8 : 0);
+        size += sectionSize(fields, FIELD_PLUGINS, plugins);
+        size += sectionSize(fields, FIELD_HOST_PORT, 2);
+
+        ByteBuf buf = alloc.directBuffer(size);
+        buf.writeBytes(RESPONSE_MAGIC);
+        buf.writeByte(TYPE_PROJECTION);
 
-        // Player list
-        buf.writeIntLE(players.size());
-        for (PlayerRef player : players) {
-            writeString(buf, player.getUsername());
-            writeUUID(buf, player.getUuid());
+        if ((fields & FIELD_COUNTS) != 0) {
+            writeSectionHeader(buf, FIELD_COUNTS, 8);
+            buf.writeIntLE(currentPlayers);
+            buf.writeIntLE(maxPlayers);
         }
+        writeSection(buf, fields, FIELD_IDENTITY, identity);
+        writeSection(buf, fields, FIELD_VERSION, version);
+        if ((fields & FIELD_PLAYERS) != 0) {
+            // Player list followed by the roster generation, as in the full response
+            writeSectionHeader(buf, FIELD_PLAYERS, players.readableBytes() + 8);
+            buf.writeBytes(players, players.readerIndex(), players.readableBytes());
+            buf.writeLongLE(generation);
+        }
+        writeSection(buf, fields, FIELD_PLUGINS, plugins);
+        if ((fields & FIELD_HOST_PORT) != 0) {
+            writeSectionHeader(buf, FIELD_HOST_PORT, 2);
+            buf.writeShortLE(hostPort);
+        }
+        return buf;
+    }
 
-        // Plugin list
-        List<PluginBase> plugins = PluginManager.get().getPlugins();
-        buf.writeIntLE(plugins.size());
-        for (PluginBase plugin : plugins) {
-            PluginIdentifier id = plugin.getIdentifier();
-            writeString(buf, id.toString()); // e.g. "HytaleOne:Query"
-            writeString(buf, plugin.getManifest().getVersion().toString());
-            buf.writeBoolean(plugin.isEnabled());
+    private static int sectionSize(int fields, int field, int length) {
+        return (fields & field) != 0 ? SECTION_HEADER_SIZE + length : 0;
+    }
+
+    private static int sectionSize(int fields, int field, ByteBuf section) {
+        return sectionSize(fields, field, section != null ? section.readableBytes() : 0);
+    }
+
+    private static void writeSection(@Nonnull ByteBuf buf, int fields, int field, ByteBuf section) {
+        if ((fields & field) != 0) {
+            writeSectionHeader(buf, field, section.readableBytes());
+            buf.writeBytes(section, section.readerIndex(), section.readableBytes());
         }
+    }
+
+    private static void writeSectionHeader(@Nonnull ByteBuf buf, int tag, int length) {
+        buf.writeByte(tag);
+        buf.writeIntLE(length);
+    }
+
+    /**
+     * Echo a client nonce in a response. The magic and type are written to a new header
+     * with the nonce flag set, the rest of the response is appended without copying.
+     * Takes ownership of the response.
+     */
+    @Nonnull
+    public static ByteBuf withNonce(@Nonnull ByteBufAllocator alloc, @Nonnull ByteBuf response, int nonce) {
+        int headerSize = RESPONSE_MAGIC.length + 1;
+        ByteBuf header = alloc.directBuffer(NONCE_RESPONSE_HEADER_SIZE);
+        header.writeBytes(RESPONSE_MAGIC);
+        header.writeByte(response.getByte(response.readerIndex() + RESPONSE_MAGIC.length) | FLAG_NONCE);
+        header.writeIntLE(nonce);
+
+        ByteBuf body = response.retainedSlice(response.readerIndex() + headerSize,
+                response.readableBytes() - headerSize);
+        response.release();
+        return alloc.compositeDirectBuffer(2).addComponents(true, header, body);
+    }
 
+    /**
+     * Compress a full response with deflate (zlib format). Everything after the type
+     * byte is compressed, the header keeps the magic and carries the codec and the
+     * uncompressed length.
+     *
+     * @return the compressed response, or null if compression does not make it smaller
+     */
+    public static ByteBuf compressFullResponse(@Nonnull ByteBufAllocator alloc, @Nonnull ByteBuf full,
+                                               @Nonnull Deflater deflater) {
+        int headerSize = RESPONSE_MAGIC.length + 1;
+        int length = full.readableBytes() - headerSize;
+        ByteBuf buf = alloc.directBuffer(COMPRESSED_HEADER_SIZE + length);
+        buf.writeBytes(RESPONSE_MAGIC);
+        buf.writeByte(TYPE_FULL | FLAG_COMPRESSED);
+        buf.writeByte(COMPRESSION_DEFLATE);
+        buf.writeIntLE(length);
+
+        // Output space is capped at the uncompressed size, running out means no gain
+        deflater.reset();
+        deflater.setInput(full.nioBuffer(full.readerIndex() + headerSize, length));
+        deflater.finish();
+        ByteBuffer out = buf.nioBuffer(buf.writerIndex(), buf.writableBytes());
+        while (!deflater.finished() && out.hasRemaining()) {
+            deflater.deflate(out);
+        }
+        if (!deflater.finished()) {
+            buf.release();
+            return null;
+        }
+        return buf.writerIndex(buf.writerIndex() + out.position());
+    }
+
+    /**
+     * Build a player page response. The entries are appended without copying.
+     */
+    @Nonnull
+    public static ByteBuf buildPageResponse(@Nonnull ByteBufAllocator alloc, int snapshotId, int totalPlayers,
+                                            int page, int pageSize, int entryCount, @Nonnull ByteBuf entries) {
+        ByteBuf header = alloc.directBuffer(PAGE_RESPONSE_HEADER_SIZE);
+
+        // Magic header
+        header.writeBytes(RESPONSE_MAGIC);
+
+        // Response type
+        header.writeByte(TYPE_PLAYER_PAGE);
+
+        // Roster snapshot the page was cut from
+        header.writeIntLE(snapshotId);
+
+        // Total players in the snapshot
+        header.writeIntLE(totalPlayers);
+
+        // Page index and effective page size
+        header.writeShortLE(page);
+        header.writeShortLE(pageSize);
+
+        // Players in this page
+        header.writeShortLE(entryCount);
+
+        return alloc.compositeDirectBuffer(2).addComponents(true, header, entries);
+    }
+
+    private static void writeBasicFields(@Nonnull ByteBuf buf, byte type, @Nonnull ByteBuf identity,
+                                         int currentPlayers, int maxPlayers, int hostPort,
+                                         @Nonnull ByteBuf version) {
+        // Magic header
+        buf.writeBytes(RESPONSE_MAGIC);
+
+        // Response type
+        buf.writeByte(type);
+
+        // Server name and MOTD
+        buf.writeBytes(identity, identity.readerIndex(), identity.readableBytes());
+
+        // Current players
+        buf.writeIntLE(currentPlayers);
+
+        // Max players
+        buf.writeIntLE(maxPlayers);
+
+        // Host port
+        buf.writeShortLE(hostPort);
+
+        // Server version, protocol version and protocol hash
+        buf.writeBytes(version, version.readerIndex(), version.readableBytes());
+    }
+
+    /**
+     * Encode the server name and MOTD section.
+     */
+    @Nonnull
+    public static ByteBuf encodeIdentity(@Nonnull ByteBufAllocator alloc, @Nonnull String serverName,
+                                         @Nonnull String motd) {
+        ByteBuf buf = alloc.directBuffer();
+        writeString(buf, serverName);
+        writeString(buf, motd);
         return buf;
     }
 
     /**
-     * Get the server version string.
+     * Encode the server version, protocol version and protocol hash section.
      */
-    private static String getVersion() {
-        String version = ManifestUtil.getImplementationVersion();
-        return version != null ? version : "unknown";
+    @Nonnull
+    public static ByteBuf encodeVersion(@Nonnull ByteBufAllocator alloc, @Nonnull String version,
+                                        int protocolVersion, @Nonnull String protocolHash) {
+        ByteBuf buf = alloc.directBuffer();
+        writeString(buf, version);
+        buf.writeIntLE(protocolVersion);
+        writeString(buf, protocolHash);
+        return buf;
+    }
+
+    /**
+     * Encode a single player entry (name and UUID).
+     */
+    @Nonnull
+    public static byte[] encodePlayerEntry(@Nonnull String name, @Nonnull UUID uuid) {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        byte[] entry = new byte[2 + nameBytes.length + 16];
+        ByteBuf buf = Unpooled.wrappedBuffer(entry).writerIndex(0);
+        buf.writeShortLE(nameBytes.length);
+        buf.writeBytes(nameBytes);
+        writeUUID(buf, uuid);
+        return entry;
+    }
+
+    /**
+     * Encode the plugin list section.
+     */
+    @Nonnull
+    public static ByteBuf encodePlugins(@Nonnull ByteBufAllocator alloc,
+                                        @Nonnull List<HytaleOneQuerySource.PluginInfo> plugins) {
+        ByteBuf buf = alloc.directBuffer();
+        buf.writeIntLE(plugins.size());
+        for (HytaleOneQuerySource.PluginInfo plugin : plugins) {
+            writeString(buf, plugin.identifier());
+            writeString(buf, plugin.version());
+            buf.writeBoolean(plugin.enabled());
+        }
+        return buf;
     }
 
     /**
      * Write a string with 2-byte little-endian length prefix.
      */
-    private static void writeString(@Nonnull ByteBuf buf, @Nonnull String str) {
+    public static void writeString(@Nonnull ByteBuf buf, @Nonnull String str) {
         byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
         buf.writeShortLE(bytes.length);
         buf.writeBytes(bytes);
@@ -175,22 +707,8 @@ public final class HytaleOneQueryProtocol {
     /**
      * Write a UUID as 16 bytes (MSB first, then LSB).
      */
-    private static void writeUUID(@Nonnull ByteBuf buf, @Nonnull UUID uuid) {
+    public static void writeUUID(@Nonnull ByteBuf buf, @Nonnull UUID uuid) {
         buf.writeLong(uuid.getMostSignificantBits());
         buf.writeLong(uuid.getLeastSignificantBits());
     }
-
-    /**
-     * Get the host port from ServerManager.
-     */
-    private static int getHostPort() {
-        try {
-            InetSocketAddress address = ServerManager.get().getNonLoopbackAddress();
-            if (address != null) {
-                return address.getPort();
-            }
-        } catch (SocketException ignored) {
-        }
-        return 5520; // Default port
-    }
 }
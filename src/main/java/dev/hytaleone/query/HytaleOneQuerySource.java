@@ -0,0 +1,38 @@
+package dev.hytaleone.query;
+
+import javax.annotation.Nonnull;
+import java.util.List;
+
+/**
+ * Server state the query responses are built from, apart from the player roster.
+ * Read by the query cache whenever it rebuilds its snapshot.
+ */
+public interface HytaleOneQuerySource {
+
+    @Nonnull
+    String getServerName();
+
+    @Nonnull
+    String getMotd();
+
+    int getMaxPlayers();
+
+    int getHostPort();
+
+    @Nonnull
+    String getVersion();
+
+    int getProtocolVersion();
+
+    @Nonnull
+    String getProtocolHash();
+
+    @Nonnull
+    List<PluginInfo> getPlugins();
+
+    /**
+     * Plugin entry of the full response.
+     */
+    record PluginInfo(@Nonnull String identifier, @Nonnull String version, boolean enabled) {
+    }
+}
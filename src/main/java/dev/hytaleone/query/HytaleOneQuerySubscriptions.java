@@ -0,0 +1,283 @@
+package dev.hytaleone.query;
+
+import com.hypixel.hytale.logger.HytaleLogger;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.socket.DatagramPacket;
+
+import javax.annotation.Nonnull;
+import java.net.InetSocketAddress;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Leased change subscriptions. Subscribers are kept in a fixed-size table, each
+ * address may hold a few of them and expired leases are evicted on every tick.
+ * Once per coalescing window the server state is compared with the last pushed
+ * state, and a single push datagram describing all changes is sent to every
+ * subscriber. Pushes are written through the context the subscription came in on.
+ */
+public final class HytaleOneQuerySubscriptions {
+
+    // Leases per sender address, so one host cannot fill the table
+    private static final int MAX_PER_ADDRESS = 4;
+
+    private final ByteBufAllocator alloc = PooledByteBufAllocator.DEFAULT;
+    @Nonnull
+    private final HytaleLogger logger;
+    @Nonnull
+    private final HytaleOneQuerySource source;
+    @Nonnull
+    private final HytaleOnePlayerRoster roster;
+    @Nonnull
+    private final HytaleOneRosterJournal journal;
+    @Nonnull
+    private final HytaleOneQueryMetrics metrics;
+    private final int maxLeaseSeconds;
+    private final long coalesceMillis;
+    private final int maxPushBytes;
+    @Nonnull
+    private final ChannelFutureListener sendListener;
+
+    // Subscriber table, compacted on removal. Guarded by this
+    private final InetSocketAddress[] addresses;
+    private final ChannelHandlerContext[] contexts;
+    private final long[] expiresAt;
+    private int count;
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "HytaleOne-Push");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Last pushed state, only touched on the scheduler thread
+    private long lastGeneration;
+    private int lastPlayers;
+    private int lastMaxPlayers;
+    private String lastServerName;
+    private String lastMotd;
+    private int sequence;
+
+    /**
+     * @param capacity        subscriber table size, 0 disables subscriptions
+     * @param maxLeaseSeconds longest lease granted, clients renew before it runs out
+     * @param coalesceMillis  changes within this window are sent as one push
+     * @param maxPushBytes    byte budget of a push, name, MOTD and roster changes beyond it are left out
+     */
+    public HytaleOneQuerySubscriptions(@Nonnull HytaleLogger logger, @Nonnull HytaleOneQuerySource source,
+                                       @Nonnull HytaleOnePlayerRoster roster, @Nonnull HytaleOneRosterJournal journal,
+                                       @Nonnull HytaleOneQueryMetrics metrics, int capacity, int maxLeaseSeconds,
+                                       int coalesceMillis, int maxPushBytes) {
+        this.logger = logger;
+        this.source = source;
+        this.roster = roster;
+        this.journal = journal;
+        this.metrics = metrics;
+        this.maxLeaseSeconds = Math.min(Math.max(maxLeaseSeconds, 1), 0xFFFF);
+        this.coalesceMillis = Math.max(coalesceMillis, 50);
+        this.maxPushBytes = maxPushBytes;
+        // Failed pushes are counted instead of surfacing in the channel's exception handlers
+        this.sendListener = future -> {
+            if (!future.isSuccess()) {
+                metrics.recordSendFailure();
+            }
+        };
+        int size = Math.max(capacity, 0);
+        this.addresses = new InetSocketAddress[size];
+        this.contexts = new ChannelHandlerContext[size];
+        this.expiresAt = new long[size];
+    }
+
+    /**
+     * Capture the initial state and start the push loop.
+     */
+    public void start() {
+        if (addresses.length == 0) {
+            return;
+        }
+        captureState();
+        scheduler.scheduleWithFixedDelay(this::tick, coalesceMillis, coalesceMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop pushing and drop all subscribers.
+     */
+    public void stop() {
+        scheduler.shutdownNow();
+        try {
+            scheduler.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            for (int i = 0; i < count; i++) {
+                addresses[i] = null;
+                contexts[i] = null;
+            }
+            count = 0;
+        }
+    }
+
+    /**
+     * Add, renew or cancel the sender's subscription. The sender must have passed the challenge.
+     *
+     * @param leaseSeconds requested lease, 0 cancels the subscription
+     * @return the granted lease in seconds, 0 if cancelled or the table is full
+     */
+    public synchronized int subscribe(@Nonnull ChannelHandlerContext ctx, @Nonnull InetSocketAddress sender,
+                                      int leaseSeconds) {
+        long now = System.nanoTime();
+        int sameAddress = 0;
+        int existing = -1;
+        for (int i = 0; i < count; i++) {
+            if (addresses[i].getAddress().equals(sender.getAddress())) {
+                if (addresses[i].getPort() == sender.getPort()) {
+                    existing = i;
+                }
+                sameAddress++;
+            }
+        }
+
+        if (leaseSeconds <= 0) {
+            if (existing >= 0) {
+                remove(existing);
+            }
+            return 0;
+        }
+
+        int granted = Math.min(leaseSeconds, maxLeaseSeconds);
+        int slot = existing;
+        if (slot < 0) {
+            if (sameAddress >= MAX_PER_ADDRESS) {
+                return 0;
+            }
+            if (count == addresses.length) {
+                evictExpired(now);
+                if (count == addresses.length) {
+                    return 0;
+                }
+            }
+            slot = count++;
+            addresses[slot] = sender;
+        }
+        contexts[slot] = ctx;
+        expiresAt[slot] = now + TimeUnit.SECONDS.toNanos(granted);
+        return granted;
+    }
+
+    /**
+     * Number of active subscribers.
+     */
+    public synchronized int size() {
+        return count;
+    }
+
+    private void tick() {
+        try {
+            long generation = journal.generation();
+            int players = roster.size();
+            int maxPlayers = source.getMaxPlayers();
+            String serverName = source.getServerName();
+            String motd = source.getMotd();
+
+            byte changes = 0;
+            if (players != lastPlayers || maxPlayers != lastMaxPlayers) {
+                changes |= HytaleOneQueryProtocol.PUSH_COUNTS;
+            }
+            if (!serverName.equals(lastServerName) || !motd.equals(lastMotd)) {
+                changes |= HytaleOneQueryProtocol.PUSH_IDENTITY;
+            }
+            if (generation != lastGeneration) {
+                changes |= HytaleOneQueryProtocol.PUSH_ROSTER;
+            }
+
+            synchronized (this) {
+                evictExpired(System.nanoTime());
+                if (changes != 0 && count > 0) {
+                    push(changes, players, maxPlayers, generation, serverName, motd);
+                }
+            }
+
+            lastGeneration = generation;
+            lastPlayers = players;
+            lastMaxPlayers = maxPlayers;
+            lastServerName = serverName;
+            lastMotd = motd;
+        } catch (Exception e) {
+            logger.at(Level.WARNING).withCause(e).log("Failed to push query changes");
+        }
+    }
+
+    /**
+     * Build one push datagram and send it to every subscriber. Must hold the lock.
+     */
+    private void push(byte changes, int players, int maxPlayers, long generation,
+                      @Nonnull String serverName, @Nonnull String motd) {
+        ByteBuf buf = alloc.directBuffer();
+        try {
+            int changesIndex = HytaleOneQueryProtocol.writePushHeader(buf, ++sequence, changes, players, maxPlayers,
+                    lastGeneration, generation);
+            int flags = changes;
+            if ((changes & HytaleOneQueryProtocol.PUSH_IDENTITY) != 0) {
+                // Include the name and MOTD when they fit, otherwise clients follow up with a basic query
+                int mark = buf.writerIndex();
+                HytaleOneQueryProtocol.writeString(buf, serverName);
+                HytaleOneQueryProtocol.writeString(buf, motd);
+                if (buf.readableBytes() > maxPushBytes) {
+                    buf.writerIndex(mark);
+                    flags |= HytaleOneQueryProtocol.PUSH_IDENTITY_TRUNCATED;
+                }
+            }
+            if ((changes & HytaleOneQueryProtocol.PUSH_ROSTER) != 0) {
+                // Include the joins and leaves when they fit, otherwise clients follow up with a delta query
+                int mark = buf.writerIndex();
+                long written = journal.writeChangesSince(lastGeneration, buf);
+                if (written != generation || buf.readableBytes() > maxPushBytes) {
+                    buf.writerIndex(mark);
+                    flags |= HytaleOneQueryProtocol.PUSH_ROSTER_TRUNCATED;
+                }
+            }
+            buf.setByte(changesIndex, flags);
+
+            int size = buf.readableBytes();
+            for (int i = 0; i < count; i++) {
+                contexts[i].writeAndFlush(new DatagramPacket(buf.retainedDuplicate(), addresses[i]),
+                        contexts[i].newPromise().addListener(sendListener));
+                metrics.recordPush(size);
+            }
+        } finally {
+            buf.release();
+        }
+    }
+
+    private void captureState() {
+        this.lastGeneration = journal.generation();
+        this.lastPlayers = roster.size();
+        this.lastMaxPlayers = source.getMaxPlayers();
+        this.lastServerName = source.getServerName();
+        this.lastMotd = source.getMotd();
+    }
+
+    private void evictExpired(long now) {
+        for (int i = count - 1; i >= 0; i--) {
+            if (now - expiresAt[i] >= 0) {
+                remove(i);
+            }
+        }
+    }
+
+    private void remove(int index) {
+        int last = --count;
+        addresses[index] = addresses[last];
+        contexts[index] = contexts[last];
+        expiresAt[index] = expiresAt[last];
+        addresses[last] = null;
+        contexts[last] = null;
+    }
+}
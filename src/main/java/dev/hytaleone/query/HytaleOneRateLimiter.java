@@ -0,0 +1,205 @@
+package dev.hytaleone.query;
+
+import javax.annotation.Nonnull;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free token bucket rate limiter keyed on the sender address.
+ * Buckets live in a fixed-size open-addressing table of primitive slots,
+ * so memory stays bounded no matter how many addresses send queries.
+ * An entry counts as idle once its bucket would have refilled completely,
+ * idle entries are reclaimed when another address needs the slot.
+ */
+public final class HytaleOneRateLimiter {
+
+    private static final int PROBE_LIMIT = 8;
+    // Slots lost to other addresses before a request is dropped instead
+    private static final int MAX_CLAIM_ATTEMPTS = 4;
+
+    // Key of a free slot, and of a slot being handed to a new address whose bucket is not reset yet
+    private static final long EMPTY = 0;
+    private static final long CLAIMING = -1;
+
+    // Bucket state packs the last refill time (ms) above the token count (thousandths of a token)
+    private static final int TOKEN_BITS = 24;
+    private static final long TOKEN_MASK = (1L << TOKEN_BITS) - 1;
+    private static final long TOKEN_SCALE = 1000;
+    private static final int MAX_BURST = (int) (TOKEN_MASK / TOKEN_SCALE);
+
+    // IPv4 senders are keyed as IPv4-mapped IPv6 addresses
+    private static final long IPV4_MAPPED = 0xFFFF00000000L;
+
+    private final AtomicLongArray keys;
+    private final AtomicLongArray states;
+    private final int mask;
+    private final long ratePerSecond;
+    private final long capacity;
+    private final long idleMillis;
+    private final long epoch = System.nanoTime();
+
+    /**
+     * @param ratePerSecond tokens added per second, zero or less disables the limiter
+     * @param burst         bucket capacity
+     * @param tableSize     number of tracked addresses, rounded up to a power of two
+     */
+    public HytaleOneRateLimiter(int ratePerSecond, int burst, int tableSize) {
+        int size = Integer.highestOneBit(Math.max(tableSize, PROBE_LIMIT) - 1) << 1;
+        this.keys = new AtomicLongArray(size);
+        this.states = new AtomicLongArray(size);
+        this.mask = size - 1;
+        this.ratePerSecond = Math.max(ratePerSecond, 0);
+        this.capacity = Math.min(Math.max(burst, 1), MAX_BURST) * TOKEN_SCALE;
+        this.idleMillis = this.ratePerSecond > 0 ? Math.max(capacity / this.ratePerSecond, 1) : 0;
+    }
+
+    /**
+     * Whether the limiter is active.
+     */
+    public boolean isEnabled() {
+        return ratePerSecond > 0;
+    }
+
+    /**
+     * Take one token from the sender's bucket.
+     *
+     * @return false if the request should be dropped
+     */
+    public boolean tryAcquire(@Nonnull InetSocketAddress sender) {
+        if (ratePerSecond == 0) {
+            return true;
+        }
+
+        long now = (System.nanoTime() - epoch) / 1_000_000L;
+        long key = addressKey(sender.getAddress());
+
+        for (int attempt = 0; attempt < MAX_CLAIM_ATTEMPTS; attempt++) {
+            int index = slotFor(key, now);
+            if (index < 0) {
+                // Lost the slot to another address, look again
+                continue;
+            }
+            while (true) {
+                long state = states.get(index);
+                if (keys.get(index) != key) {
+                    // Handed to another address since it was found, its tokens are not ours
+                    break;
+                }
+                long tokens = refill(state, now);
+                if (tokens < TOKEN_SCALE) {
+                    return false;
+                }
+                if (states.compareAndSet(index, state, pack(now, tokens - TOKEN_SCALE))) {
+                    return true;
+                }
+            }
+        }
+        // Drop rather than spend the tokens of whichever address holds the slot now
+        return false;
+    }
+
+    /**
+     * Find or claim the slot of an address.
+     *
+     * @return the slot index, or -1 if another thread took the slot first
+     */
+
+    private int slotFor(long key, long now) {
+        int start = mix(key) & mask;
+        int victim = start;
+        long victimLast = Long.MAX_VALUE;
+
+        for (int i = 0; i < PROBE_LIMIT; i++) {
+            int index = (start + i) & mask;
+            long current = keys.get(index);
+            if (current == key) {
+                return index;
+            }
+            if (current == CLAIMING) {
+                continue;
+            }
+
+            long last = states.get(index) >>> TOKEN_BITS;
+            if (current == EMPTY || now - last >= idleMillis) {
+                if (claim(index, current, key, now)) {
+                    return index;
+                }
+                if (keys.get(index) == key) {
+                    // Another thread claimed it for the same address
+                    return index;
+                }
+                continue;
+            }
+            if (last < victimLast) {
+                victim = index;
+                victimLast = last;
+            }
+        }
+
+        if (victimLast == Long.MAX_VALUE) {
+            // Every slot in the window is being claimed right now
+            return -1;
+        }
+
+        // Probe window is full of active addresses, take over the least recently used one
+        long current = keys.get(victim);
+        if (current == key || claim(victim, current, key, now)) {
+            return victim;
+        }
+        return -1;
+    }
+
+    /**
+     * Hand a slot to a new address. The bucket is reset before the key is published,
+     * so nobody sees the new key paired with the previous address's tokens.
+     */
+    private boolean claim(int index, long expected, long key, long now) {
+        if (expected == CLAIMING || !keys.compareAndSet(index, expected, CLAIMING)) {
+            return false;
+        }
+        states.set(index, pack(now, capacity));
+        keys.set(index, key);
+        return true;
+    }
+
+    private long refill(long state, long now) {
+        long tokens = state & TOKEN_MASK;
+        long elapsed = now - (state >>> TOKEN_BITS);
+        if (elapsed <= 0) {
+            return tokens;
+        }
+        // Tokens per second equals thousandths of a token per millisecond
+        long added = Math.min(elapsed, capacity) * ratePerSecond;
+        return Math.min(capacity, tokens + added);
+    }
+
+    private static long pack(long now, long tokens) {
+        return (now << TOKEN_BITS) | tokens;
+    }
+
+    private static long addressKey(InetAddress address) {
+        if (address instanceof Inet4Address) {
+            // hashCode is the address itself, no copy needed
+            return IPV4_MAPPED | (address.hashCode() & 0xFFFFFFFFL);
+        }
+        // Fold both halves, addresses within one /64 never share a bucket
+        byte[] bytes = address.getAddress();
+        long key = readLong(bytes, 0) * 0x9E3779B97F4A7C15L ^ readLong(bytes, 8);
+        return key == EMPTY || key == CLAIMING ? key + 2 : key;
+    }
+
+    private static long readLong(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (bytes[offset + i] & 0xFF);
+        }
+        return value;
+    }
+
+    private static int mix(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
@@ -0,0 +1,61 @@
+package dev.hytaleone.query;
+
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * Reference count for a group of pooled buffers that readers use without locks.
+ * The owner holds the first reference, readers pin with {@link #tryRetain()} before
+ * touching the buffers and the buffers are released when the last reference is gone.
+ * A failed pin never touches a buffer, so a reader can not retain a buffer the pool
+ * has already handed out again.
+ */
+abstract class HytaleOneRefCounted {
+
+    private static final AtomicIntegerFieldUpdater<HytaleOneRefCounted> REFS =
+            AtomicIntegerFieldUpdater.newUpdater(HytaleOneRefCounted.class, "refs");
+
+    private volatile int refs = 1;
+
+    /**
+     * Take a reference unless the buffers are already released.
+     *
+     * @return whether the reference was taken
+     */
+    final boolean tryRetain() {
+        while (true) {
+            int current = refs;
+            if (current == 0) {
+                return false;
+            }
+            if (REFS.compareAndSet(this, current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Take a reference the caller knows is still live, such as one it owns itself.
+     */
+    final void retain() {
+        if (!tryRetain()) {
+            throw new IllegalStateException("Already released");
+        }
+    }
+
+    /**
+     * Drop a reference, the last one releases the buffers.
+     */
+    final void release() {
+        int remaining = REFS.decrementAndGet(this);
+        if (remaining == 0) {
+            deallocate();
+        } else if (remaining < 0) {
+            throw new IllegalStateException("Released too often");
+        }
+    }
+
+    /**
+     * Release the buffers, called once when the last reference is dropped.
+     */
+    protected abstract void deallocate();
+}
@@ -0,0 +1,87 @@
+package dev.hytaleone.query;
+
+import io.netty.buffer.ByteBuf;
+
+import javax.annotation.Nonnull;
+import java.util.UUID;
+
+/**
+ * Bounded ring of recent player joins and leaves, numbered by a
+ * monotonically increasing roster generation. Generations start at the
+ * wall clock time in microseconds, so they keep increasing across restarts.
+ */
+public final class HytaleOneRosterJournal {
+
+    public static final byte OP_LEAVE = 0x00;
+    public static final byte OP_JOIN = 0x01;
+
+    private final long[] generations;
+    private final byte[] ops;
+    private final byte[][] entries;
+
+    private volatile long generation = System.currentTimeMillis() * 1000L;
+    private int head;
+    private int size;
+
+    public HytaleOneRosterJournal(int capacity) {
+        int size = Math.max(capacity, 1);
+        this.generations = new long[size];
+        this.ops = new byte[size];
+        this.entries = new byte[size][];
+    }
+
+    /**
+     * Latest roster generation.
+     */
+    public long generation() {
+        return generation;
+    }
+
+    /**
+     * Record a player joining.
+     */
+    public void recordJoin(@Nonnull String name, @Nonnull UUID uuid) {
+        record(OP_JOIN, HytaleOneQueryProtocol.encodePlayerEntry(name, uuid));
+    }
+
+    /**
+     * Record a player leaving.
+     */
+    public void recordLeave(@Nonnull String name, @Nonnull UUID uuid) {
+        record(OP_LEAVE, HytaleOneQueryProtocol.encodePlayerEntry(name, uuid));
+    }
+
+    private synchronized void record(byte op, @Nonnull byte[] entry) {
+        long next = generation + 1;
+        generations[head] = next;
+        ops[head] = op;
+        entries[head] = entry;
+        head = (head + 1) % generations.length;
+        size = Math.min(size + 1, generations.length);
+        this.generation = next;
+    }
+
+    /**
+     * Write every change after the given generation in order, as a change count
+     * followed by (op, name, UUID) records.
+     *
+     * @return the generation the written changes lead to, or -1 if the journal
+     * no longer covers the given generation
+     */
+    public synchronized long writeChangesSince(long since, @Nonnull ByteBuf out) {
+        long current = this.generation;
+        long missing = current - since;
+        if (missing < 0 || missing > size) {
+            return -1;
+        }
+
+        out.writeIntLE((int) missing);
+        int start = head - (int) missing;
+        for (int i = 0; i < missing; i++) {
+            int index = Math.floorMod(start + i, generations.length);
+            out.writeByte(ops[index]);
+            out.writeBytes(entries[index]);
+        }
+        return current;
+    }
+}
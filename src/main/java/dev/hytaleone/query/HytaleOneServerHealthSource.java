@@ -0,0 +1,27 @@
+package dev.hytaleone.query;
+
+import com.hypixel.hytale.server.core.universe.Universe;
+import com.hypixel.hytale.server.core.universe.world.World;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Health source backed by the running Hytale server. The server has no public entity
+ * or chunk counters, so those are reported as unknown.
+ */
+public final class HytaleOneServerHealthSource implements HytaleOneHealthSource {
+
+    @Nonnull
+    @Override
+    public List<WorldInfo> getWorlds() {
+        Collection<World> worlds = Universe.get().getWorlds().values();
+        List<WorldInfo> result = new ArrayList<>(worlds.size());
+        for (World world : worlds) {
+            result.add(new WorldInfo(world.getName(), world, world.getPlayerCount(), -1, -1));
+        }
+        return result;
+    }
+}
@@ -1,79 +1,209 @@
 package dev.hytaleone.query;
 
-import com.hypixel.hytale.common.util.java.ManifestUtil;
 import com.hypixel.hytale.logger.HytaleLogger;
-import com.hypixel.hytale.protocol.ProtocolSettings;
-import com.hypixel.hytale.server.core.HytaleServer;
-import com.hypixel.hytale.server.core.io.ServerManager;
-import com.hypixel.hytale.server.core.universe.Universe;
 import org.bson.Document;
 
 import javax.annotation.Nonnull;
-import java.net.InetSocketAddress;
 import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.security.SecureRandom;
 import java.time.Duration;
-import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.IntSupplier;
 import java.util.logging.Level;
 
 /**
- * Registers the server with a central server list service on startup.
+ * Registers the server with a central server list service and keeps the entry
+ * current with heartbeats. A heartbeat is only posted when the payload changed,
+ * or as a keep-alive once the keep-alive interval passed. Failed posts are
+ * retried with exponential backoff and jitter. All posts run on a single
+ * scheduler thread and share one HTTP client.
  */
 public final class HytaleOneServerListRegistration {
 
-    private static final String ENDPOINT = "https://hytale.one/api/plugin/query/register";
     private static final Duration TIMEOUT = Duration.ofSeconds(10);
+    private static final Duration DEREGISTER_TIMEOUT = Duration.ofSeconds(3);
+    private static final long BACKOFF_BASE_MILLIS = 5_000;
+    private static final long BACKOFF_MAX_MILLIS = 600_000;
 
-    private HytaleOneServerListRegistration() {
+    @Nonnull
+    private final HytaleLogger logger;
+    @Nonnull
+    private final URI endpoint;
+    @Nonnull
+    private final String serverId;
+    @Nonnull
+    private final HytaleOneQuerySource source;
+    @Nonnull
+    private final IntSupplier currentPlayers;
+    private final String hostAddress;
+    private final int queryPort;
+    private final long intervalMillis;
+    private final long keepAliveMillis;
+
+    private final HttpClient client = HttpClient.newBuilder()
+            .connectTimeout(TIMEOUT)
+            .version(HttpClient.Version.HTTP_1_1)
+            .build();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "HytaleOne-ServerList");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Only touched on the scheduler thread
+    private String lastPayload;
+    private long lastSentMillis;
+    private int failures;
+    private boolean announced;
+
+    private volatile boolean registered;
+
+    /**
+     * @param hostAddress      address announced to the list, null lets the service use the sender address
+     * @param queryPort        port queries are answered on
+     * @param intervalSeconds  how often to check for changes, 0 posts once
+     * @param keepAliveSeconds longest time between posts when nothing changed
+     */
+    public HytaleOneServerListRegistration(@Nonnull HytaleLogger logger, @Nonnull String endpoint,
+                                           @Nonnull String serverId, @Nonnull HytaleOneQuerySource source,
+                                           @Nonnull IntSupplier currentPlayers, String hostAddress, int queryPort,
+                                           int intervalSeconds, int keepAliveSeconds) {
+        this.logger = logger;
+        this.endpoint = URI.create(endpoint);
+        this.serverId = serverId;
+        this.source = source;
+        this.currentPlayers = currentPlayers;
+        this.hostAddress = hostAddress;
+        this.queryPort = queryPort;
+        this.intervalMillis = TimeUnit.SECONDS.toMillis(Math.max(intervalSeconds, 0));
+        this.keepAliveMillis = TimeUnit.SECONDS.toMillis(Math.max(keepAliveSeconds, intervalSeconds));
     }
 
     /**
-     * Register the server with the server list service.
-     * Runs asynchronously to not block server startup.
+     * Make sure there is a server ID, generating and saving one if missing.
+     *
+     * @param serverId     the configured server ID, null or blank if there is none yet
+     * @param saveServerId stores a newly generated ID
      */
-    public static void register(@Nonnull HytaleLogger logger, @Nonnull HytaleOneQueryConfig config, @Nonnull Runnable saveConfig) {
-        // Generate server ID if missing
-        if (config.getServerId() == null || config.getServerId().isBlank()) {
-            String newId = "hytaleone_" + generateRandomHex(32);
-            config.setServerId(newId);
-            saveConfig.run();
-            logger.at(Level.FINE).log("Generated new server ID: %s", newId);
+    @Nonnull
+    public static String ensureServerId(@Nonnull HytaleLogger logger, String serverId,
+                                        @Nonnull Consumer<String> saveServerId) {
+        if (serverId != null && !serverId.isBlank()) {
+            return serverId;
         }
+        String newId = "hytaleone_" + generateRandomHex(32);
+        saveServerId.accept(newId);
+        logger.at(Level.FINE).log("Generated new server ID: %s", newId);
+        return newId;
+    }
 
-        final String serverId = config.getServerId();
-
-        CompletableFuture.runAsync(() -> {
-            try {
-                String json = buildPayload(serverId);
+    /**
+     * Post the first registration and start the heartbeat.
+     * Runs on the registration thread to not block server startup.
+     */
+    public void start() {
+        scheduler.execute(this::heartbeat);
+    }
 
-                HttpClient client = HttpClient.newBuilder()
-                        .connectTimeout(TIMEOUT)
-                        .version(HttpClient.Version.HTTP_1_1)
-                        .build();
+    /**
+     * Stop the heartbeat and remove the server from the list.
+     * Blocks for at most a few seconds.
+     */
+    public void stop() {
+        scheduler.shutdownNow();
+        try {
+            scheduler.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (!registered) {
+            return;
+        }
 
-                HttpRequest request = HttpRequest.newBuilder()
-                        .uri(URI.create(ENDPOINT))
-                        .header("Content-Type", "application/json")
-                        .timeout(TIMEOUT)
-                        .POST(HttpRequest.BodyPublishers.ofString(json))
-                        .build();
+        try {
+            Document doc = buildPayload().append("online", false);
+            HttpResponse<String> response = post(doc.toJson(), DEREGISTER_TIMEOUT);
+            if (isSuccess(response)) {
+                logger.at(Level.FINE).log("Server removed from server list");
+            } else {
+                logger.at(Level.FINE).log("Server list deregistration failed (status: %d)", response.statusCode());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            logger.at(Level.FINE).log("Failed to deregister from server list: %s", e.getMessage());
+        }
+    }
 
-                HttpResponse<String> response = client.send(request,
-                        HttpResponse.BodyHandlers.ofString());
+    private void heartbeat() {
+        try {
+            // Building the payload reads server state, a failure there backs off like a failed post
+            String json = buildPayload().toJson();
+            long now = System.currentTimeMillis();
+            if (json.equals(lastPayload) && now - lastSentMillis < keepAliveMillis) {
+                scheduleNext(intervalMillis);
+                return;
+            }
 
-                if (response.statusCode() >= 200 && response.statusCode() < 300) {
+            HttpResponse<String> response = post(json, TIMEOUT);
+            if (isSuccess(response)) {
+                this.lastPayload = json;
+                this.lastSentMillis = now;
+                this.failures = 0;
+                this.registered = true;
+                if (!announced) {
+                    announced = true;
                     handleSuccessResponse(logger, response.body());
-                } else {
-                    logger.at(Level.WARNING).log("Server list registration failed (status: %d)",
-                            response.statusCode());
                 }
-            } catch (Exception e) {
-                logger.at(Level.WARNING).log("Failed to register with server list: %s", e.getMessage());
+                scheduleNext(intervalMillis);
+                return;
             }
-        });
+            logger.at(failures == 0 ? Level.WARNING : Level.FINE).log(
+                    "Server list registration failed (status: %d)", response.statusCode());
+        } catch (InterruptedException e) {
+            // Shutting down
+            return;
+        } catch (Exception e) {
+            logger.at(failures == 0 ? Level.WARNING : Level.FINE).log(
+                    "Failed to register with server list: %s", e.getMessage());
+        }
+
+        // Full jitter over an exponentially growing window
+        long window = Math.min(BACKOFF_BASE_MILLIS << Math.min(failures, 20), BACKOFF_MAX_MILLIS);
+        failures++;
+        scheduleNext(window / 2 + ThreadLocalRandom.current().nextLong(window / 2 + 1));
+    }
+
+    private void scheduleNext(long delayMillis) {
+        // Registering once only retries failures
+        if (intervalMillis == 0 && failures == 0) {
+            return;
+        }
+        if (!scheduler.isShutdown()) {
+            scheduler.schedule(this::heartbeat, delayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Nonnull
+    private HttpResponse<String> post(@Nonnull String json, @Nonnull Duration timeout) throws Exception {
+        HttpRequest request = HttpRequest.newBuilder()
+                .uri(endpoint)
+                .header("Content-Type", "application/json")
+                .timeout(timeout)
+                .POST(HttpRequest.BodyPublishers.ofString(json))
+                .build();
+        return client.send(request, HttpResponse.BodyHandlers.ofString());
+    }
+
+    private static boolean isSuccess(@Nonnull HttpResponse<String> response) {
+        return response.statusCode() >= 200 && response.statusCode() < 300;
     }
 
     /**
@@ -146,47 +276,18 @@ public final class HytaleOneServerListRegistration {
     /**
      * Build the JSON payload with server information.
      */
-    private static String buildPayload(@Nonnull String serverId) {
-        var config = HytaleServer.get().getConfig();
-
-        Document doc = new Document()
+    @Nonnull
+    private Document buildPayload() {
+        return new Document()
                 .append("serverId", serverId)
-                .append("serverName", config.getServerName())
-                .append("motd", config.getMotd())
-                .append("host", getHostAddress())
-                .append("port", getHostPort())
-                .append("maxPlayers", config.getMaxPlayers())
-                .append("currentPlayers", Universe.get().getPlayerCount())
-                .append("version", getVersion())
-                .append("protocolVersion", ProtocolSettings.PROTOCOL_VERSION);
-
-        return doc.toJson();
-    }
-
-    private static String getVersion() {
-        String version = ManifestUtil.getImplementationVersion();
-        return version != null ? version : "unknown";
-    }
-
-    private static String getHostAddress() {
-        try {
-            InetSocketAddress address = ServerManager.get().getNonLoopbackAddress();
-            if (address != null && address.getAddress() != null) {
-                return address.getAddress().getHostAddress();
-            }
-        } catch (Exception ignored) {
-        }
-        return null;
-    }
-
-    private static int getHostPort() {
-        try {
-            InetSocketAddress address = ServerManager.get().getNonLoopbackAddress();
-            if (address != null) {
-                return address.getPort();
-            }
-        } catch (Exception ignored) {
-        }
-        return 5520;
+                .append("serverName", source.getServerName())
+                .append("motd", source.getMotd())
+                .append("host", hostAddress)
+                .append("port", source.getHostPort())
+                .append("queryPort", queryPort)
+                .append("maxPlayers", source.getMaxPlayers())
+                .append("currentPlayers", currentPlayers.getAsInt())
+                .append("version", source.getVersion())
+                .append("protocolVersion", source.getProtocolVersion());
     }
 }
@@ -0,0 +1,99 @@
+package dev.hytaleone.query;
+
+import com.hypixel.hytale.common.util.java.ManifestUtil;
+import com.hypixel.hytale.protocol.ProtocolSettings;
+import com.hypixel.hytale.server.core.HytaleServer;
+import com.hypixel.hytale.server.core.io.ServerManager;
+import com.hypixel.hytale.server.core.plugin.PluginBase;
+import com.hypixel.hytale.server.core.plugin.PluginManager;
+
+import javax.annotation.Nonnull;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Query source backed by the running Hytale server.
+ * The host port and version are resolved once, they cannot change at runtime.
+ */
+public final class HytaleOneServerQuerySource implements HytaleOneQuerySource {
+
+    private static final int DEFAULT_PORT = 5520;
+
+    private final int hostPort = resolveHostPort();
+    private final String version = resolveVersion();
+
+    @Nonnull
+    @Override
+    public String getServerName() {
+        return HytaleServer.get().getConfig().getServerName();
+    }
+
+    @Nonnull
+    @Override
+    public String getMotd() {
+        return HytaleServer.get().getConfig().getMotd();
+    }
+
+    @Override
+    public int getMaxPlayers() {
+        return Math.max(HytaleServer.get().getConfig().getMaxPlayers(), 0);
+    }
+
+    @Override
+    public int getHostPort() {
+        return hostPort;
+    }
+
+    @Nonnull
+    @Override
+    public String getVersion() {
+        return version;
+    }
+
+    @Override
+    public int getProtocolVersion() {
+        return ProtocolSettings.PROTOCOL_VERSION;
+    }
+
+    @Nonnull
+    @Override
+    public String getProtocolHash() {
+        return ProtocolSettings.PROTOCOL_HASH;
+    }
+
+    @Nonnull
+    @Override
+    public List<PluginInfo> getPlugins() {
+        List<PluginBase> plugins = PluginManager.get().getPlugins();
+        List<PluginInfo> result = new ArrayList<>(plugins.size());
+        for (PluginBase plugin : plugins) {
+            result.add(new PluginInfo(plugin.getIdentifier().toString(), // e.g. "HytaleOne:Query"
+                    plugin.getManifest().getVersion().toString(), plugin.isEnabled()));
+        }
+        return result;
+    }
+
+    /**
+     * Get the server version string.
+     */
+    private static String resolveVersion() {
+        String version = ManifestUtil.getImplementationVersion();
+        return version != null ? version : "unknown";
+    }
+
+    /**
+     * Get the host port from ServerManager.
+     */
+    private static int resolveHostPort() {
+        try {
+            InetSocketAddress address = ServerManager.get().getNonLoopbackAddress();
+            if (address != null) {
+                return address.getPort();
+            }
+        } catch (SocketException ignored) {
+        }
+        return DEFAULT_PORT;
+    }
+}